@@ -17,6 +17,8 @@
 
 package org.pidster.tomcat.util.cli;
 
+import java.io.File;
+
 /**
  * @author pidster
  * 
@@ -30,6 +32,8 @@ public abstract class AbstractCommand implements Command {
 
     private CommandConfig config;
 
+    private int status;
+
     /**
      * 
      */
@@ -47,6 +51,7 @@ public abstract class AbstractCommand implements Command {
     @Override
     public void configure(CommandConfig config) throws CommandException {
         this.config = config;
+        this.status = 0;
         configure();
     }
 
@@ -95,6 +100,42 @@ public abstract class AbstractCommand implements Command {
         getConfig().getEnvironment().sysout(message, args);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Command#getStatus()
+     */
+    @Override
+    public final int getStatus() {
+        return status;
+    }
+
+    /**
+     * @param status
+     *            to exit with, 0 if the command succeeded
+     */
+    protected final void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * @param path
+     *            given by the user
+     * @return the file, relative to the user's working directory, which isn't
+     *         this process's when the daemon runs the command
+     */
+    protected final File resolve(String path) {
+        return getConfig().getEnvironment().resolve(path);
+    }
+
+    /**
+     * @return true if the user has gone away, and a command which runs until
+     *         it's stopped should stop
+     */
+    protected final boolean isClosed() {
+        return getConfig().getEnvironment().isClosed();
+    }
+
     /**
      * @return outcome
      */
@@ -17,31 +17,56 @@
 
 package org.pidster.tomcat.util.cli;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.io.IOException;
 import java.lang.management.ManagementFactory;
-import java.lang.management.RuntimeMXBean;
+import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.AttributeList;
 import javax.management.InstanceNotFoundException;
 import javax.management.MBeanException;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.QueryExp;
 import javax.management.ReflectionException;
 import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
+import org.pidster.tomcat.util.cli.impl.CommandConfigImpl;
+import org.pidster.tomcat.util.cli.impl.PrefixedEnvironment;
+import org.pidster.tomcat.util.cli.jmx.AttributeMap;
+import org.pidster.tomcat.util.cli.jmx.BulkFetcher;
+import org.pidster.tomcat.util.cli.jmx.CircuitBreaker;
+import org.pidster.tomcat.util.cli.jmx.ConnectionPool;
+import org.pidster.tomcat.util.cli.jmx.ConnectorAddressCache;
+import org.pidster.tomcat.util.cli.jmx.DeadlineException;
+import org.pidster.tomcat.util.cli.jmx.Discovery;
+import org.pidster.tomcat.util.cli.jmx.Subscriptions;
+import org.pidster.tomcat.util.cli.jmx.TimeoutConnection;
+import org.pidster.tomcat.util.cli.jmx.TopologyIndex;
 import org.pidster.tomcat.util.cli.util.DateTime;
 import org.pidster.tomcat.util.cli.util.IO;
+import org.pidster.tomcat.util.cli.util.NamedThreadFactory;
 
 import com.sun.tools.attach.VirtualMachine;
 import com.sun.tools.attach.VirtualMachineDescriptor;
@@ -54,16 +79,20 @@ import sun.management.ConnectorAddressLink;
  */
 @Options({
         @Option(name = "pid", single = 'i', setter = true, description = "The PID to attach to"),
-        @Option(name = "jmx", single = 'u', setter = true, description = "The JMX URL to connect to"),
+        @Option(name = "jmx", single = 'u', setter = true, description = "The JMX URL or host:port to connect to, or several separated by commas"),
         @Option(name = "port", single = 'p', setter = true, description = "The JMX port to connect to"),
         @Option(name = "username", single = 'U', setter = true, description = "The JMX username to use"),
         @Option(name = "password", single = 'P', setter = true, description = "The JMX password credential to use"),
-        @Option(name = "guess", single = 'g', setter = false, description = "Guess which process to attach to"),
-        @Option(name = "inject", single = 'j', setter = true, description = "Inject the management agent into a running PID")
+        @Option(name = "guess", single = 'g', setter = false, description = "Guess which process to attach to, optionally by instance name"),
+        @Option(name = "inject", single = 'j', setter = true, description = "Inject the management agent into a running PID"),
+        @Option(name = "connect-timeout", single = 'o', setter = true, description = "Give up connecting after this long, e.g. 5s"),
+        @Option(name = "timeout", single = 'T', setter = true, description = "Give up on a JMX request after this long, e.g. 500ms"),
+        @Option(name = "targets", single = 'f', setter = true, description = "A file of JMX URLs or host:ports to run against, one per line"),
+        @Option(name = "parallel", single = 'x', setter = true, description = "How many targets to run against at once")
 })
 public abstract class AbstractJMXCommand extends AbstractCommand {
 
-    protected static final String CATALINA_BOOTSTRAP = "org.apache.catalina.startup.Bootstrap";
+    protected static final String CATALINA_BOOTSTRAP = Discovery.CATALINA_BOOTSTRAP;
 
     protected static final String DEFAULT_JMX_PROTOCOL = "service:jmx:rmi:///jndi/rmi://";
 
@@ -73,12 +102,58 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
 
     protected static final String DEFAULT_JMX_URI = "/jmxrmi";
 
-    protected static final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+    protected static final String LOCAL_CONNECTOR_ADDRESS = Discovery.LOCAL_CONNECTOR_ADDRESS;
+
+    protected static final int DEFAULT_FETCH_THREADS = 8;
+
+    protected static final String DEFAULT_CONNECT_TIMEOUT = "10s";
+
+    protected static final String DEFAULT_REQUEST_TIMEOUT = "30s";
+
+    protected static final int DEFAULT_PARALLEL = 8;
+
+    private static final String SERVICE_URL_PREFIX = "service:jmx:";
+
+    /**
+     * Options which choose the process to connect to, a target replaces them
+     */
+    private static final List<String> SELECTION_OPTIONS = Arrays.asList("pid",
+            "jmx", "port", "guess", "inject", "targets", "parallel");
+
+    private static final String[] RUNTIME_ATTRIBUTES = new String[] {
+            "Name", "Uptime", "VmName", "VmVendor", "VmVersion"
+    };
 
     // private volatile static MBeanServerConnection connection;
 
     private volatile JMXConnector connector;
 
+    private MBeanServerConnection connection;
+
+    private boolean deadlineReported;
+
+    private String serverInfo;
+
+    private String vmVersion;
+
+    private String cachedPid;
+
+    private int requests;
+
+    private ExecutorService fetchExecutor;
+
+    private Subscriptions subscriptions;
+
+    private List<String> targets;
+
+    /**
+     * The target this copy of the command runs against, when it's one of
+     * several, else null
+     */
+    private String targetLabel;
+
+    private final Map<ObjectName, AttributeMap> fetched = new HashMap<ObjectName, AttributeMap>();
+
     // private Map<String, Object> runtimeProps;
 
     /*
@@ -89,19 +164,50 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
     @Override
     protected void configure() throws CommandException {
 
+        // e.g. replaying a recording
+        if (isOffline())
+            return;
+
         try {
 
+            targets = targets();
+
+            // Each target gets a command of its own, see execute()
+            if (targets.size() > 1)
+                return;
+
             // Not exactly thread safe, but it'll do for now
             if (connector == null) {
                 String serviceURL = serviceURL();
 
                 Map<String, Object> properties = connectorProperties();
 
+                // In interactive mode the connection outlives the command
                 JMXServiceURL jmxURL = new JMXServiceURL(serviceURL);
-                connector = JMXConnectorFactory.newJMXConnector(jmxURL,
-                        properties);
+                long connectTimeout = duration("connect-timeout",
+                        DEFAULT_CONNECT_TIMEOUT);
+                try {
+                    connector = ConnectionPool.getInstance().acquire(jmxURL,
+                            properties, connectTimeout);
+                }
+                catch (IOException e) {
+                    if (cachedPid == null)
+                        throw e;
 
-                connector.connect();
+                    // The cached address is stale, find it the long way
+                    ConnectorAddressCache.getInstance().evict(cachedPid);
+                    cachedPid = null;
+
+                    jmxURL = new JMXServiceURL(serviceURL());
+                    connector = ConnectionPool.getInstance().acquire(jmxURL,
+                            properties, connectTimeout);
+                }
+
+                // Every request from here on has a deadline
+                connection = TimeoutConnection.wrap(
+                        connector.getMBeanServerConnection(),
+                        duration("timeout", DEFAULT_REQUEST_TIMEOUT),
+                        CircuitBreaker.forTarget(jmxURL.toString()));
             }
 
             // runtimeProps = new HashMap<String, Object>();
@@ -123,29 +229,34 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
 
             // ------------------------------------------------------------
             // There should only ever be one Server, acquire server attributes
+            // asked directly, the topology isn't worth a sweep for this
             ObjectName query = ObjectName.getInstance("*:type=Server");
 
-            TreeSet<ObjectName> servers = new TreeSet<ObjectName>(
+            requests++;
+            SortedSet<ObjectName> servers = new TreeSet<ObjectName>(
                     getConnection().queryNames(query, null));
 
-            String serverInfo = (String) attribute(servers.first(),
-                    "serverInfo");
+            serverInfo = (String) attribute(servers.first(), "serverInfo");
 
             // ------------------------------------------------------------
-            // Use the MXBean, it's nicer
-            RuntimeMXBean runtime = ManagementFactory.newPlatformMXBeanProxy(
-                    getConnection(), ManagementFactory.RUNTIME_MXBEAN_NAME,
-                    RuntimeMXBean.class);
+            // One request for everything we want from the runtime
+            AttributeMap runtime = attributes(
+                    ObjectName.getInstance(ManagementFactory.RUNTIME_MXBEAN_NAME),
+                    RUNTIME_ATTRIBUTES);
+
+            vmVersion = runtime.value("VmVersion");
 
+            Long uptime = runtime.value("Uptime");
             log(String.format("Connected to %s [%s, uptime:%s]\n", serverInfo,
-                    runtime.getName(),
-                    DateTime.formatUptime(runtime.getUptime())));
+                    runtime.get("Name"), uptime == null ? "?"
+                            : DateTime.formatUptime(uptime)));
 
             if (isDebug())
-                log(String.format(" - %s %s %s", runtime.getVmName(),
-                        runtime.getVmVendor(), runtime.getVmVersion()));
+                log(String.format(" - %s %s %s", runtime.get("VmName"),
+                        runtime.get("VmVendor"), vmVersion));
         }
         catch (IOException ioe) {
+            broken();
             throwException(ioe);
         }
         catch (MalformedObjectNameException mone) {
@@ -156,6 +267,75 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
         }
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Command#execute()
+     */
+    @Override
+    public final void execute() throws CommandException {
+        if (targets != null && targets.size() > 1) {
+            executeAll();
+        }
+        else {
+            try {
+                executeInternal();
+            }
+            catch (CommandException e) {
+                failed(e);
+                throw e;
+            }
+            catch (RuntimeException e) {
+                failed(e);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return true if this run of the command doesn't need a server
+     */
+    protected boolean isOffline() {
+        return false;
+    }
+
+    /**
+     * @return false if this run of the command can't be run against several
+     *         targets at once, e.g. because it takes over the screen
+     */
+    protected boolean isMultiTarget() {
+        return true;
+    }
+
+    /**
+     * @return true if the command makes enough queries that one sweep of
+     *         every name, matched locally, is cheaper than asking each time;
+     *         the sweep is kept anyway when connections outlive commands
+     */
+    protected boolean usesTopology() {
+        return false;
+    }
+
+    /**
+     * Makes a file name distinct for each target, when the command is run
+     * against several, so that they don't write over one another.
+     * 
+     * @param path
+     * @return the path, with the target added if there are several
+     */
+    protected String perTarget(String path) {
+        if (targetLabel == null)
+            return path;
+        return path + "-" + targetLabel.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * Runs the command against the connected server.
+     * 
+     * @throws CommandException
+     */
+    protected abstract void executeInternal() throws CommandException;
+
     /*
      * (non-Javadoc)
      * 
@@ -163,16 +343,53 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
      */
     @Override
     public void cleanup() {
-        IO.close(connector);
-        this.connector = null;
+        if (connector != null && isDebug())
+            log("JMX requests: " + requests);
+
+        requests = 0;
+        targets = null;
+        cachedPid = null;
+        deadlineReported = false;
+        fetched.clear();
+
+        // before the executor goes, it's needed to remove them
+        if (subscriptions != null) {
+            subscriptions.removeAll();
+            subscriptions = null;
+        }
+
+        if (fetchExecutor != null) {
+            fetchExecutor.shutdownNow();
+            fetchExecutor = null;
+        }
+
+        if (connector != null) {
+            ConnectionPool.getInstance().release(connector);
+            this.connector = null;
+            this.connection = null;
+        }
         super.cleanup();
     }
 
+    /**
+     * @return the server's version, e.g. Apache Tomcat/7.0.99
+     */
+    protected String getServerInfo() {
+        return serverInfo;
+    }
+
+    /**
+     * @return the remote JVM's version
+     */
+    protected String getVmVersion() {
+        return vmVersion;
+    }
+
     /**
      * @return connection
      */
     protected MBeanServerConnection getConnection() throws IOException {
-        return connector.getMBeanServerConnection();
+        return connection;
     }
 
     /**
@@ -211,10 +428,78 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
     protected SortedSet<ObjectName> query(ObjectName on, QueryExp qe)
             throws IOException {
 
-        SortedSet<ObjectName> names = new TreeSet<ObjectName>(getConnection()
-                .queryNames(on, qe));
+        try {
+            // Plain patterns can be matched locally, query expressions can't
+            if (qe == null
+                    && (usesTopology() || ConnectionPool.getInstance()
+                            .isLongLived())) {
+                return TopologyIndex.getInstance(connector, getConnection())
+                        .query(on);
+            }
+
+            requests++;
+            return new TreeSet<ObjectName>(getConnection().queryNames(on, qe));
+        }
+        catch (IOException e) {
+            broken();
+            throw e;
+        }
+    }
+
+    /**
+     * @return a new batch of requests, to be sent with
+     *         {@link #prefetch(BulkFetcher.Batch)}
+     * @throws IOException
+     */
+    protected BulkFetcher.Batch batch() throws IOException {
+        return new BulkFetcher(getConnection(), fetchExecutor()).batch();
+    }
+
+    /**
+     * Adds the listener to every MBean, many at once. It's removed again when
+     * this command is cleaned up.
+     * 
+     * @param names
+     * @param listener
+     * @param filter
+     *            or null
+     * @return the number of MBeans listened to, those which don't send
+     *         notifications are skipped
+     * @throws IOException
+     */
+    protected int subscribe(Collection<ObjectName> names,
+            NotificationListener listener, NotificationFilter filter)
+            throws IOException {
+
+        if (subscriptions == null) {
+            subscriptions = new Subscriptions(getConnection(), fetchExecutor());
+        }
+
+        requests += names.size();
+        return subscriptions.add(names, listener, filter);
+    }
+
+    /**
+     * Sends every request in the batch concurrently. Later calls to
+     * {@link #attributes(ObjectName, String...)} are answered from the results
+     * until this command is cleaned up.
+     * 
+     * @param batch
+     * @throws IOException
+     */
+    protected void prefetch(BulkFetcher.Batch batch) throws IOException {
+
+        requests += batch.size();
+        batch.execute();
 
-        return names;
+        for (Map.Entry<ObjectName, AttributeMap> entry : batch.getAttributes()
+                .entrySet()) {
+            AttributeMap attributes = entry.getValue();
+            if (attributes.getFailure() != null) {
+                quietException(attributes.getFailure());
+            }
+            fetched.put(entry.getKey(), attributes);
+        }
     }
 
     /**
@@ -226,7 +511,13 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
     protected <T> T attribute(ObjectName name, String attribute)
             throws RuntimeException {
 
+        AttributeMap cached = fetched.get(name);
+        if (cached != null && cached.covers(attribute)) {
+            return (T) cached.get(attribute);
+        }
+
         try {
+            requests++;
             // Ooh a bit of cheeky generic casting!
             return (T) getConnection().getAttribute(name, attribute);
         }
@@ -236,6 +527,33 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
         }
     }
 
+    /**
+     * Fetches several attributes of one MBean in a single request, rather
+     * than one request per attribute.
+     * 
+     * @param name
+     * @param attributes
+     * @return attributes, missing any which could not be read
+     */
+    protected AttributeMap attributes(ObjectName name, String... attributes) {
+
+        AttributeMap cached = fetched.get(name);
+        if (cached != null && cached.covers(attributes)) {
+            return cached;
+        }
+
+        try {
+            requests++;
+            AttributeList list = getConnection().getAttributes(name,
+                    attributes);
+            return new AttributeMap(attributes, list);
+        }
+        catch (Exception e) {
+            quietException(e);
+            return new AttributeMap(e);
+        }
+    }
+
     /**
      * @param name
      * @param operationName
@@ -253,7 +571,26 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
             Object[] params, String[] signature)
             throws InstanceNotFoundException, MBeanException,
             ReflectionException, IOException {
-        return getConnection().invoke(name, operationName, params, signature);
+        requests++;
+        try {
+            return getConnection().invoke(name, operationName, params,
+                    signature);
+        }
+        catch (IOException e) {
+            broken();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the pool requests are sent from, many at once
+     */
+    private ExecutorService fetchExecutor() {
+        if (fetchExecutor == null) {
+            fetchExecutor = Executors.newFixedThreadPool(DEFAULT_FETCH_THREADS,
+                    new NamedThreadFactory("tomcat-cli-fetch"));
+        }
+        return fetchExecutor;
     }
 
     /**
@@ -279,9 +616,290 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
         if (isDebug())
             exception.printStackTrace();
 
+        // a request which failed on the way there or back
+        if (exception instanceof IOException)
+            broken();
+
+        // Once the deadline is blown every request fails, once is enough
+        if (exception instanceof DeadlineException) {
+            if (deadlineReported)
+                return;
+            deadlineReported = true;
+        }
+
         log("ERROR: " + exception.getMessage());
     }
 
+    /**
+     * Stops the pool handing out the connector again, once a request through
+     * it has failed, or timed out and tripped the breaker; it's closed when
+     * released, and the next command connects afresh.
+     */
+    private void broken() {
+        if (connector != null)
+            ConnectionPool.getInstance().invalidate(connector);
+    }
+
+    /**
+     * Calls {@link #broken()} if the command failed because the connection
+     * did. Other I/O, e.g. writing a file, isn't the connection's fault.
+     * 
+     * @param failure
+     */
+    private void failed(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof DeadlineException || t instanceof RemoteException) {
+                broken();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Runs a copy of this command against every target at once, up to the
+     * parallel limit, writing each target's output as soon as it finishes.
+     * 
+     * @throws CommandException
+     */
+    private void executeAll() throws CommandException {
+
+        if (!isMultiTarget())
+            throw new CommandException(getConfig().getCommandName()
+                    + " can only be run against one target at a time");
+
+        int parallel = DEFAULT_PARALLEL;
+        if (getConfig().isOptionSet("parallel")) {
+            String value = getConfig().getOptionValue("parallel");
+            try {
+                parallel = Integer.parseInt(value.trim());
+            }
+            catch (NumberFormatException e) {
+                parallel = 0;
+            }
+            if (parallel < 1)
+                throw new CommandException("Invalid parallel: " + value);
+        }
+
+        // Ask for the password once, not once per target
+        Map<Option, String> options = new HashMap<Option, String>();
+        for (Option option : getConfig().getOptions()) {
+            if (!SELECTION_OPTIONS.contains(option.name()))
+                options.put(option, getConfig().getOptionValue(option.name()));
+        }
+        if (getConfig().isOptionSet("username"))
+            options.put(option("password"), password());
+
+        final AtomicInteger failed = new AtomicInteger();
+        final AtomicInteger status = new AtomicInteger();
+
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(parallel, targets.size())),
+                new NamedThreadFactory("tomcat-cli-target"));
+        CompletionService<PrefixedEnvironment> completion = new ExecutorCompletionService<PrefixedEnvironment>(
+                executor);
+
+        try {
+            for (final String target : targets) {
+                final Map<Option, String> targetOptions = new HashMap<Option, String>(
+                        options);
+                targetOptions.put(option("jmx"), target);
+
+                completion.submit(new Callable<PrefixedEnvironment>() {
+                    @Override
+                    public PrefixedEnvironment call() throws Exception {
+                        PrefixedEnvironment environment = new PrefixedEnvironment(
+                                getConfig().getEnvironment(), "["
+                                        + label(target) + "] ");
+
+                        int s = executeTarget(new CommandConfigImpl(
+                                environment, getConfig().getCommandName(),
+                                getConfig().getArguments(), targetOptions),
+                                label(target));
+                        if (s < 0)
+                            failed.incrementAndGet();
+                        raise(status, s < 0 ? 1 : s);
+
+                        return environment;
+                    }
+                });
+            }
+
+            for (int i = 0; i < targets.size(); i++) {
+                completion.take().get().flush();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CommandException(e);
+        }
+        catch (ExecutionException e) {
+            throw new CommandException(e.getCause());
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        if (failed.get() > 0)
+            log("ERROR: %d of %d targets failed", failed.get(), targets.size());
+
+        // the worst of them
+        setStatus(status.get());
+    }
+
+    /**
+     * @param config
+     *            for a single target
+     * @param label
+     *            of the target
+     * @return the command's exit status, or -1 if it failed
+     */
+    private int executeTarget(CommandConfig config, String label) {
+        AbstractJMXCommand command;
+        try {
+            command = getClass().newInstance();
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        command.targetLabel = label;
+
+        try {
+            command.configure(config);
+            command.execute();
+            return command.getStatus();
+        }
+        catch (Exception e) {
+            if (isDebug())
+                config.getEnvironment().sysout(e);
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            config.getEnvironment().sysout("ERROR: %s", cause.getMessage());
+            return -1;
+        }
+        finally {
+            command.cleanup();
+        }
+    }
+
+    /**
+     * @param status
+     * @param value
+     *            to raise it to, if it's lower
+     */
+    private static void raise(AtomicInteger status, int value) {
+        int current;
+        do {
+            current = status.get();
+        } while (current < value && !status.compareAndSet(current, value));
+    }
+
+    /**
+     * @return every target given by --jmx or --targets, in order
+     * @throws IOException
+     */
+    private List<String> targets() throws IOException {
+        List<String> targets = new ArrayList<String>();
+
+        if (getConfig().isOptionSet("jmx")) {
+            for (String target : getConfig().getOptionValue("jmx").split(",")) {
+                if (!target.trim().isEmpty())
+                    targets.add(target.trim());
+            }
+        }
+
+        if (getConfig().isOptionSet("targets")) {
+            BufferedReader reader = null;
+            try {
+                reader = new BufferedReader(new FileReader(resolve(getConfig()
+                        .getOptionValue("targets"))));
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && !line.startsWith("#"))
+                        targets.add(line);
+                }
+            }
+            finally {
+                IO.close(reader);
+            }
+        }
+
+        return targets;
+    }
+
+    /**
+     * @param target
+     *            a JMX service URL, or host[:port] of an RMI registry
+     * @return the service URL
+     */
+    private static String serviceURL(String target) {
+        if (target.startsWith(SERVICE_URL_PREFIX))
+            return target;
+
+        StringBuilder s = new StringBuilder();
+        s.append(DEFAULT_JMX_PROTOCOL);
+        s.append(target);
+        if (target.indexOf(':') < 0) {
+            s.append(":");
+            s.append(DEFAULT_JMX_PORT);
+        }
+        s.append(DEFAULT_JMX_URI);
+        return s.toString();
+    }
+
+    /**
+     * @param target
+     * @return a short name for the target, e.g. host:port
+     */
+    private static String label(String target) {
+        if (!target.startsWith(SERVICE_URL_PREFIX))
+            return target;
+
+        try {
+            JMXServiceURL url = new JMXServiceURL(target);
+            if (url.getHost().length() > 0) {
+                return url.getPort() > 0 ? url.getHost() + ":" + url.getPort()
+                        : url.getHost();
+            }
+
+            // e.g. /jndi/rmi://host:port/jmxrmi
+            String path = url.getURLPath();
+            int start = path.lastIndexOf("//");
+            if (start > -1) {
+                int end = path.indexOf('/', start + 2);
+                return end > -1 ? path.substring(start + 2, end) : path
+                        .substring(start + 2);
+            }
+        }
+        catch (IOException e) {
+            // not worth failing over
+        }
+        return target;
+    }
+
+    /**
+     * @param name
+     * @return the option declared by this class
+     */
+    private static Option option(String name) {
+        for (Option option : AbstractJMXCommand.class.getAnnotation(
+                Options.class).value()) {
+            if (option.name().equals(name))
+                return option;
+        }
+        throw new IllegalArgumentException(name);
+    }
+
+    /**
+     * @return the password option, or the one the user types in
+     */
+    private String password() {
+        if (getConfig().isOptionSet("password"))
+            return getConfig().getOptionValue("password");
+
+        return Arrays.toString(getConfig().getEnvironment().readPrompt(
+                "Please enter the JMX password: "));
+    }
+
     /**
      * @return
      */
@@ -290,17 +908,8 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
 
         if (getConfig().isOptionSet("username")) {
 
-            String password;
-            if (getConfig().isOptionSet("password")) {
-                password = getConfig().getOptionValue("password");
-            }
-            else {
-                password = Arrays.toString(getConfig().getEnvironment()
-                        .readPrompt("Please enter the JMX password: "));
-            }
-
             String[] pair = new String[] {
-                    getConfig().getOptionValue("username"), password
+                    getConfig().getOptionValue("username"), password()
             };
             environment.put(JMXConnector.CREDENTIALS, pair);
         }
@@ -312,6 +921,59 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
         return environment;
     }
 
+    /**
+     * @param name
+     * @param defaultValue
+     * @return the option's duration in milliseconds
+     */
+    private long duration(String name, String defaultValue) {
+        String value = defaultValue;
+        if (getConfig().isOptionSet(name))
+            value = getConfig().getOptionValue(name);
+        return DateTime.parseDuration(value);
+    }
+
+    /**
+     * @param pid
+     * @return the local connector address, once the agent is loaded
+     */
+    private String inject(String pid) {
+        try {
+            VirtualMachine machine = VirtualMachine.attach(pid);
+            String javaHome = machine.getSystemProperties().getProperty(
+                    "java.home");
+
+            if (machine.getAgentProperties().contains(
+                    LOCAL_CONNECTOR_ADDRESS)) {
+                log("WARN: Local management agent already installed...");
+            }
+
+            String agent = javaHome + File.separator + "lib"
+                    + File.separator + "management-agent.jar";
+
+            machine.loadAgent(agent);
+            return machine.getAgentProperties().getProperty(
+                    LOCAL_CONNECTOR_ADDRESS);
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * @param pid
+     * @return the address found for the process by an earlier run, or null
+     */
+    private String cachedAddress(String pid) {
+        String address = ConnectorAddressCache.getInstance().get(pid);
+        if (address != null) {
+            cachedPid = pid;
+            if (isDebug())
+                log("Using cached connector address for PID: " + pid);
+        }
+        return address;
+    }
+
     /**
      * @return
      * @throws IOException
@@ -319,69 +981,64 @@ public abstract class AbstractJMXCommand extends AbstractCommand {
     private String serviceURL() throws IOException {
         String serviceURL;
 
-        // use the manually provided service url
-        if (getConfig().isOptionSet("url")) {
-            serviceURL = getConfig().getOptionValue("url");
+        // use the manually provided service url, or host:port
+        if (!targets.isEmpty()) {
+            serviceURL = serviceURL(targets.get(0));
         }
 
         // use the local connector in the given process
         else if (getConfig().isOptionSet("pid")) {
-            int pid = Integer.parseInt(getConfig().getOptionValue("pid"));
-            serviceURL = ConnectorAddressLink.importFrom(pid);
-            if (serviceURL == null)
-                throw new RuntimeException(
-                        "JMX local connector not found in PID: " + pid);
+            String pid = getConfig().getOptionValue("pid");
+            serviceURL = cachedAddress(pid);
+            if (serviceURL == null) {
+                serviceURL = ConnectorAddressLink.importFrom(Integer
+                        .parseInt(pid));
+                if (serviceURL == null)
+                    throw new RuntimeException(
+                            "JMX local connector not found in PID: " + pid);
+                ConnectorAddressCache.getInstance().put(pid, serviceURL);
+            }
         }
 
         // inject a process with the management agent
         else if (getConfig().isOptionSet("inject")) {
             String pid = getConfig().getOptionValue("inject");
 
-            try {
-                VirtualMachine machine = VirtualMachine.attach(pid);
-                String javaHome = machine.getSystemProperties().getProperty(
-                        "java.home");
+            // the agent stays loaded, so once is enough
+            serviceURL = cachedAddress(pid);
 
-                if (machine.getAgentProperties().contains(
-                        LOCAL_CONNECTOR_ADDRESS)) {
-                    log("WARN: Local management agent already installed...");
-                }
-
-                String agent = javaHome + File.separator + "lib"
-                        + File.separator + "management-agent.jar";
-
-                machine.loadAgent(agent);
-                serviceURL = machine.getAgentProperties().getProperty(
-                        LOCAL_CONNECTOR_ADDRESS);
-            }
-            catch (Exception e) {
-                throw new RuntimeException(e.getMessage(), e.getCause());
+            if (serviceURL == null) {
+                serviceURL = inject(pid);
+                ConnectorAddressCache.getInstance().put(pid, serviceURL);
             }
         }
 
-        // guess which process to use
+        // guess which process to use, by instance name if there's one
         else if (getConfig().isOptionSet("guess")) {
-            List<VirtualMachineDescriptor> descriptors = VirtualMachine.list();
-            List<String> tomcats = new ArrayList<String>();
-            for (VirtualMachineDescriptor vmd : descriptors) {
-                if (vmd.displayName().startsWith(CATALINA_BOOTSTRAP)) {
-                    tomcats.add(vmd.id());
+            String name = getConfig().getOptionValue("guess");
+
+            List<Discovery.Instance> tomcats = new ArrayList<Discovery.Instance>();
+            for (Discovery.Instance tomcat : new Discovery(
+                    Discovery.DEFAULT_TIMEOUT).discover()) {
+                if (name.isEmpty() || name.equals(tomcat.getName())) {
+                    tomcats.add(tomcat);
                 }
             }
 
             if (tomcats.size() != 1) {
                 throw new RuntimeException("Expected 1 virtual machine, found "
-                        + tomcats.size() + " PIDs: " + tomcats);
+                        + tomcats.size() + ": " + tomcats);
             }
 
-            try {
-                VirtualMachine machine = VirtualMachine.attach(tomcats.get(0));
-                serviceURL = machine.getAgentProperties().getProperty(
-                        LOCAL_CONNECTOR_ADDRESS);
-            }
-            catch (Exception e) {
-                throw new RuntimeException(e.getMessage(), e.getCause());
+            Discovery.Instance tomcat = tomcats.get(0);
+            if (tomcat.getAddress() == null) {
+                throw new RuntimeException("JMX connector not found in PID: "
+                        + tomcat.getPid() + ", try --inject");
             }
+
+            // it may well have come from the cache
+            cachedPid = tomcat.getPid();
+            serviceURL = tomcat.getAddress();
         }
 
         else {
@@ -46,6 +46,11 @@ public interface Command {
      */
     void execute() throws CommandException;
 
+    /**
+     * @return the exit status of the last execution, 0 if it succeeded
+     */
+    int getStatus();
+
     /**
      * @param message
      */
@@ -17,22 +17,42 @@
 
 package org.pidster.tomcat.util.cli;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.net.MalformedURLException;
+import java.net.Socket;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Properties;
 import java.util.ServiceLoader;
 
 import org.pidster.tomcat.util.cli.impl.ConsoleUIImpl;
+import org.pidster.tomcat.util.cli.impl.Daemon;
+import org.pidster.tomcat.util.cli.jmx.ConnectionPool;
+import org.pidster.tomcat.util.cli.monitor.ScreenBuffer;
+import org.pidster.tomcat.util.cli.util.IO;
 
 /**
+ * Runs a command, or with --daemon, stays running to serve commands for
+ * later calls. If a daemon is running, commands are passed to it rather than
+ * being run here.
+ * 
  * @author pidster
  * 
  */
 public class Console {
 
+    private static final String DAEMON = "--daemon";
+
     /**
      * @param arguments
      */
@@ -42,8 +62,20 @@ public class Console {
             if (arguments == null)
                 arguments = new String[0];
 
+            // Try this first, it's what skips all of the work below
+            if (!Arrays.asList(arguments).contains(DAEMON)) {
+                Integer status = forward(arguments);
+                if (status != null)
+                    System.exit(status);
+            }
+
             modifyClassLoader();
 
+            if (Arrays.asList(arguments).contains(DAEMON)) {
+                new Daemon().run();
+                return;
+            }
+
             ConsoleUI consoleUI = new ConsoleUIImpl();
 
             // load services
@@ -51,7 +83,17 @@ public class Console {
 
             consoleUI.register(loader);
 
-            consoleUI.process(arguments);
+            int status;
+            try {
+                status = consoleUI.process(arguments);
+            }
+            finally {
+                // JMX connections are kept open between commands, until now
+                ConnectionPool.getInstance().close();
+            }
+
+            if (status != 0)
+                System.exit(status);
 
         }
         catch (Throwable e) {
@@ -59,6 +101,116 @@ public class Console {
         }
     }
 
+    /**
+     * Passes the command to the daemon, if there's one running, and writes
+     * out what it sends back.
+     * 
+     * @param arguments
+     * @return the command's exit status, or null if there's no daemon to run
+     *         it
+     */
+    private static Integer forward(String[] arguments) {
+
+        // The daemon can't prompt for anything
+        if (Arrays.asList(arguments).contains(Daemon.INTERACTIVE)
+                || Daemon.asksForPassword(Arrays.asList(arguments)))
+            return null;
+
+        File file = Daemon.file();
+        if (!file.isFile())
+            return null;
+
+        Properties properties = new Properties();
+        InputStream in = null;
+        Socket socket = null;
+        try {
+            in = new FileInputStream(file);
+            properties.load(in);
+
+            socket = new Socket("127.0.0.1", Integer.parseInt(properties
+                    .getProperty(Daemon.PORT)));
+        }
+        catch (Exception e) {
+            // not running, or not ours
+            return null;
+        }
+        finally {
+            IO.close(in);
+        }
+
+        try {
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), Daemon.ENCODING));
+            writer.print(properties.getProperty(Daemon.SECRET) + "\n");
+            writer.print(arguments.length + "\n");
+            for (String argument : arguments) {
+                writer.print(argument + "\n");
+            }
+
+            // paths and the screen are ours, not the daemon's
+            int[] size = ScreenBuffer.terminalSize();
+            writer.print(new File("").getAbsolutePath() + "\n");
+            writer.print(size[0] + "\n");
+            writer.print(size[1] + "\n");
+            writer.flush();
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), Daemon.ENCODING));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(Daemon.OUTPUT)) {
+                    System.out.println(line.substring(Daemon.OUTPUT.length()));
+                }
+                else if (line.startsWith(Daemon.PRINT)) {
+                    System.out.print(unescape(line.substring(Daemon.PRINT
+                            .length())));
+                    System.out.flush();
+                }
+                else if (line.startsWith(Daemon.EXIT)) {
+                    System.out.flush();
+                    return Integer.valueOf(line.substring(Daemon.EXIT
+                            .length()));
+                }
+            }
+
+            System.err.println("The daemon went away before the command finished");
+            return Integer.valueOf(1);
+        }
+        catch (IOException e) {
+            System.err.println("Lost the daemon: " + e.getMessage());
+            return Integer.valueOf(1);
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @param line
+     *            printed by the daemon
+     * @return the text, with its new lines back
+     */
+    private static String unescape(String line) {
+        StringBuilder s = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '\\' && i + 1 < line.length()) {
+                c = line.charAt(++i);
+                s.append(c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+            }
+            else {
+                s.append(c);
+            }
+        }
+        return s.toString();
+    }
+
     /**
      * @throws MalformedURLException
      */
@@ -30,7 +30,8 @@ public interface ConsoleUI {
 
     /**
      * @param arguments
+     * @return the exit status of the last command, 0 if it succeeded
      */
-    void process(String[] arguments);
+    int process(String[] arguments);
 
 }
\ No newline at end of file
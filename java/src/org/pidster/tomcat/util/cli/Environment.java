@@ -17,6 +17,8 @@
 
 package org.pidster.tomcat.util.cli;
 
+import java.io.File;
+
 /**
  * @author pidster
  * 
@@ -34,6 +36,19 @@ public interface Environment {
      */
     public abstract void sysout(Throwable throwable);
 
+    /**
+     * Writes text as it is, without formatting or a new line, holding it
+     * until {@link #flush()}, e.g. for a screen drawn with escape codes.
+     * 
+     * @param text
+     */
+    public abstract void print(CharSequence text);
+
+    /**
+     * Writes anything printed and not yet written.
+     */
+    public abstract void flush();
+
     /**
      * @return the prompt
      */
@@ -51,4 +66,23 @@ public interface Environment {
      */
     public abstract String[] readPrompt(String prompt);
 
+    /**
+     * @param path
+     *            as the user typed it
+     * @return the file, relative to the user's working directory if the path
+     *         is relative
+     */
+    public abstract File resolve(String path);
+
+    /**
+     * @return rows and columns of the user's terminal, or zeros if they
+     *         aren't known
+     */
+    public abstract int[] getTerminalSize();
+
+    /**
+     * @return true if the user has gone away, so there's no point carrying on
+     */
+    public abstract boolean isClosed();
+
 }
\ No newline at end of file
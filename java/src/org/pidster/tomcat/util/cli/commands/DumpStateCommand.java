@@ -36,11 +36,10 @@ public class DumpStateCommand extends AbstractJMXCommand {
      * (non-Javadoc)
      * 
      * @see
-     * org.pidster.tomcat.util.cli.AbstractCommand#execute(org.pidster.tomcat
-     * .util.cli .Environment)
+     * org.pidster.tomcat.util.cli.AbstractJMXCommand#executeInternal()
      */
     @Override
-    public void execute() {
+    protected void executeInternal() {
 
         StringBuilder s = new StringBuilder();
 
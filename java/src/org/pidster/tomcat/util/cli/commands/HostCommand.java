@@ -57,11 +57,10 @@ public class HostCommand extends StatusCommand {
      * (non-Javadoc)
      * 
      * @see
-     * org.pidster.tomcat.util.cli.AbstractCommand#execute(org.apache.tomcat.
-     * util.cli .Environment)
+     * org.pidster.tomcat.util.cli.AbstractJMXCommand#executeInternal()
      */
     @Override
-    public void execute() throws CommandException {
+    protected void executeInternal() throws CommandException {
 
         try {
             if (getConfig().getArguments().isEmpty()) {
@@ -114,7 +113,7 @@ public class HostCommand extends StatusCommand {
      * @throws CommandException
      */
     protected void handleMethodResult(Object obj) throws CommandException {
-        super.execute();
+        super.executeInternal();
     }
 
 }
@@ -17,47 +17,941 @@
 
 package org.pidster.tomcat.util.cli.commands;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.MBeanServerDelegate;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
 import org.pidster.tomcat.util.cli.AbstractJMXCommand;
 import org.pidster.tomcat.util.cli.CommandException;
 import org.pidster.tomcat.util.cli.Descriptor;
+import org.pidster.tomcat.util.cli.Environment;
+import org.pidster.tomcat.util.cli.Option;
+import org.pidster.tomcat.util.cli.Options;
 import org.pidster.tomcat.util.cli.Usage;
+import org.pidster.tomcat.util.cli.monitor.Alert;
+import org.pidster.tomcat.util.cli.monitor.Dashboard;
+import org.pidster.tomcat.util.cli.monitor.Exporter;
+import org.pidster.tomcat.util.cli.monitor.Histogram;
+import org.pidster.tomcat.util.cli.monitor.MetricGroup;
+import org.pidster.tomcat.util.cli.monitor.MetricStore;
+import org.pidster.tomcat.util.cli.monitor.Recorder;
+import org.pidster.tomcat.util.cli.monitor.Recording;
+import org.pidster.tomcat.util.cli.monitor.Rollup;
+import org.pidster.tomcat.util.cli.monitor.Rule;
+import org.pidster.tomcat.util.cli.monitor.ScreenBuffer;
+import org.pidster.tomcat.util.cli.monitor.Sample;
+import org.pidster.tomcat.util.cli.monitor.Sampler;
+import org.pidster.tomcat.util.cli.monitor.Series;
+import org.pidster.tomcat.util.cli.monitor.Throttle;
+import org.pidster.tomcat.util.cli.monitor.Ticker;
+import org.pidster.tomcat.util.cli.monitor.Timeline;
+import org.pidster.tomcat.util.cli.monitor.TimelineListener;
+import org.pidster.tomcat.util.cli.util.DateTime;
+import org.pidster.tomcat.util.cli.util.IO;
 
 /**
  * @author pidster
  * 
  */
-@Usage(description = "Monitor properties of a server in real time")
+@Usage(syntax = "[connector|webapp|servlet|executor|threadpool|datasource|manager|gc|memory|threads...]", description = "Monitor properties of a server in real time")
 @Descriptor(name = "monitor")
+@Options({
+        @Option(name = "interval", single = 'I', setter = true, description = "Sample this often, e.g. 5s, default 1s"),
+        @Option(name = "count", single = 'n', setter = true, description = "Stop after this many samples"),
+        @Option(name = "memory", single = 'M', setter = true, description = "Keep no more history than fits in this, e.g. 200m, default 64m"),
+        @Option(name = "record", single = 'R', setter = true, description = "Append every sample to this file"),
+        @Option(name = "replay", single = 'y', setter = true, description = "Show a recorded file instead of a server"),
+        @Option(name = "speed", single = 'S', setter = true, description = "Replay this many times faster than recorded, default as fast as possible"),
+        @Option(name = "budget", single = 'B', setter = true, description = "Poll less often, or less, to keep polling under this share of the time, e.g. 10%"),
+        @Option(name = "alert", single = 'a', setter = true, description = "Alert when a rule holds, e.g. \"executor.active / executor.max > 0.9 for 30s\", separate rules with ;"),
+        @Option(name = "hook", single = 'k', setter = true, description = "Run this command on each alert and carry on, instead of stopping at the first"),
+        @Option(name = "listen", single = 'l', setter = true, description = "Serve the latest sample as OpenMetrics on this port, e.g. 9404 or 0.0.0.0:9404")
+})
 public class MonitorCommand extends AbstractJMXCommand {
 
+    private static final String DEFAULT_INTERVAL = "1s";
+
+    private static final String DEFAULT_MEMORY = "64m";
+
+    private static final int TIMELINE_SIZE = 100;
+
+    private static final int TIMELINE_ROWS = 8;
+
+    private static final int ALERTED = 2;
+
+    private final Set<ObjectName> modules = new HashSet<ObjectName>();
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+
+    private final List<Alert> alerts = new ArrayList<Alert>();
+
+    private String hook;
+
+    private Exporter exporter;
+
     /*
      * (non-Javadoc)
      * 
-     * @see
-     * org.pidster.tomcat.util.cli.AbstractCommand#execute(org.pidster.tomcat
-     * .util.cli .Environment)
+     * @see org.pidster.tomcat.util.cli.AbstractJMXCommand#isOffline()
      */
     @Override
-    public void execute() throws CommandException {
+    protected boolean isOffline() {
+        return getConfig().isOptionSet("replay");
+    }
 
-        if (getConfig().getArguments().size() > 0) {
-            String action = getConfig().getArguments().get(0);
-            log("Monitor: " + action);
-        }
-        else {
-            log("Monitor: ???");
-        }
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.AbstractJMXCommand#isMultiTarget()
+     */
+    @Override
+    protected boolean isMultiTarget() {
+        // one screen, one --record file and one --listen port
+        return false;
+    }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.AbstractJMXCommand#usesTopology()
+     */
+    @Override
+    protected boolean usesTopology() {
+        // queries again whenever something is deployed, for hours
+        return true;
     }
 
     /*
      * (non-Javadoc)
      * 
-     * @see org.pidster.tomcat.util.cli.AbstractCommand#cleanup()
+     * @see
+     * org.pidster.tomcat.util.cli.AbstractJMXCommand#executeInternal()
      */
     @Override
-    public void cleanup() {
-        super.cleanup();
+    protected void executeInternal() throws CommandException {
+
+        String interval = DEFAULT_INTERVAL;
+        if (getConfig().isOptionSet("interval"))
+            interval = getConfig().getOptionValue("interval");
+
+        long period;
+        try {
+            period = DateTime.parseDuration(interval);
+        }
+        catch (IllegalArgumentException e) {
+            throw new CommandException(e.getMessage());
+        }
+        if (period <= 0)
+            throw new CommandException("Invalid interval: " + interval);
+
+        long count = -1;
+        if (getConfig().isOptionSet("count")) {
+            String value = getConfig().getOptionValue("count");
+            try {
+                count = Long.parseLong(value.trim());
+            }
+            catch (NumberFormatException e) {
+                count = 0;
+            }
+            if (count <= 0)
+                throw new CommandException("Invalid count: " + value);
+        }
+
+        String memory = DEFAULT_MEMORY;
+        if (getConfig().isOptionSet("memory"))
+            memory = getConfig().getOptionValue("memory");
+
+        long size;
+        try {
+            size = parseSize(memory);
+        }
+        catch (NumberFormatException e) {
+            size = 0;
+        }
+        if (size <= 0)
+            throw new CommandException("Invalid memory: " + memory);
+
+        // a recording's interval isn't known yet, so allow for the finest
+        long least = MetricStore.minimum(isOffline() ? 1 : period);
+        if (size < least)
+            throw new CommandException("Invalid memory: " + memory
+                    + ", history needs at least " + (least + 1023) / 1024
+                    + "k");
+
+        double speed = 0;
+        if (getConfig().isOptionSet("speed")) {
+            String value = getConfig().getOptionValue("speed");
+            try {
+                speed = Double.parseDouble(value.trim());
+            }
+            catch (NumberFormatException e) {
+                speed = 0;
+            }
+            if (!(speed > 0) || Double.isInfinite(speed))
+                throw new CommandException("Invalid speed: " + value);
+        }
+
+        double budget = 0;
+        if (getConfig().isOptionSet("budget")) {
+            String value = getConfig().getOptionValue("budget");
+            try {
+                budget = parseShare(value);
+            }
+            catch (NumberFormatException e) {
+                budget = 0;
+            }
+            // a share of the time, which polls can't be given all of
+            if (!(budget > 0 && budget < 1))
+                throw new CommandException("Invalid budget: " + value);
+        }
+
+        rules.clear();
+        try {
+            if (getConfig().isOptionSet("alert"))
+                rules.addAll(Rule.parse(getConfig().getOptionValue("alert")));
+        }
+        catch (IllegalArgumentException e) {
+            throw new CommandException(e.getMessage());
+        }
+        hook = getConfig().getOptionValue("hook");
+
+        try {
+            if (getConfig().isOptionSet("listen"))
+                exporter = new Exporter(Exporter.parseAddress(getConfig()
+                        .getOptionValue("listen")));
+
+            if (isOffline()) {
+                replay(getConfig().getOptionValue("replay"), speed, count,
+                        size);
+            }
+            else {
+                Throttle throttle = null;
+                if (budget > 0)
+                    throttle = new Throttle(budget, period, lowest());
+                monitor(period, count, size, getConfig().getOptionValue(
+                        "record"), throttle);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        catch (MalformedObjectNameException e) {
+            throw new CommandException(e);
+        }
+        catch (IOException e) {
+            throw new CommandException(e);
+        }
+        finally {
+            IO.close(exporter);
+            exporter = null;
+        }
+    }
+
+    /**
+     * @param interval
+     *            in milliseconds
+     * @param count
+     *            of samples, or -1 to carry on
+     * @param memory
+     *            for history, in bytes
+     * @param record
+     *            the file to record to, or null
+     * @param throttle
+     *            to keep polling within a budget, or null
+     * @throws IOException
+     * @throws MalformedObjectNameException
+     * @throws InterruptedException
+     */
+    private void monitor(long interval, long count, long memory,
+            String record, Throttle throttle) throws IOException,
+            MalformedObjectNameException, InterruptedException {
+
+        modules.clear();
+
+        List<MetricGroup> groups = groups(getConfig().getArguments());
+        int priority = throttle == null ? Integer.MAX_VALUE : throttle
+                .getPriority();
+        List<Series> series = series(groups, priority);
+        if (series.isEmpty()) {
+            log("Nothing to monitor");
+            return;
+        }
+
+        // Events are sent to us, only the counters need polling
+        Timeline timeline = new Timeline(TIMELINE_SIZE);
+        TimelineListener listener = new TimelineListener(timeline, groups);
+        subscribe(Collections.singleton(MBeanServerDelegate.DELEGATE_NAME),
+                listener, null);
+        subscribe(query(TimelineListener.GC_PATTERN), listener,
+                TimelineListener.gcFilter());
+        subscribeModules(listener);
+
+        MetricStore store = MetricStore.create(memory, interval, series.size());
+
+        Sampler sampler = new Sampler(series, store);
+        Map<String, Histogram> histograms = new HashMap<String, Histogram>();
+        Dashboard dashboard = new Dashboard(series, sampler.getColumns(),
+                histograms);
+        bind(series, sampler.getColumns());
+        Ticker ticker = new Ticker(interval);
+        ScreenBuffer terminal = terminal();
+
+        Recorder recorder = null;
+        long recorded = 0;
+        try {
+            if (record != null) {
+                recorder = new Recorder(resolve(record));
+                recorder.session(System.currentTimeMillis(), getServerInfo(),
+                        interval);
+                recorder.define(series, sampler.getColumns());
+            }
+
+            boolean stop = false;
+            for (long n = 0; !stop && !isClosed()
+                    && (count < 0 || n < count); n++) {
+                if (n > 0) {
+                    long skipped = ticker.await();
+                    if (skipped > 0)
+                        timeline.add("skipped " + skipped + " samples, polling took too long");
+                }
+
+                // Something was deployed or undeployed, or dropped
+                boolean changed = listener.takeChanged();
+                if (throttle != null && throttle.getPriority() != priority) {
+                    priority = throttle.getPriority();
+                    changed = true;
+                }
+
+                if (changed) {
+                    series = series(groups, priority);
+                    sampler = new Sampler(series, store);
+                    dashboard = new Dashboard(series, sampler.getColumns(),
+                            histograms);
+                    bind(series, sampler.getColumns());
+                    subscribeModules(listener);
+                    if (store.size() == store.getColumns())
+                        timeline.add("out of memory for history, new series are not shown");
+                    if (recorder != null)
+                        recorder.define(series, sampler.getColumns());
+                }
+
+                Sample current = null;
+                IOException failure = null;
+                try {
+                    current = sampler.sample(batch());
+                    dashboard.record(store, current.getSequence());
+                    if (exporter != null)
+                        exporter.publish(store, current);
+                    stop = check(store, current.getSequence(), timeline);
+                    if (throttle != null)
+                        throttle(throttle, current, groups, ticker, timeline);
+                }
+                catch (IOException e) {
+                    // keep trying, the server may come back
+                    timeline.add("poll failed: " + e.getMessage());
+                    failure = e;
+                }
+
+                if (recorder != null && current != null) {
+                    recorded = record(recorder, timeline, recorded);
+                    recorder.sample(store, current, ticker.getSkipped());
+                }
+
+                draw(terminal, screen(getServerInfo(), System.currentTimeMillis(),
+                        ticker.getInterval(), ticker.getSkipped(),
+                        cost(throttle, interval), store, current, failure,
+                        dashboard, timeline));
+            }
+        }
+        finally {
+            IO.close(recorder);
+        }
+    }
+
+    /**
+     * Shows a recording, sample by sample.
+     * 
+     * @param path
+     * @param speed
+     *            times faster than recorded, or 0 for as fast as possible
+     * @param count
+     *            of samples, or -1 for all of them
+     * @param memory
+     *            for history, in bytes
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void replay(String path, double speed, long count, long memory)
+            throws IOException, InterruptedException {
+
+        Recording recording = new Recording(resolve(path));
+        try {
+            Timeline timeline = new Timeline(TIMELINE_SIZE);
+            ScreenBuffer terminal = terminal();
+            List<Series> series = new ArrayList<Series>();
+            List<Integer> sources = new ArrayList<Integer>();
+            String serverInfo = null;
+            long interval = 1;
+
+            MetricStore store = null;
+            Map<String, Histogram> histograms = new HashMap<String, Histogram>();
+            Dashboard dashboard = null;
+            int[] columns = new int[0];
+
+            long previous = 0;
+            long shown = 0;
+            int type;
+            while ((count < 0 || shown < count) && !isClosed()
+                    && (type = recording.next()) != Recording.END) {
+
+                switch (type) {
+                    case Recording.SESSION:
+                        serverInfo = recording.getServerInfo();
+                        interval = Math.max(1, recording.getInterval());
+                        series.clear();
+                        sources.clear();
+                        store = null;
+                        histograms.clear();
+                        dashboard = null;
+                        break;
+
+                    case Recording.SERIES:
+                        // from a group this version doesn't know about
+                        if (recording.getSeries() == null)
+                            break;
+                        series.add(recording.getSeries());
+                        sources.add(Integer.valueOf(recording.getColumn()));
+                        dashboard = null;
+                        break;
+
+                    case Recording.EVENT:
+                        timeline.add(recording.getTime(), recording.getEvent());
+                        break;
+
+                    case Recording.SAMPLE:
+                        if (store == null)
+                            store = MetricStore.create(memory, interval,
+                                    series.size());
+
+                        if (dashboard == null) {
+                            int[] mapped = new int[series.size()];
+                            for (int i = 0; i < mapped.length; i++) {
+                                mapped[i] = store.intern(series.get(i)
+                                        .toString(), series.get(i).isCounter());
+                            }
+                            columns = columns(sources, mapped);
+                            dashboard = new Dashboard(series, mapped,
+                                    histograms);
+                            bind(series, mapped);
+                        }
+
+                        long time = recording.getTime();
+                        long sequence = store.append(time);
+                        int n = Math.min(columns.length, recording.getColumns());
+                        for (int c = 0; c < n; c++) {
+                            store.put(columns[c], recording.get(c));
+                        }
+                        dashboard.record(store, sequence);
+                        boolean stop = check(store, sequence, timeline);
+
+                        if (speed > 0 && previous > 0 && time > previous)
+                            Thread.sleep((long) ((time - previous) / speed));
+                        previous = time;
+
+                        Sample sample = new Sample(time, sequence,
+                                recording.getDuration(),
+                                recording.getRequests());
+                        if (exporter != null)
+                            exporter.publish(store, sample);
+                        draw(terminal, screen(serverInfo, time, interval,
+                                recording.getSkipped(), null, store, sample,
+                                null, dashboard, timeline));
+                        shown++;
+                        if (stop)
+                            return;
+                        break;
+                }
+            }
+        }
+        finally {
+            IO.close(recording);
+        }
+    }
+
+    /**
+     * @return a buffer the size of the user's terminal, if it's known
+     */
+    private ScreenBuffer terminal() {
+        int[] size = getConfig().getEnvironment().getTerminalSize();
+        return new ScreenBuffer(size[0], size[1]);
+    }
+
+    /**
+     * Writes only what changed since the last screen, in one go.
+     * 
+     * @param terminal
+     * @param screen
+     */
+    private void draw(ScreenBuffer terminal, String screen) {
+        Environment environment = getConfig().getEnvironment();
+        environment.print(terminal.update(screen));
+        environment.flush();
+    }
+
+    /**
+     * @param series
+     * @param columns
+     *            where each series is in the store
+     */
+    private void bind(List<Series> series, int[] columns) {
+        for (Rule rule : rules) {
+            rule.bind(series, columns);
+        }
+        if (exporter != null)
+            exporter.bind(series, columns);
+    }
+
+    /**
+     * Checks the rules against the latest sample, and raises any alerts.
+     * 
+     * @param store
+     * @param sequence
+     * @param timeline
+     * @return true if an alert should stop the monitor
+     */
+    private boolean check(MetricStore store, long sequence, Timeline timeline) {
+        if (rules.isEmpty())
+            return false;
+
+        alerts.clear();
+        for (Rule rule : rules) {
+            rule.evaluate(store, sequence, alerts);
+        }
+        if (alerts.isEmpty())
+            return false;
+
+        setStatus(ALERTED);
+        for (Alert alert : alerts) {
+            timeline.add(alert.getTime(), "ALERT " + alert);
+            if (hook != null)
+                hook(hook, resolve("."), alert, timeline);
+        }
+        return hook == null;
+    }
+
+    /**
+     * Runs the hook for an alert without waiting for it, the output and exit
+     * status go on the timeline.
+     * 
+     * @param command
+     * @param directory
+     *            to run it in, the user's
+     * @param alert
+     * @param timeline
+     */
+    private static void hook(String command, File directory,
+            final Alert alert, final Timeline timeline) {
+        boolean windows = System.getProperty("os.name", "").startsWith(
+                "Windows");
+        ProcessBuilder builder = windows ? new ProcessBuilder("cmd", "/c",
+                command) : new ProcessBuilder("sh", "-c", command);
+        builder.directory(directory);
+        builder.redirectErrorStream(true);
+
+        Map<String, String> environment = builder.environment();
+        environment.put("TOMCAT_CLI_RULE", alert.getRule().toString());
+        environment.put("TOMCAT_CLI_GROUP", alert.getRule().getGroup()
+                .getName());
+        environment.put("TOMCAT_CLI_INSTANCE", alert.getInstance());
+        environment.put("TOMCAT_CLI_VALUE", String.valueOf(alert.getValue()));
+        environment.put("TOMCAT_CLI_TIME", String.valueOf(alert.getTime()));
+
+        final Process process;
+        try {
+            process = builder.start();
+        }
+        catch (IOException e) {
+            timeline.add("hook failed: " + e.getMessage());
+            return;
+        }
+
+        Thread waiter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(process.getInputStream()));
+                try {
+                    // it mustn't block on a full pipe
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        timeline.add("hook: " + line);
+                    }
+                    timeline.add("hook exited " + process.waitFor() + " for "
+                            + alert.getInstance());
+                }
+                catch (IOException e) {
+                    timeline.add("hook failed: " + e.getMessage());
+                }
+                catch (InterruptedException e) {
+                    process.destroy();
+                }
+                finally {
+                    IO.close(reader);
+                }
+            }
+        }, "tomcat-cli-hook");
+        waiter.setDaemon(true);
+        waiter.start();
+    }
+
+    /**
+     * Lets the throttle see the poll, and applies what it decides.
+     * 
+     * @param throttle
+     * @param sample
+     * @param groups
+     * @param ticker
+     * @param timeline
+     * @throws IOException
+     */
+    private void throttle(Throttle throttle, Sample sample,
+            List<MetricGroup> groups, Ticker ticker, Timeline timeline)
+            throws IOException {
+
+        // what it would cost to bring back the next priority
+        int restore = 0;
+        int priority = throttle.getPriority();
+        if (priority < lowest())
+            restore = requests(groups, priority + 1)
+                    - requests(groups, priority);
+
+        if (throttle.update(sample.getDuration(), sample.getRequests(),
+                restore)) {
+            StringBuilder change = new StringBuilder(throttle.getChange());
+            int changed = Math.max(priority, throttle.getPriority());
+            if (throttle.getPriority() != priority) {
+                for (MetricGroup group : groups) {
+                    if (group.getPriority() == changed) {
+                        change.append(" ");
+                        change.append(group.getName());
+                    }
+                }
+            }
+            timeline.add(change.toString());
+            ticker.setInterval(throttle.getInterval());
+        }
+    }
+
+    /**
+     * @param throttle
+     *            or null
+     * @param interval
+     *            asked for
+     * @return e.g. "cost 4% of 10%", or null
+     */
+    private static String cost(Throttle throttle, long interval) {
+        if (throttle == null)
+            return null;
+
+        StringBuilder s = new StringBuilder("cost ");
+        if (Double.isNaN(throttle.getCost()))
+            s.append("-");
+        else
+            s.append(String.format("%.0f%%", throttle.getCost() * 100));
+        s.append(String.format(" of %.0f%%", throttle.getBudget() * 100));
+        if (throttle.isThrottled()) {
+            s.append(" (throttled from ");
+            s.append(DateTime.formatUptime(interval).trim());
+            if (throttle.getPriority() < lowest()) {
+                s.append(", priority ");
+                s.append(throttle.getPriority());
+            }
+            s.append(")");
+        }
+        return s.toString();
+    }
+
+    /**
+     * @param recorder
+     * @param timeline
+     * @param from
+     *            the first event not yet recorded
+     * @return the next event to record
+     * @throws IOException
+     */
+    private long record(Recorder recorder, Timeline timeline, long from)
+            throws IOException {
+        long to = timeline.getCount();
+        for (long i = from; i < to; i++) {
+            String event = timeline.getEvent(i);
+            if (event != null)
+                recorder.event(timeline.getTime(i), event);
+        }
+        return to;
+    }
+
+    /**
+     * @param sources
+     *            each series' column in the recording
+     * @param mapped
+     *            each series' column in the store
+     * @return the store's column for each of the recording's columns, or -1
+     */
+    private static int[] columns(List<Integer> sources, int[] mapped) {
+        int size = 0;
+        for (Integer source : sources) {
+            size = Math.max(size, source.intValue() + 1);
+        }
+
+        int[] columns = new int[size];
+        Arrays.fill(columns, -1);
+        for (int i = 0; i < mapped.length; i++) {
+            columns[sources.get(i).intValue()] = mapped[i];
+        }
+        return columns;
+    }
+
+    /**
+     * @param names
+     *            of groups, all of them if empty
+     * @return the groups to monitor
+     */
+    private List<MetricGroup> groups(List<String> names) {
+        List<MetricGroup> groups = new ArrayList<MetricGroup>();
+        for (MetricGroup group : MetricGroup.defaults()) {
+            if (names.isEmpty() || names.contains(group.getName())
+                    || watched(group))
+                groups.add(group);
+        }
+        return groups;
+    }
+
+    /**
+     * Listens to webapps which haven't been listened to yet.
+     * 
+     * @param listener
+     * @throws IOException
+     */
+    private void subscribeModules(TimelineListener listener)
+            throws IOException {
+        Set<ObjectName> added = new HashSet<ObjectName>(
+                query(TimelineListener.WEBMODULE_PATTERN));
+        added.removeAll(modules);
+        modules.addAll(added);
+        subscribe(added, listener, TimelineListener.stateFilter());
+    }
+
+    /**
+     * @return the lowest priority of any group, the highest number
+     */
+    private static int lowest() {
+        int lowest = 0;
+        for (MetricGroup group : MetricGroup.defaults()) {
+            lowest = Math.max(lowest, group.getPriority());
+        }
+        return lowest;
+    }
+
+    /**
+     * @param groups
+     * @param priority
+     *            the lowest to include
+     * @return the number of MBeans, so requests, it takes to poll them
+     * @throws IOException
+     */
+    private int requests(List<MetricGroup> groups, int priority)
+            throws IOException {
+        Set<ObjectName> names = new HashSet<ObjectName>();
+        for (MetricGroup group : groups) {
+            if (group.getPriority() <= priority)
+                names.addAll(query(group.getPattern()));
+        }
+        return names.size();
+    }
+
+    /**
+     * @param groups
+     * @param priority
+     *            the lowest to include
+     * @return a series for every metric of every MBean in the groups, and
+     *         any other attributes the rules need
+     * @throws IOException
+     */
+    private List<Series> series(List<MetricGroup> groups, int priority)
+            throws IOException {
+        List<Series> series = new ArrayList<Series>();
+        for (MetricGroup group : groups) {
+            // a rule's group is never dropped
+            if (group.getPriority() > priority && !watched(group))
+                continue;
+
+            List<MetricGroup.Metric> extras = extras(group);
+            for (ObjectName name : query(group.getPattern())) {
+                series.addAll(group.series(name));
+                for (MetricGroup.Metric extra : extras) {
+                    series.add(new Series(group, group.instance(name), name,
+                            extra));
+                }
+            }
+        }
+        return series;
+    }
+
+    /**
+     * @param group
+     * @return true if a rule is about the group
+     */
+    private boolean watched(MetricGroup group) {
+        for (Rule rule : rules) {
+            if (rule.getGroup() == group)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param group
+     * @return the attributes rules need which the group doesn't sample
+     */
+    private List<MetricGroup.Metric> extras(MetricGroup group) {
+        List<MetricGroup.Metric> extras = new ArrayList<MetricGroup.Metric>();
+        Set<String> names = new HashSet<String>();
+        for (Rule rule : rules) {
+            if (rule.getGroup() != group)
+                continue;
+            for (MetricGroup.Metric extra : rule.getExtras()) {
+                if (names.add(extra.getName()))
+                    extras.add(extra);
+            }
+        }
+        return extras;
+    }
+
+    /**
+     * @param size
+     *            e.g. 64m, 1g or 65536
+     * @return the size in bytes
+     */
+    private static long parseSize(String size) {
+        String value = size.trim().toLowerCase();
+        long multiplier = 1;
+        if (value.endsWith("k"))
+            multiplier = 1024;
+        else if (value.endsWith("m"))
+            multiplier = 1024 * 1024;
+        else if (value.endsWith("g"))
+            multiplier = 1024 * 1024 * 1024;
+
+        if (multiplier > 1)
+            value = value.substring(0, value.length() - 1);
+        long number = Long.parseLong(value.trim());
+        if (number > Long.MAX_VALUE / multiplier)
+            throw new NumberFormatException(size);
+        return number * multiplier;
+    }
+
+    /**
+     * @param share
+     *            e.g. 10% or 0.1
+     * @return the share, as a fraction
+     */
+    private static double parseShare(String share) {
+        String value = share.trim();
+        if (value.endsWith("%"))
+            return Double.parseDouble(value.substring(0, value.length() - 1)) / 100;
+        return Double.parseDouble(value);
+    }
+
+    /**
+     * @param serverInfo
+     * @param time
+     *            of the screen
+     * @param interval
+     *            in milliseconds
+     * @param skipped
+     *            ticks so far
+     * @param cost
+     *            of polling, or null
+     * @param store
+     * @param sample
+     *            or null if the poll failed
+     * @param failure
+     *            or null
+     * @param dashboard
+     * @param timeline
+     * @return the screen
+     */
+    private static String screen(String serverInfo, long time, long interval,
+            long skipped, String cost, MetricStore store, Sample sample,
+            Exception failure, Dashboard dashboard, Timeline timeline) {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+
+        StringBuilder s = new StringBuilder();
+        s.append(serverInfo);
+        s.append("  ");
+        s.append(format.format(new Date(time)));
+        s.append("  every ");
+        s.append(DateTime.formatUptime(interval).trim());
+        if (sample != null) {
+            s.append("  poll ");
+            s.append(sample.getDuration() / 1000000);
+            s.append("ms/");
+            s.append(sample.getRequests());
+            s.append(" requests");
+        }
+        s.append("  skipped ");
+        s.append(skipped);
+        if (cost != null) {
+            s.append("  ");
+            s.append(cost);
+        }
+        s.append("  history ");
+        s.append(DateTime.formatUptime(store.getRows() * interval).trim());
+        List<Rollup> tiers = store.getTiers();
+        if (!tiers.isEmpty()) {
+            // the coarsest reaches furthest
+            Rollup tier = tiers.get(tiers.size() - 1);
+            s.append(", ");
+            s.append(DateTime.formatUptime(tier.getSpan()).trim());
+            s.append(" at ");
+            s.append(DateTime.formatUptime(tier.getResolution()).trim());
+        }
+        s.append("/");
+        s.append(store.getBudget() / (1024 * 1024));
+        s.append("MB");
+        s.append("\n");
+
+        if (failure != null) {
+            s.append("ERROR: ");
+            s.append(failure.getMessage());
+            s.append("\n");
+        }
+        s.append("\n");
+
+        if (sample != null)
+            dashboard.render(s, store, sample.getSequence());
+
+        s.append("EVENTS\n");
+        for (String event : timeline.recent(TIMELINE_ROWS)) {
+            s.append(event);
+            s.append("\n");
+        }
+        return s.toString();
     }
 
 }
@@ -18,11 +18,14 @@
 package org.pidster.tomcat.util.cli.commands;
 
 import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.TreeSet;
 
 import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanInfo;
 import javax.management.MBeanServerConnection;
+import javax.management.ObjectInstance;
 import javax.management.ObjectName;
 import javax.management.QueryExp;
 
@@ -31,6 +34,8 @@ import org.pidster.tomcat.util.cli.Descriptor;
 import org.pidster.tomcat.util.cli.Option;
 import org.pidster.tomcat.util.cli.Options;
 import org.pidster.tomcat.util.cli.Usage;
+import org.pidster.tomcat.util.cli.jmx.AttributeMap;
+import org.pidster.tomcat.util.cli.jmx.MetadataCache;
 
 /**
  * @author pidster
@@ -41,7 +46,8 @@ import org.pidster.tomcat.util.cli.Usage;
 @Options({
         @Option(name = "domain", single = 'd', description = "Limit domain"),
         @Option(name = "type", single = 't', description = "Limit type"),
-        @Option(name = "query", single = 'q', description = "Raw query ")
+        @Option(name = "query", single = 'q', description = "Raw query "),
+        @Option(name = "cache", single = 'C', description = "Keep MBean metadata on disk between runs")
 })
 public class QueryJMXCommand extends AbstractJMXCommand {
 
@@ -49,11 +55,10 @@ public class QueryJMXCommand extends AbstractJMXCommand {
      * (non-Javadoc)
      * 
      * @see
-     * org.pidster.tomcat.util.cli.AbstractCommand#execute(org.pidster.tomcat
-     * .util.cli .Environment)
+     * org.pidster.tomcat.util.cli.AbstractJMXCommand#executeInternal()
      */
     @Override
-    public void execute() {
+    protected void executeInternal() {
 
         StringBuilder s = new StringBuilder();
 
@@ -98,7 +103,23 @@ public class QueryJMXCommand extends AbstractJMXCommand {
                         }
                     });
 
-            names.addAll(connection.queryNames(name, query));
+            // The class names come for free with the names, and are all
+            // that's needed to find cached metadata
+            Map<ObjectName, ObjectInstance> instances = new HashMap<ObjectName, ObjectInstance>();
+            if (isVerbose()) {
+                for (ObjectInstance instance : connection.queryMBeans(name,
+                        query)) {
+                    instances.put(instance.getObjectName(), instance);
+                }
+                names.addAll(instances.keySet());
+            }
+            else {
+                names.addAll(connection.queryNames(name, query));
+            }
+
+            boolean cache = getConfig().isOptionSet("cache");
+            if (cache)
+                MetadataCache.getInstance().load(version());
 
             for (ObjectName obj : names) {
                 s.append(" ");
@@ -107,17 +128,36 @@ public class QueryJMXCommand extends AbstractJMXCommand {
 
                 if (isVerbose()) {
                     try {
-                        MBeanInfo info = connection.getMBeanInfo(obj);
-                        for (MBeanAttributeInfo mbai : info.getAttributes()) {
+                        MBeanInfo info = info(instances.get(obj));
+                        MBeanAttributeInfo[] mbais = info.getAttributes();
+
+                        String[] attributeNames = new String[mbais.length];
+                        for (int i = 0; i < mbais.length; i++) {
+                            attributeNames[i] = mbais[i].getName();
+                        }
+
+                        AttributeMap attributes = attributes(obj,
+                                attributeNames);
+
+                        for (String attributeName : attributeNames) {
                             s.append("   - ");
-                            s.append(mbai.getName());
+                            s.append(attributeName);
                             s.append("=");
-                            try {
-                                s.append(connection.getAttribute(obj,
-                                        mbai.getName()));
+                            if (attributes.containsKey(attributeName)) {
+                                s.append(attributes.get(attributeName));
+                            }
+                            else if (isDebug()) {
+                                // ask again, just to find out why
+                                try {
+                                    s.append(connection.getAttribute(obj,
+                                            attributeName));
+                                }
+                                catch (Exception e) {
+                                    s.append("ERROR: " + e.getMessage());
+                                }
                             }
-                            catch (Exception e) {
-                                s.append("ERROR: " + e.getMessage());
+                            else {
+                                s.append("ERROR: unavailable");
                             }
                             s.append("\n");
                         }
@@ -128,6 +168,9 @@ public class QueryJMXCommand extends AbstractJMXCommand {
                     }
                 }
             }
+
+            if (cache)
+                MetadataCache.getInstance().save(version());
         }
         catch (Exception e) {
             log("ERROR" + e.getMessage());
@@ -135,4 +178,28 @@ public class QueryJMXCommand extends AbstractJMXCommand {
 
         log(s.toString());
     }
+
+    /**
+     * @param instance
+     * @return the MBean's info, from the cache if it has been seen before
+     * @throws Exception
+     */
+    private MBeanInfo info(ObjectInstance instance) throws Exception {
+        MetadataCache cache = MetadataCache.getInstance();
+
+        MBeanInfo info = cache.get(version(), instance);
+        if (info == null) {
+            info = getConnection().getMBeanInfo(instance.getObjectName());
+            cache.put(version(), instance, info);
+        }
+
+        return info;
+    }
+
+    /**
+     * @return the version the metadata is cached under
+     */
+    private String version() {
+        return getServerInfo() + "-" + getVmVersion();
+    }
 }
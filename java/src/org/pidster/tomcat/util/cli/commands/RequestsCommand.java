@@ -0,0 +1,252 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.commands;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+
+import javax.management.ObjectName;
+import javax.management.Query;
+
+import org.pidster.tomcat.util.cli.AbstractJMXCommand;
+import org.pidster.tomcat.util.cli.CommandException;
+import org.pidster.tomcat.util.cli.Descriptor;
+import org.pidster.tomcat.util.cli.Option;
+import org.pidster.tomcat.util.cli.Options;
+import org.pidster.tomcat.util.cli.Usage;
+import org.pidster.tomcat.util.cli.jmx.AttributeMap;
+import org.pidster.tomcat.util.cli.jmx.BulkFetcher;
+import org.pidster.tomcat.util.cli.util.DateTime;
+
+/**
+ * Lists the requests being served right now which have taken longer than a
+ * threshold, each with the stack of the worker thread serving it, to see
+ * what a hung request is stuck on.
+ * 
+ * The server picks out the slow requests with a query, so only their
+ * processors' attributes are fetched, however many idle workers there are:
+ * the query, a batch for the slow processors sent concurrently, then the
+ * thread ids, the thread names, and the stacks of just their workers.
+ * 
+ * @author pidster
+ * 
+ */
+@Usage(description = "List requests in progress for longer than a threshold, with their stacks")
+@Descriptor(name = "requests")
+@Options({
+        @Option(name = "threshold", single = 't', setter = true, description = "List requests running for longer than this, default 5s"),
+        @Option(name = "depth", single = 'e', setter = true, description = "Show this many frames of each stack at most, default all")
+})
+public class RequestsCommand extends AbstractJMXCommand {
+
+    private static final String DEFAULT_THRESHOLD = "5s";
+
+    /**
+     * org.apache.coyote.Constants.STAGE_SERVICE, the request is in the
+     * container
+     */
+    private static final int STAGE_SERVICE = 3;
+
+    private static final String PROCESSOR_PATTERN = "*:type=RequestProcessor,*";
+
+    private static final String[] PROCESSOR_ATTRIBUTES = new String[] {
+            "stage", "requestProcessingTime", "method", "currentUri",
+            "currentQueryString", "remoteAddr", "workerThreadName"
+    };
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * org.pidster.tomcat.util.cli.AbstractJMXCommand#executeInternal()
+     */
+    @Override
+    protected void executeInternal() throws CommandException {
+
+        String threshold = DEFAULT_THRESHOLD;
+        if (getConfig().isOptionSet("threshold"))
+            threshold = getConfig().getOptionValue("threshold");
+
+        try {
+            long minimum = DateTime.parseDuration(threshold);
+
+            int depth = Integer.MAX_VALUE;
+            if (getConfig().isOptionSet("depth")) {
+                String value = getConfig().getOptionValue("depth");
+                try {
+                    depth = Integer.parseInt(value.trim());
+                }
+                catch (NumberFormatException e) {
+                    depth = -1;
+                }
+                if (depth < 0)
+                    throw new IllegalArgumentException("Invalid depth: "
+                            + value);
+            }
+
+            // known already, so the total costs nothing
+            int total = query(PROCESSOR_PATTERN).size();
+
+            SortedSet<ObjectName> processors = query(PROCESSOR_PATTERN,
+                    Query.and(Query.eq(Query.attr("stage"),
+                            Query.value(STAGE_SERVICE)), Query.geq(
+                            Query.attr("requestProcessingTime"),
+                            Query.value(minimum))));
+            BulkFetcher.Batch batch = batch();
+            batch.fetch(processors, PROCESSOR_ATTRIBUTES);
+            prefetch(batch);
+
+            // they may have finished since the query
+            final Map<String, AttributeMap> slow = new HashMap<String, AttributeMap>();
+            for (ObjectName processor : processors) {
+                AttributeMap attributes = attributes(processor,
+                        PROCESSOR_ATTRIBUTES);
+                Number stage = attributes.value("stage");
+                Number time = attributes.value("requestProcessingTime");
+                String thread = attributes.value("workerThreadName");
+                if (stage != null && stage.intValue() == STAGE_SERVICE
+                        && time != null && time.longValue() >= minimum
+                        && thread != null)
+                    slow.put(thread, attributes);
+            }
+
+            log(String.format("%d of %d requests in progress for %s or more",
+                    slow.size(), total, threshold));
+            if (slow.isEmpty())
+                return;
+
+            List<String> threads = new ArrayList<String>(slow.keySet());
+            Collections.sort(threads, new Comparator<String>() {
+                @Override
+                public int compare(String one, String two) {
+                    long a = slow.get(one).<Number> value(
+                            "requestProcessingTime").longValue();
+                    long b = slow.get(two).<Number> value(
+                            "requestProcessingTime").longValue();
+                    return a == b ? one.compareTo(two) : (a < b ? 1 : -1);
+                }
+            });
+
+            Map<String, ThreadInfo> stacks = stacks(slow.keySet(), depth);
+
+            log(" time ------------ method - uri ------------------------------------------ client ---------- thread ---------------------------");
+            for (String thread : threads) {
+                AttributeMap request = slow.get(thread);
+                log(String.format(" %-16s %-8s %-46s %-17s %s",
+                        elapsed(request), request.get("method"), uri(request),
+                        request.get("remoteAddr"), thread));
+            }
+
+            for (String thread : threads) {
+                AttributeMap request = slow.get(thread);
+                ThreadInfo info = stacks.get(thread);
+                log(String.format("\n%s %s %s, %s, %s", thread,
+                        request.get("method"), uri(request), elapsed(request),
+                        info == null ? "thread not found" : info
+                                .getThreadState()));
+                if (info == null)
+                    continue;
+                if (info.getLockName() != null)
+                    log(String.format(" LOCK: %s %s %s", info.getLockName(),
+                            info.getLockOwnerId(), info.getLockOwnerName()));
+                for (StackTraceElement ste : info.getStackTrace()) {
+                    log(String.format("\tat %s.%s(%s:%s)", ste.getClassName(),
+                            ste.getMethodName(), ste.getFileName(),
+                            ste.getLineNumber()));
+                }
+            }
+        }
+        catch (IOException e) {
+            throw new CommandException(e.getMessage(), e.getCause());
+        }
+        catch (IllegalArgumentException e) {
+            throw new CommandException(e.getMessage());
+        }
+    }
+
+    /**
+     * Finds the stacks of the threads with these names: names for all the
+     * thread ids without their stacks, then the stacks of only those wanted,
+     * three calls in all.
+     * 
+     * @param names
+     * @param depth
+     * @return thread name to info, for those still alive
+     * @throws IOException
+     */
+    private Map<String, ThreadInfo> stacks(Set<String> names,
+            int depth) throws IOException {
+
+        ThreadMXBean threads = ManagementFactory.newPlatformMXBeanProxy(
+                getConnection(), ManagementFactory.THREAD_MXBEAN_NAME,
+                ThreadMXBean.class);
+
+        ThreadInfo[] all = threads.getThreadInfo(threads.getAllThreadIds(), 0);
+        long[] ids = new long[names.size()];
+        int size = 0;
+        for (ThreadInfo info : all) {
+            if (info != null && names.contains(info.getThreadName())
+                    && size < ids.length)
+                ids[size++] = info.getThreadId();
+        }
+
+        Map<String, ThreadInfo> stacks = new HashMap<String, ThreadInfo>();
+        if (size == 0)
+            return stacks;
+
+        for (ThreadInfo info : threads.getThreadInfo(Arrays.copyOf(ids, size),
+                depth)) {
+            if (info != null)
+                stacks.put(info.getThreadName(), info);
+        }
+        return stacks;
+    }
+
+    /**
+     * @param request
+     * @return how long it's been running
+     */
+    private static String elapsed(AttributeMap request) {
+        Number time = request.value("requestProcessingTime");
+        return DateTime.formatUptime(time.longValue()).trim();
+    }
+
+    /**
+     * @param request
+     * @return the URI, with the query string if there is one
+     */
+    private static String uri(AttributeMap request) {
+        Object query = request.get("currentQueryString");
+        Object uri = request.get("currentUri");
+        if (query == null || "".equals(query))
+            return String.valueOf(uri);
+        return uri + "?" + query;
+    }
+
+}
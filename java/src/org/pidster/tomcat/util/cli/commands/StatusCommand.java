@@ -19,8 +19,12 @@ package org.pidster.tomcat.util.cli.commands;
 
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.SortedSet;
+import java.util.TreeSet;
 
 import javax.management.ObjectName;
 
@@ -30,6 +34,8 @@ import org.pidster.tomcat.util.cli.AbstractJMXCommand;
 import org.pidster.tomcat.util.cli.Option;
 import org.pidster.tomcat.util.cli.Options;
 import org.pidster.tomcat.util.cli.Usage;
+import org.pidster.tomcat.util.cli.jmx.AttributeMap;
+import org.pidster.tomcat.util.cli.jmx.BulkFetcher;
 
 /**
  * @author pidster
@@ -53,29 +59,86 @@ public class StatusCommand extends AbstractJMXCommand {
             "stopped", "started"
     };
 
+    private static final String[] SERVER_ATTRIBUTES = new String[] {
+            "shutdown", "port"
+    };
+
+    private static final String[] RESOURCE_ATTRIBUTES = new String[] {
+            "name", "type"
+    };
+
+    private static final String[] DATASOURCE_ATTRIBUTES = new String[] {
+            "initialSize", "numActive", "maxActive", "numIdle", "minIdle",
+            "maxIdle", "url"
+    };
+
+    private static final String[] ENGINE_ATTRIBUTES = new String[] {
+            "name", "defaultHost", "jvmRoute", "baseDir"
+    };
+
+    private static final String[] CONNECTOR_ATTRIBUTES = new String[] {
+            "address", "port", "protocol", "scheme", "secure", "redirectPort"
+    };
+
+    private static final String[] EXECUTOR_ATTRIBUTES = new String[] {
+            "name", "activeCount", "maxThreads", "minSpareThreads",
+            "queueSize", "poolSize", "corePoolSize", "largestPoolSize"
+    };
+
+    private static final String[] PROCESSOR_ATTRIBUTES = new String[] {
+            "bytesSent", "bytesReceived", "requestCount", "errorCount",
+            "maxTime", "processingTime", "maxRequestUri"
+    };
+
+    private static final String[] HOST_ATTRIBUTES = new String[] {
+            "name", "aliases", "children"
+    };
+
+    private static final String[] WEBAPP_ATTRIBUTES = new String[] {
+            "state", "docBase", "path", "startTime", "startupTime",
+            "tldScanTime"
+    };
+
+    private static final String[] MANAGER_ATTRIBUTES = new String[] {
+            "activeSessions", "sessionCounter", "processingTime"
+    };
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.AbstractJMXCommand#usesTopology()
+     */
+    @Override
+    protected boolean usesTopology() {
+        // a query per service, engine, host, connector and webapp
+        return true;
+    }
+
     /*
      * (non-Javadoc)
      * 
      * @see
-     * org.pidster.tomcat.util.cli.AbstractCommand#execute(org.apache.tomcat.
-     * util.cli .Environment)
+     * org.pidster.tomcat.util.cli.AbstractJMXCommand#executeInternal()
      */
     @Override
-    public void execute() throws CommandException {
+    protected void executeInternal() throws CommandException {
+
+        StringBuilder s = new StringBuilder();
 
         try {
             ObjectName server = query("*:type=Server").first();
 
-            StringBuilder s = new StringBuilder();
+            prefetch(server);
 
             s.append("Server: ");
             s.append(server.getDomain());
 
             if (isVerbose()) {
+                AttributeMap attributes = attributes(server, SERVER_ATTRIBUTES);
                 s.append("[");
-                s.append(attribute(server, "shutdown"));
+                s.append(attributes.get("shutdown"));
                 s.append(">");
-                s.append(attribute(server, "port"));
+                s.append(attributes.get("port"));
                 s.append("]");
             }
 
@@ -86,10 +149,229 @@ public class StatusCommand extends AbstractJMXCommand {
             log(s.toString());
         }
         catch (Exception e) {
-            e.printStackTrace();
+            if (isDebug())
+                e.printStackTrace();
+
+            // Show as much as we got before giving up
+            if (s.length() > 0)
+                log(s.toString());
+
+            log("ERROR: " + e.getMessage());
         }
     }
 
+    /**
+     * Walks the tree breadth first, sending the requests for every MBean at
+     * each level together, so the time taken follows the depth of the tree
+     * rather than the number of MBeans in it. Names come from the topology
+     * index, so a new level is only needed where a name depends on an
+     * attribute. The output is then rendered depth first from the results, in
+     * the usual order.
+     * 
+     * @param server
+     * @throws IOException
+     */
+    private void prefetch(ObjectName server) throws IOException {
+
+        boolean datasources = getConfig().isOptionSet("datasources");
+        boolean connectors = getConfig().isOptionSet("connectors");
+        boolean threads = connectors && getConfig().isOptionSet("threads");
+        boolean webapps = getConfig().isOptionSet("webapps")
+                || getConfig().isOptionSet("webapp");
+
+        String domain = server.getDomain();
+
+        SortedSet<ObjectName> services = query("*:type=Service,*");
+        SortedSet<ObjectName> globals = query(domain
+                + ":type=Resource,resourcetype=Global,*");
+
+        SortedSet<ObjectName> engines = new TreeSet<ObjectName>();
+        for (ObjectName service : services)
+            engines.addAll(query(service.getDomain() + ":type=Engine"));
+
+        // services, engines and global resources
+        BulkFetcher.Batch batch = batch();
+        batch.fetch(services, "name");
+        if (isVerbose())
+            batch.fetch(server, SERVER_ATTRIBUTES);
+        if (datasources)
+            batch.fetch(globals, RESOURCE_ATTRIBUTES);
+        batch.fetch(engines, ENGINE_ATTRIBUTES);
+        prefetch(batch);
+
+        // data sources, hosts, executors and connectors
+        SortedSet<ObjectName> hosts = new TreeSet<ObjectName>();
+        SortedSet<ObjectName> connectorNames = new TreeSet<ObjectName>();
+
+        batch = batch();
+        if (datasources) {
+            for (ObjectName global : globals) {
+                AttributeMap resource = attributes(global, RESOURCE_ATTRIBUTES);
+                batch.fetch(query(dataSourceQuery(domain,
+                        (String) resource.value("name"),
+                        (String) resource.value("type"))),
+                        DATASOURCE_ATTRIBUTES);
+            }
+        }
+        for (ObjectName engine : engines) {
+            String engineName = attributes(engine, ENGINE_ATTRIBUTES).value(
+                    "name");
+            hosts.addAll(query(engineName + ":type=Host,host=*"));
+            if (connectors) {
+                batch.fetch(query(engineName + ":type=Executor,*"),
+                        EXECUTOR_ATTRIBUTES);
+                connectorNames.addAll(query(engineName + ":type=Connector,*"));
+            }
+        }
+        batch.fetch(hosts, HOST_ATTRIBUTES);
+        batch.fetch(connectorNames, CONNECTOR_ATTRIBUTES);
+        prefetch(batch);
+
+        // webapps and protocol handlers
+        SortedSet<ObjectName> protocolHandlers = new TreeSet<ObjectName>();
+
+        batch = batch();
+        for (ObjectName host : hosts) {
+            for (ObjectName webapp : selectedWebapps(host, webapps)) {
+                batch.fetch(webapp, WEBAPP_ATTRIBUTES);
+            }
+        }
+        if (threads) {
+            for (ObjectName connector : connectorNames) {
+                protocolHandlers.addAll(query(protocolHandlerQuery(
+                        connector.getDomain(),
+                        attributes(connector, CONNECTOR_ATTRIBUTES).value(
+                                "port"))));
+            }
+        }
+        batch.fetch(protocolHandlers, "name");
+        prefetch(batch);
+
+        // managers and thread pools
+        SortedSet<ObjectName> threadPools = new TreeSet<ObjectName>();
+
+        batch = batch();
+        for (ObjectName host : hosts) {
+            String hostname = attributes(host, HOST_ATTRIBUTES).value("name");
+            for (ObjectName webapp : selectedWebapps(host, webapps)) {
+                AttributeMap app = attributes(webapp, WEBAPP_ATTRIBUTES);
+                if ("started".equalsIgnoreCase(webappState(app))) {
+                    batch.fetch(query(managerQuery(webapp.getDomain(),
+                            (String) app.value("path"), hostname)),
+                            MANAGER_ATTRIBUTES);
+                }
+            }
+        }
+        for (ObjectName protocolHandler : protocolHandlers) {
+            threadPools.addAll(query(protocolHandler.getDomain()
+                    + ":type=ThreadPool,name="
+                    + attribute(protocolHandler, "name")));
+        }
+        batch.fetch(threadPools, "name");
+        prefetch(batch);
+
+        // request processors
+        batch = batch();
+        for (ObjectName pool : threadPools) {
+            batch.fetch(query(processorQuery(pool.getDomain(),
+                    (String) attribute(pool, "name"))), PROCESSOR_ATTRIBUTES);
+        }
+        prefetch(batch);
+    }
+
+    /**
+     * @param host
+     * @param webapps
+     * @return the webapps of the host, if they are going to be displayed
+     */
+    private List<ObjectName> selectedWebapps(ObjectName host, boolean webapps) {
+        AttributeMap attributes = attributes(host, HOST_ATTRIBUTES);
+        ObjectName[] children = attributes.value("children");
+
+        if (!webapps || children == null
+                || !isSelectedHost((String) attributes.value("name"))) {
+            return Collections.emptyList();
+        }
+
+        return Arrays.asList(children);
+    }
+
+    /**
+     * @param hostname
+     * @return outcome
+     */
+    private boolean isSelectedHost(String hostname) {
+        if (getConfig().isOptionSet("hostname")) {
+            return getConfig().getOptionValue("hostname").equals(hostname);
+        }
+        return true;
+    }
+
+    /**
+     * @param attributes
+     * @return the state of the webapp, in lower case
+     */
+    private String webappState(AttributeMap attributes) {
+
+        // Hacks to get around v6.0 to v7.0 transition
+        Object stateObj = attributes.get("state");
+
+        String appState = "unknown";
+        if (stateObj instanceof Integer) {
+            appState = WEBAPP_STATES[(Integer) stateObj];
+        }
+        else if (stateObj != null && stateObj.getClass().isEnum()) {
+            appState = ((Enum<?>) stateObj).name().toLowerCase();
+        }
+
+        return appState;
+    }
+
+    /**
+     * @param domain
+     * @param name
+     * @param type
+     * @return query
+     */
+    private static String dataSourceQuery(String domain, String name,
+            String type) {
+        return domain + ":type=DataSource,name=\"" + name + "\",class="
+                + type;
+    }
+
+    /**
+     * @param engineName
+     * @param port
+     * @return query
+     */
+    private static String protocolHandlerQuery(String engineName, Object port) {
+        return engineName + ":type=ProtocolHandler,port=" + port;
+    }
+
+    /**
+     * @param engineName
+     * @param path
+     * @param hostname
+     * @return query
+     */
+    private static String managerQuery(String engineName, String path,
+            String hostname) {
+        if (path == null || path.isEmpty())
+            path = "/";
+        return engineName + ":type=Manager,path=" + path + ",host="
+                + hostname;
+    }
+
+    /**
+     * @param engineName
+     * @param poolName
+     * @return query
+     */
+    private static String processorQuery(String engineName, String poolName) {
+        return engineName + ":type=RequestProcessor,worker=" + poolName
+                + ",name=*";
+    }
+
     /**
      * @param server
      * @param s
@@ -109,25 +391,27 @@ public class StatusCommand extends AbstractJMXCommand {
             s.append("\nGlobal Resources:");
             for (ObjectName global : globalResources) {
 
-                String name = attribute(global, "name");
-                String type = attribute(global, "type");
+                AttributeMap resource = attributes(global, RESOURCE_ATTRIBUTES);
+                String name = resource.value("name");
+                String type = resource.value("type");
 
-                String dsq = server.getDomain() + ":type=DataSource,name=\""
-                        + name + "\",class=" + type;
+                String dsq = dataSourceQuery(server.getDomain(), name, type);
 
                 SortedSet<ObjectName> dataSources = query(dsq, null);
                 for (ObjectName ds : dataSources) {
+                    AttributeMap attributes = attributes(ds,
+                            DATASOURCE_ATTRIBUTES);
                     s.append(String
                             .format("\n %-25s[init:%s, now:%s, mxA:%s, idl:%s, mnI:%s, mxI:%s]",
-                                    name, attribute(ds, "initialSize"), 0,
-                                    attribute(ds, "numActive"),
-                                    attribute(ds, "maxActive"),
-                                    attribute(ds, "numIdle"),
-                                    attribute(ds, "minIdle"),
-                                    attribute(ds, "maxIdle")));
+                                    name, attributes.get("initialSize"), 0,
+                                    attributes.get("numActive"),
+                                    attributes.get("maxActive"),
+                                    attributes.get("numIdle"),
+                                    attributes.get("minIdle"),
+                                    attributes.get("maxIdle")));
                     if (isVerbose()) {
                         s.append("\n - ");
-                        s.append(attribute(ds, "url"));
+                        s.append(attributes.get("url"));
                     }
                 }
             }
@@ -177,22 +461,23 @@ public class StatusCommand extends AbstractJMXCommand {
 
         for (ObjectName engine : engines) {
 
-            String engineName = (String) attribute(engine, "name");
+            AttributeMap attributes = attributes(engine, ENGINE_ATTRIBUTES);
+            String engineName = attributes.value("name");
 
             s.append(String.format("\n Engine:%1s", engineName));
 
             s.append(" [");
             s.append("defaultHost=");
-            s.append(attribute(engine, "defaultHost"));
+            s.append(attributes.get("defaultHost"));
 
-            Object jvmRoute = attribute(engine, "jvmRoute");
+            Object jvmRoute = attributes.get("jvmRoute");
             if (jvmRoute != null) {
                 s.append(", jvmRoute=");
                 s.append(jvmRoute);
             }
             if (super.getConfig().isOptionSet("verbose")) {
                 s.append(", baseDir=");
-                s.append(attribute(engine, "baseDir"));
+                s.append(attributes.get("baseDir"));
 
             }
             s.append("]");
@@ -230,25 +515,27 @@ public class StatusCommand extends AbstractJMXCommand {
                 + ":type=Connector,*");
 
         for (ObjectName connector : connectors) {
-            String address = (String) attribute(connector, "address");
-            Integer port = (Integer) attribute(connector, "port");
+            AttributeMap attributes = attributes(connector,
+                    CONNECTOR_ATTRIBUTES);
+            String address = attributes.value("address");
+            Integer port = attributes.value("port");
 
-            SortedSet<ObjectName> protocolHandlers = query(engineName
-                    + ":type=ProtocolHandler,port=" + port);
-            ObjectName protocolHandler = protocolHandlers.first();
-            String name = (String) attribute(protocolHandler, "name");
+            SortedSet<ObjectName> protocolHandlers = query(protocolHandlerQuery(
+                    engineName, port));
+            String name = null;
+            if (!protocolHandlers.isEmpty())
+                name = (String) attribute(protocolHandlers.first(), "name");
 
             s.append(String.format("\n  Connector:%-8s [",
-                    attribute(connector, "protocol")));
+                    attributes.get("protocol")));
 
             if (address == null) {
                 address = "0.0.0.0";
             }
 
             s.append(String.format("%s::%s:%s, secure=%s, redirect=%s]",
-                    attribute(connector, "scheme"), address, port,
-                    attribute(connector, "secure"),
-                    attribute(connector, "redirectPort")));
+                    attributes.get("scheme"), address, port,
+                    attributes.get("secure"), attributes.get("redirectPort")));
 
             if (super.getConfig().isOptionSet("threads")) {
                 SortedSet<ObjectName> threadPools = query(engineName
@@ -271,17 +558,18 @@ public class StatusCommand extends AbstractJMXCommand {
 
             for (ObjectName executor : executors) {
 
-                String name = (String) attribute(executor, "name");
-                int activeCount = (Integer) attribute(executor, "activeCount");
-                int maxThreads = (Integer) attribute(executor, "maxThreads");
-                int minSpareThreads = (Integer) attribute(executor,
-                        "minSpareThreads");
+                AttributeMap attributes = attributes(executor,
+                        EXECUTOR_ATTRIBUTES);
+
+                String name = attributes.value("name");
+                Integer activeCount = attributes.value("activeCount");
+                Integer maxThreads = attributes.value("maxThreads");
+                Integer minSpareThreads = attributes.value("minSpareThreads");
 
-                int queueSize = (Integer) attribute(executor, "queueSize");
-                int poolSize = (Integer) attribute(executor, "poolSize");
-                int corePoolSize = (Integer) attribute(executor, "corePoolSize");
-                int largestPoolSize = (Integer) attribute(executor,
-                        "largestPoolSize");
+                Integer queueSize = attributes.value("queueSize");
+                Integer poolSize = attributes.value("poolSize");
+                Integer corePoolSize = attributes.value("corePoolSize");
+                Integer largestPoolSize = attributes.value("largestPoolSize");
 
                 s.append("\n  Executor: ");
                 s.append(name);
@@ -314,22 +602,22 @@ public class StatusCommand extends AbstractJMXCommand {
                 s.append(name);
                 s.append("]");
 
-                String processorQuery = engine
-                        + ":type=RequestProcessor,worker=" + name + ",name=*";
-
-                SortedSet<ObjectName> processors = query(processorQuery);
+                SortedSet<ObjectName> processors = query(processorQuery(
+                        engine, name));
 
                 s.append("\n   sent ------- recd ----- reqs ---- errors -- maxtime - proctime - maxURI -----------");
                 for (ObjectName rp : processors) {
+                    AttributeMap attributes = attributes(rp,
+                            PROCESSOR_ATTRIBUTES);
                     s.append(String.format(
                             "\n   %-12s %-10s %-9s %-9s %-9s %-9s  %s",
-                            attribute(rp, "bytesSent"),
-                            attribute(rp, "bytesReceived"),
-                            attribute(rp, "requestCount"),
-                            attribute(rp, "errorCount"),
-                            attribute(rp, "maxTime"),
-                            attribute(rp, "processingTime"),
-                            attribute(rp, "maxRequestUri")));
+                            attributes.get("bytesSent"),
+                            attributes.get("bytesReceived"),
+                            attributes.get("requestCount"),
+                            attributes.get("errorCount"),
+                            attributes.get("maxTime"),
+                            attributes.get("processingTime"),
+                            attributes.get("maxRequestUri")));
                 }
             }
         }
@@ -352,18 +640,22 @@ public class StatusCommand extends AbstractJMXCommand {
 
         for (ObjectName host : hosts) {
 
-            String hostname = (String) attribute(host, "name");
+            AttributeMap attributes = attributes(host, HOST_ATTRIBUTES);
+            String hostname = attributes.value("name");
 
-            if (getConfig().isOptionSet("hostname")) {
-                if (!getConfig().getOptionValue("hostname").equals(hostname))
-                    continue;
-            }
+            if (!isSelectedHost(hostname))
+                continue;
 
             s.append("\n  Host:");
             s.append(hostname);
 
-            String[] aliases = (String[]) attribute(host, "aliases");
-            ObjectName[] webapps = (ObjectName[]) attribute(host, "children");
+            String[] aliases = attributes.value("aliases");
+            ObjectName[] webapps = attributes.value("children");
+
+            if (aliases == null)
+                aliases = new String[0];
+            if (webapps == null)
+                webapps = new ObjectName[0];
 
             if (super.getConfig().isOptionSet("verbose")) {
                 s.append("\n   Aliases[");
@@ -423,16 +715,9 @@ public class StatusCommand extends AbstractJMXCommand {
 
         for (ObjectName webapp : webapps) {
 
-            // Hacks to get around v6.0 to v7.0 transition
-            Object stateObj = attribute(webapp, "state");
+            AttributeMap attributes = attributes(webapp, WEBAPP_ATTRIBUTES);
 
-            String appState = "unknown";
-            if (stateObj instanceof Integer) {
-                appState = WEBAPP_STATES[(Integer) stateObj];
-            }
-            else if (stateObj.getClass().isEnum()) {
-                appState = ((Enum<?>) stateObj).name().toLowerCase();
-            }
+            String appState = webappState(attributes);
 
             if ("stopped".equalsIgnoreCase(appState)) {
                 appState = appState + "!";
@@ -440,7 +725,7 @@ public class StatusCommand extends AbstractJMXCommand {
 
             String path = "";
             String started = "";
-            String docBase = (String) attribute(webapp, "docBase");
+            String docBase = attributes.value("docBase");
 
             if (getConfig().isOptionSet("webapp")) {
                 if (!getConfig().getOptionValue("webapp").equals(docBase))
@@ -460,31 +745,35 @@ public class StatusCommand extends AbstractJMXCommand {
 
             if ("STARTED".equalsIgnoreCase(appState)) {
                 appState = "ok";
-                path = (String) attribute(webapp, "path");
-                Long startTime = (Long) attribute(webapp, "startTime");
+                path = attributes.value("path");
+                Long startTime = attributes.value("startTime");
                 started = sdf.format(new Date(startTime));
 
                 if (path.isEmpty())
                     path = "/";
 
-                String query = engineName + ":type=Manager,path=" + path
-                        + ",host=" + hostname;
+                SortedSet<ObjectName> managers = query(managerQuery(engineName,
+                        path, hostname));
+
+                if (!managers.isEmpty()) {
+                    AttributeMap sessions = attributes(managers.first(),
+                            MANAGER_ATTRIBUTES);
 
-                SortedSet<ObjectName> managers = query(query);
-                ObjectName manager = managers.first();
+                    activeSessions = String.valueOf(sessions
+                            .get("activeSessions"));
+                    totalSessions = String.valueOf(sessions
+                            .get("sessionCounter"));
 
-                activeSessions = String.valueOf(attribute(manager,
-                        "activeSessions"));
-                totalSessions = String.valueOf(attribute(manager,
-                        "sessionCounter"));
+                    processingTime = String.valueOf(sessions
+                            .get("processingTime"));
+                }
 
-                processingTime = String.valueOf(attribute(manager,
-                        "processingTime"));
+                Long startup = attributes.value("startupTime");
+                Long tldScan = attributes.value("tldScanTime");
 
-                startupTime = attribute(webapp, "startupTime") + "ms";
-                tldScanTime = attribute(webapp, "tldScanTime") + "ms";
-                initTime = ((Long) attribute(webapp, "startupTime") + (Long) attribute(
-                        webapp, "tldScanTime")) + "ms";
+                startupTime = startup + "ms";
+                tldScanTime = tldScan + "ms";
+                initTime = (startup + tldScan) + "ms";
 
             }
 
@@ -35,11 +35,10 @@ public class TestJMXCommand extends AbstractJMXCommand {
      * (non-Javadoc)
      * 
      * @see
-     * org.pidster.tomcat.util.cli.AbstractCommand#execute(org.pidster.tomcat
-     * .util.cli .Environment)
+     * org.pidster.tomcat.util.cli.AbstractJMXCommand#executeInternal()
      */
     @Override
-    public void execute() {
+    protected void executeInternal() {
         log("- TEST EXEC ----------------------------------------------------------------- \n");
     }
 
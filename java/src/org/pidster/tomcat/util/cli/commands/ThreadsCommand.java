@@ -17,36 +17,112 @@
 
 package org.pidster.tomcat.util.cli.commands;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.lang.management.ManagementFactory;
 import java.lang.management.ThreadInfo;
 import java.lang.management.ThreadMXBean;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import javax.management.JMException;
+import javax.management.JMRuntimeException;
+import javax.management.ObjectName;
 
 import org.pidster.tomcat.util.cli.AbstractJMXCommand;
 import org.pidster.tomcat.util.cli.CommandException;
 import org.pidster.tomcat.util.cli.Descriptor;
+import org.pidster.tomcat.util.cli.Option;
+import org.pidster.tomcat.util.cli.Options;
 import org.pidster.tomcat.util.cli.Usage;
+import org.pidster.tomcat.util.cli.threads.Contention;
+import org.pidster.tomcat.util.cli.threads.FlameGraph;
+import org.pidster.tomcat.util.cli.threads.StackTrie;
+import org.pidster.tomcat.util.cli.threads.ThreadDump;
+import org.pidster.tomcat.util.cli.util.DateTime;
+import org.pidster.tomcat.util.cli.util.IO;
 
 /**
  * @author pidster
  * 
  */
-@Usage(syntax = "deadlocked | monitorlocked | id <id>", description = "Get data about threads")
+@Usage(syntax = "deadlocked | monitorlocked | id <id> | hot | profile | contention | watchdog", description = "Get data about threads")
 @Descriptor(name = "threads")
+@Options({
+        @Option(name = "window", single = 'w', setter = true, description = "Measure hot threads or contention over this long, default 5s"),
+        @Option(name = "top", single = 't', setter = true, description = "Show this many hot threads or locks, default 10"),
+        @Option(name = "hz", single = 'z', setter = true, description = "Profile this many times a second, default 20, or sample contention, default 10"),
+        @Option(name = "duration", single = 'D', setter = true, description = "Profile for this long, default 60s"),
+        @Option(name = "depth", single = 'e', setter = true, description = "Profile this many frames of each stack at most, default 64"),
+        @Option(name = "match", single = 'm', setter = true, description = "Profile threads whose names match this, default Tomcat's workers, .*-exec-\\d+"),
+        @Option(name = "interval", single = 'I', setter = true, description = "Check for deadlocks this often, default 10s"),
+        @Option(name = "count", single = 'n', setter = true, description = "Stop after this many deadlock checks"),
+        @Option(name = "output", single = 'O', setter = true, description = "Write the profile to this, plus .folded and .svg, default threads-profile, the wait-for graph, plus .dot, or deadlock dumps, plus the time and .txt, default threads-deadlock")
+})
 public class ThreadsCommand extends AbstractJMXCommand {
 
+    private static final String DEFAULT_WINDOW = "5s";
+
+    private static final int DEFAULT_TOP = 10;
+
+    private static final String DEFAULT_HZ = "20";
+
+    private static final String DEFAULT_DURATION = "60s";
+
+    private static final String DEFAULT_CONTENTION_HZ = "10";
+
+    /**
+     * Samples are timed to the millisecond, and no server could keep up
+     */
+    private static final double MAX_HZ = 1000;
+
+    private static final int DEFAULT_DEPTH = 64;
+
+    private static final String DEFAULT_MATCH = ".*-exec-\\d+";
+
+    private static final String DEFAULT_OUTPUT = "threads-profile";
+
+    private static final String DEFAULT_INTERVAL = "10s";
+
+    private static final String DEFAULT_DUMP = "threads-deadlock";
+
+    private static final int DEADLOCKED = 2;
+
+    /**
+     * How often the profiler looks for threads which have started or stopped
+     */
+    private static final long REFRESH = 5000000000L;
+
+    private static final String ENCODING = "UTF-8";
+
+    private static final String[] BULK_SIGNATURE = { long[].class.getName() };
+
+    /**
+     * Whether the target can read the times of many threads in one call,
+     * null until it's been asked
+     */
+    private Boolean bulk;
+
     /*
      * (non-Javadoc)
      * 
      * @see
-     * org.pidster.tomcat.util.cli.AbstractCommand#execute(org.pidster.tomcat
-     * .util.cli .Environment)
+     * org.pidster.tomcat.util.cli.AbstractJMXCommand#executeInternal()
      */
     @Override
-    public void execute() throws CommandException {
+    protected void executeInternal() throws CommandException {
 
         try {
             ThreadMXBean threads = ManagementFactory.newPlatformMXBeanProxy(
@@ -85,6 +161,18 @@ public class ThreadsCommand extends AbstractJMXCommand {
                             Integer.parseInt(threadId), Integer.MAX_VALUE);
                     displayThreadId(info);
                 }
+                else if ("hot".equalsIgnoreCase(param)) {
+                    displayHotThreads(threads);
+                }
+                else if ("profile".equalsIgnoreCase(param)) {
+                    profile(threads);
+                }
+                else if ("contention".equalsIgnoreCase(param)) {
+                    displayContention(threads);
+                }
+                else if ("watchdog".equalsIgnoreCase(param)) {
+                    watchdog(threads);
+                }
 
             }
             else {
@@ -95,6 +183,12 @@ public class ThreadsCommand extends AbstractJMXCommand {
         catch (IOException e) {
             throw new CommandException(e.getMessage(), e.getCause());
         }
+        catch (IllegalArgumentException e) {
+            throw new CommandException(e.getMessage());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
     }
 
@@ -183,9 +277,532 @@ public class ThreadsCommand extends AbstractJMXCommand {
                     info.getLockOwnerId(), info.getLockOwnerName()));
         }
 
-        StackTraceElement[] elements = info.getStackTrace();
         log(String.format("\nStackTrace: %s", info.getThreadName()));
-        for (StackTraceElement ste : elements) {
+        logStackTrace(info);
+    }
+
+    /**
+     * Measures the CPU time each thread uses over a window, like top -H, and
+     * shows the stacks of the busiest. Times are read for all threads at
+     * once at each end of the window, so the window is the same for all of
+     * them, and a thread started during it is counted from zero.
+     * 
+     * @param threads
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void displayHotThreads(ThreadMXBean threads) throws IOException,
+            InterruptedException {
+
+        if (!threads.isThreadCpuTimeSupported()) {
+            log("INFO: Thread CPU time is not supported by the server.");
+            return;
+        }
+
+        String window = DEFAULT_WINDOW;
+        if (getConfig().isOptionSet("window"))
+            window = getConfig().getOptionValue("window");
+
+        int top = DEFAULT_TOP;
+        if (getConfig().isOptionSet("top"))
+            top = Integer.parseInt(getConfig().getOptionValue("top"));
+
+        long millis = DateTime.parseDuration(window);
+        if (millis <= 0)
+            throw new IllegalArgumentException("Invalid window: " + window);
+
+        bulk = null;
+
+        // each sample is timed at the middle of its call
+        long before = System.nanoTime();
+        long[] startIds = threads.getAllThreadIds();
+        long[] startCpu = getCpuTimes(threads, startIds, false);
+        long[] startUser = getCpuTimes(threads, startIds, true);
+        long start = (before + System.nanoTime()) / 2;
+
+        Thread.sleep(millis);
+
+        before = System.nanoTime();
+        long[] ids = threads.getAllThreadIds();
+        long[] cpu = getCpuTimes(threads, ids, false);
+        long[] user = getCpuTimes(threads, ids, true);
+        long elapsed = (before + System.nanoTime()) / 2 - start;
+
+        Map<Long, Integer> started = new HashMap<Long, Integer>();
+        for (int i = 0; i < startIds.length; i++)
+            started.put(startIds[i], i);
+
+        final double[] cpuUsed = new double[ids.length];
+        double[] userUsed = new double[ids.length];
+        Integer[] order = new Integer[ids.length];
+        double total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            order[i] = i;
+            // -1 means the thread has died, or times are disabled
+            if (cpu[i] < 0)
+                continue;
+            Integer j = started.get(ids[i]);
+            long cpu0 = j == null ? 0 : Math.max(startCpu[j], 0);
+            long user0 = j == null ? 0 : Math.max(startUser[j], 0);
+            cpuUsed[i] = Math.max(cpu[i] - cpu0, 0) * 100d / elapsed;
+            // the two are read a moment apart, user can't be more than all
+            userUsed[i] = user[i] < 0 ? 0 : Math.min(cpuUsed[i],
+                    Math.max(user[i] - user0, 0) * 100d / elapsed);
+            total += cpuUsed[i];
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer one, Integer two) {
+                return Double.compare(cpuUsed[two], cpuUsed[one]);
+            }
+        });
+
+        int shown = Math.min(Math.max(top, 0), ids.length);
+        long[] hotIds = new long[shown];
+        for (int i = 0; i < shown; i++)
+            hotIds[i] = ids[order[i]];
+
+        // one call for all the stacks, taken as the window closes
+        ThreadInfo[] infos = threads.getThreadInfo(hotIds, Integer.MAX_VALUE);
+
+        log(String.format("Hot threads over %s: %.1f%% CPU in all, top %d of %d",
+                window, total, shown,
+                ids.length));
+        log(" id -- cpu% --- user% -- state --------- thread name -----------------------------------------------");
+        for (int i = 0; i < shown; i++) {
+            if (infos[i] == null)
+                continue;
+            log(String.format(" %-5d %-8.1f %-8.1f %-15s %-60s", hotIds[i],
+                    cpuUsed[order[i]], userUsed[order[i]],
+                    infos[i].getThreadState(), infos[i].getThreadName()));
+        }
+
+        for (int i = 0; i < shown; i++) {
+            if (infos[i] == null || cpuUsed[order[i]] == 0)
+                continue;
+            log(String.format("\nStackTrace: %s (%.1f%% CPU)",
+                    infos[i].getThreadName(), cpuUsed[order[i]]));
+            logStackTrace(infos[i]);
+        }
+    }
+
+    /**
+     * Samples the stacks of the matching threads, a fixed number of times a
+     * second, and writes them as folded text and a flame graph. Each sample
+     * is one getThreadInfo call for just those threads, to a bounded depth,
+     * so the cost to the server is a stack walk of each and a small reply;
+     * the list of threads is only looked up again every few seconds.
+     * 
+     * @param threads
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void profile(ThreadMXBean threads) throws IOException,
+            InterruptedException {
+
+        double hz = Double.parseDouble(getConfig().isOptionSet("hz") ? getConfig()
+                .getOptionValue("hz") : DEFAULT_HZ);
+        long duration = DateTime.parseDuration(getConfig().isOptionSet(
+                "duration") ? getConfig().getOptionValue("duration")
+                : DEFAULT_DURATION);
+        int depth = getConfig().isOptionSet("depth") ? Integer
+                .parseInt(getConfig().getOptionValue("depth")) : DEFAULT_DEPTH;
+        Pattern match = Pattern.compile(getConfig().isOptionSet("match") ? getConfig()
+                .getOptionValue("match") : DEFAULT_MATCH);
+        String output = perTarget(getConfig().isOptionSet("output") ? getConfig()
+                .getOptionValue("output") : DEFAULT_OUTPUT);
+
+        if (hz <= 0 || duration <= 0 || depth <= 0)
+            throw new IllegalArgumentException(
+                    "hz, duration and depth must be more than 0");
+        if (hz > MAX_HZ)
+            throw new IllegalArgumentException("hz can't be more than "
+                    + (int) MAX_HZ);
+
+        log(String.format("Profiling threads matching %s at %s Hz for %s...",
+                match.pattern(), hz, DateTime.formatUptime(duration).trim()));
+
+        StackTrie trie = new StackTrie();
+        long period = (long) (1000000000L / hz);
+        long start = System.nanoTime();
+        long end = start + duration * 1000000L;
+        long refreshed = 0;
+        long[] ids = null;
+        int samples = 0;
+        int late = 0;
+        long cost = 0;
+
+        // a frame more than wanted, to tell a stack which was cut short
+        int frames = depth < Integer.MAX_VALUE ? depth + 1 : depth;
+
+        long next = start;
+        while (next < end) {
+            long now = System.nanoTime();
+            if (ids == null || now - refreshed > REFRESH) {
+                ids = findThreads(threads, match);
+                refreshed = now;
+            }
+
+            if (ids.length > 0) {
+                ThreadInfo[] infos = threads.getThreadInfo(ids, frames);
+                cost += System.nanoTime() - now;
+                samples++;
+                for (ThreadInfo info : infos) {
+                    if (info == null)
+                        continue;
+                    StackTraceElement[] stack = info.getStackTrace();
+                    if (stack.length > depth)
+                        trie.add(Arrays.copyOf(stack, depth), true);
+                    else if (stack.length > 0)
+                        trie.add(stack, false);
+                }
+            }
+
+            next += period;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+            }
+            else {
+                // don't try to catch up, that would only add load
+                late++;
+                next = System.nanoTime();
+            }
+        }
+
+        if (trie.getSamples() == 0) {
+            log("INFO: No threads matched " + match.pattern());
+            return;
+        }
+
+        File folded = resolve(output + ".folded");
+        File svg = resolve(output + ".svg");
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(folded), ENCODING));
+            trie.writeFolded(out);
+            out.close();
+
+            out = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(svg), ENCODING));
+            new FlameGraph(trie, String.format("%d samples of %s", samples,
+                    match.pattern())).write(out);
+        }
+        finally {
+            IO.close(out);
+        }
+
+        log(String.format(
+                "%d samples, %d stacks, %d late, %.1fms a sample; %d distinct frames, %d nodes",
+                samples, trie.getSamples(), late, samples == 0 ? 0 : cost
+                        / 1000000d / samples, trie.getFrames(), trie
+                        .getNodes()));
+        log("Wrote " + folded + " and " + svg);
+    }
+
+    /**
+     * Samples every thread's state and lock over a window, then ranks the
+     * locks by the time spent waiting for them, with where they were waited
+     * for and the stack of the thread most often holding each. Each sample is
+     * one call for all the threads with just their top frame, and a second
+     * for the stacks of the owners, only when something is waiting.
+     * 
+     * @param threads
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void displayContention(ThreadMXBean threads) throws IOException,
+            InterruptedException {
+
+        String window = getConfig().isOptionSet("window") ? getConfig()
+                .getOptionValue("window") : DEFAULT_WINDOW;
+        long duration = DateTime.parseDuration(window);
+        double hz = Double.parseDouble(getConfig().isOptionSet("hz") ? getConfig()
+                .getOptionValue("hz") : DEFAULT_CONTENTION_HZ);
+        int top = getConfig().isOptionSet("top") ? Integer.parseInt(getConfig()
+                .getOptionValue("top")) : DEFAULT_TOP;
+        int depth = getConfig().isOptionSet("depth") ? Integer
+                .parseInt(getConfig().getOptionValue("depth")) : DEFAULT_DEPTH;
+        Pattern match = getConfig().isOptionSet("match") ? Pattern
+                .compile(getConfig().getOptionValue("match")) : null;
+
+        if (hz <= 0 || duration <= 0 || depth <= 0)
+            throw new IllegalArgumentException(
+                    "hz, window and depth must be more than 0");
+        if (hz > MAX_HZ)
+            throw new IllegalArgumentException("hz can't be more than "
+                    + (int) MAX_HZ);
+
+        if (!threads.isThreadContentionMonitoringEnabled())
+            log("INFO: Contention monitoring is off, times are estimated from samples");
+
+        long period = (long) (1000000000L / hz);
+        Contention contention = new Contention(period / 1000000L);
+        long start = System.nanoTime();
+        long end = start + duration * 1000000L;
+        long refreshed = 0;
+        long[] ids = null;
+
+        long next = start;
+        while (next < end) {
+            long now = System.nanoTime();
+            if (ids == null || now - refreshed > REFRESH) {
+                ids = match == null ? threads.getAllThreadIds() : findThreads(
+                        threads, match);
+                refreshed = now;
+            }
+
+            long[] owners = contention.add(threads.getThreadInfo(ids, 1));
+            if (owners.length > 0)
+                contention.addOwners(threads.getThreadInfo(owners, depth));
+
+            next += period;
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                Thread.sleep(sleep / 1000000L, (int) (sleep % 1000000L));
+            }
+            else {
+                next = System.nanoTime();
+            }
+        }
+
+        List<Contention.Lock> locks = contention.getLocks();
+        log(String.format("Contention over %s: %d samples, %d locks waited for",
+                window, contention.getSamples(), locks.size()));
+        if (locks.isEmpty())
+            return;
+
+        log(" wait ms --- samples - waiters - owner -------------------------- lock -----------------------------");
+        int shown = Math.min(top, locks.size());
+        for (Contention.Lock lock : locks.subList(0, shown)) {
+            String owner = lock.getOwner() == null ? "-" : String.format(
+                    "%s (%d%%)", lock.getOwner(), 100 * lock.getOwnerSamples()
+                            / Math.max(lock.getOwnedSamples(), 1));
+            log(String.format(" %-11.0f %-9d %-9d %-34s %s", lock.getTime(),
+                    lock.getSamples(), lock.getWaiters(), owner, lock.getName()));
+        }
+
+        for (Contention.Lock lock : locks.subList(0, shown)) {
+            log(String.format("\nLock: %s", lock.getName()));
+            if (lock.getSite() != null)
+                log("Waited for at " + lock.getSite());
+            String stack = lock.getOwnerStack();
+            if (stack != null) {
+                int split = stack.indexOf('\n');
+                log("Held by " + stack.substring(0, split) + " at:");
+                log(stack.substring(split + 1, Math.max(split + 1,
+                        stack.length() - 1)));
+            }
+        }
+
+        log(" ");
+        log(" id -- blocked - btime ---- waited -- wtime ---- thread name -----------------------------------------------");
+        int listed = 0;
+        for (Contention.Waiter waiter : contention.getThreads()) {
+            if (listed++ == top || waiter.getBlockedSamples() == 0
+                    && waiter.getBlockedCount() == 0)
+                break;
+            log(String.format(" %-5d %-9d %-10d %-9d %-10d %-60s",
+                    waiter.getId(), waiter.getBlockedCount(),
+                    waiter.getBlockedTime(), waiter.getWaitedCount(),
+                    waiter.getWaitedTime(), waiter.getName()));
+        }
+
+        StringBuilder graph = new StringBuilder();
+        contention.appendGraph(graph);
+        log("\nWait-for graph:");
+        log(graph.toString());
+
+        if (getConfig().isOptionSet("output")) {
+            File dot = resolve(perTarget(getConfig().getOptionValue("output"))
+                    + ".dot");
+            Writer out = null;
+            try {
+                out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(dot), ENCODING));
+                contention.writeDot(out);
+            }
+            finally {
+                IO.close(out);
+            }
+            log("Wrote " + dot);
+        }
+    }
+
+    /**
+     * Checks for deadlocks every so often, and the first time a thread is
+     * seen in one, writes every thread with the monitors and synchronizers
+     * it holds to a file, before a restart loses the evidence. Between
+     * checks there's nothing but a findDeadlockedThreads call, which returns
+     * null while there's nothing to find.
+     * 
+     * @param threads
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void watchdog(ThreadMXBean threads) throws IOException,
+            InterruptedException {
+
+        String interval = getConfig().isOptionSet("interval") ? getConfig()
+                .getOptionValue("interval") : DEFAULT_INTERVAL;
+        long period = DateTime.parseDuration(interval);
+        long count = getConfig().isOptionSet("count") ? Long
+                .parseLong(getConfig().getOptionValue("count")) : -1;
+        String output = perTarget(getConfig().isOptionSet("output") ? getConfig()
+                .getOptionValue("output") : DEFAULT_DUMP);
+
+        if (period <= 0)
+            throw new IllegalArgumentException("Invalid interval: " + interval);
+
+        boolean synchronizers = threads.isSynchronizerUsageSupported();
+        boolean monitors = threads.isObjectMonitorUsageSupported();
+
+        log(String.format("Watching for deadlocks every %s...", interval));
+
+        // the threads in the deadlocks found so far
+        Set<Long> known = new TreeSet<Long>();
+        for (long n = 0; !isClosed() && (count < 0 || n < count); n++) {
+            if (n > 0)
+                Thread.sleep(period);
+
+            long[] ids = synchronizers ? threads.findDeadlockedThreads()
+                    : threads.findMonitorDeadlockedThreads();
+            if (ids == null) {
+                known.clear();
+                continue;
+            }
+
+            Set<Long> found = new TreeSet<Long>();
+            boolean fresh = false;
+            for (long id : ids) {
+                found.add(id);
+                fresh |= !known.contains(id);
+            }
+            // one which was broken, e.g. by an interrupt, can come back
+            known.retainAll(found);
+            if (!fresh)
+                continue;
+
+            ThreadInfo[] all = threads.dumpAllThreads(monitors, synchronizers);
+            File file = newDumpFile(output);
+            Writer out = null;
+            try {
+                out = new BufferedWriter(new OutputStreamWriter(
+                        new FileOutputStream(file), ENCODING));
+                out.write(String.format("Deadlock found at %s in %d threads: %s\n\n",
+                        new Date(), found.size(), found));
+                ThreadDump dump = new ThreadDump(out);
+                // the deadlocked threads first, then the rest
+                for (ThreadInfo info : all) {
+                    if (info != null && found.contains(info.getThreadId()))
+                        dump.write(info);
+                }
+                for (ThreadInfo info : all) {
+                    if (info != null && !found.contains(info.getThreadId()))
+                        dump.write(info);
+                }
+            }
+            finally {
+                IO.close(out);
+            }
+
+            log(String.format("Deadlock found in %d threads, %d new:",
+                    found.size(), found.size() - known.size()));
+            for (ThreadInfo info : all) {
+                if (info != null && found.contains(info.getThreadId())
+                        && !known.contains(info.getThreadId()))
+                    log(String.format(" %-5d %-30s waits for %s held by %s",
+                            info.getThreadId(), info.getThreadName(),
+                            info.getLockName(), info.getLockOwnerName()));
+            }
+            log("Wrote " + file);
+
+            known.addAll(found);
+            setStatus(DEADLOCKED);
+        }
+    }
+
+    /**
+     * @param threads
+     * @param match
+     * @return the ids of threads whose names match
+     */
+    private long[] findThreads(ThreadMXBean threads, Pattern match) {
+        // no stacks, just the names
+        ThreadInfo[] infos = threads.getThreadInfo(threads.getAllThreadIds(),
+                0);
+        long[] ids = new long[infos.length];
+        int size = 0;
+        for (ThreadInfo info : infos) {
+            if (info != null && match.matcher(info.getThreadName()).matches())
+                ids[size++] = info.getThreadId();
+        }
+        return Arrays.copyOf(ids, size);
+    }
+
+    /**
+     * @param output
+     *            the start of the name
+     * @return a new, empty file named for the time, with a number on the end
+     *         if there's one for the same millisecond already
+     * @throws IOException
+     */
+    private File newDumpFile(String output) throws IOException {
+        String name = output + "-"
+                + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        File file = resolve(name + ".txt");
+        for (int i = 1; !file.createNewFile(); i++)
+            file = resolve(name + "-" + i + ".txt");
+        return file;
+    }
+
+    /**
+     * Reads the CPU or user time of many threads. HotSpot's ThreadMXBean
+     * takes an array of ids, which saves a round trip per thread; anything
+     * else is asked one thread at a time.
+     * 
+     * @param threads
+     * @param ids
+     * @param user
+     *            true for user time, false for CPU time
+     * @return nanoseconds, -1 for a thread which isn't alive
+     * @throws IOException
+     */
+    private long[] getCpuTimes(ThreadMXBean threads, long[] ids, boolean user)
+            throws IOException {
+
+        String operation = user ? "getThreadUserTime" : "getThreadCpuTime";
+
+        if (bulk == null || bulk.booleanValue()) {
+            try {
+                Object times = invoke(new ObjectName(
+                        ManagementFactory.THREAD_MXBEAN_NAME), operation,
+                        new Object[] { ids }, BULK_SIGNATURE);
+                bulk = Boolean.TRUE;
+                return (long[]) times;
+            }
+            catch (JMException e) {
+                bulk = Boolean.FALSE;
+            }
+            catch (JMRuntimeException e) {
+                bulk = Boolean.FALSE;
+            }
+        }
+
+        long[] times = new long[ids.length];
+        for (int i = 0; i < ids.length; i++)
+            times[i] = user ? threads.getThreadUserTime(ids[i]) : threads
+                    .getThreadCpuTime(ids[i]);
+        return times;
+    }
+
+    /**
+     * @param info
+     */
+    private void logStackTrace(ThreadInfo info) {
+        for (StackTraceElement ste : info.getStackTrace()) {
             log(String
                     .format("\tat %s.%s(%s:%s)", ste.getClassName(),
                             ste.getMethodName(), ste.getFileName(),
@@ -57,11 +57,10 @@ public class WebappCommand extends StatusCommand {
      * (non-Javadoc)
      * 
      * @see
-     * org.pidster.tomcat.util.cli.AbstractCommand#execute(org.apache.tomcat.
-     * util.cli .Environment)
+     * org.pidster.tomcat.util.cli.AbstractJMXCommand#executeInternal()
      */
     @Override
-    public void execute() throws CommandException {
+    protected void executeInternal() throws CommandException {
 
         try {
             if (getConfig().getArguments().isEmpty()) {
@@ -111,7 +110,7 @@ public class WebappCommand extends StatusCommand {
                 }
             }
 
-            super.execute();
+            super.executeInternal();
         }
         catch (Exception e) {
             throw new CommandException(e.getMessage(), e.getCause());
@@ -23,10 +23,12 @@ import org.pidster.tomcat.util.cli.Command;
 import org.pidster.tomcat.util.cli.CommandConfig;
 import org.pidster.tomcat.util.cli.CommandLine;
 import org.pidster.tomcat.util.cli.CommandParser;
+import org.pidster.tomcat.util.cli.Environment;
 import org.pidster.tomcat.util.cli.Option;
 import org.pidster.tomcat.util.cli.OptionParser;
 import org.pidster.tomcat.util.cli.ConsoleUI;
 import org.pidster.tomcat.util.cli.commands.HelpCommand;
+import org.pidster.tomcat.util.cli.jmx.ConnectionPool;
 import org.pidster.tomcat.util.cli.util.StringManager;
 
 /**
@@ -43,16 +45,24 @@ public class ConsoleUIImpl implements ConsoleUI {
 
     private final OptionParser optionParser;
 
-    private final EnvironmentImpl environment;
+    private final Environment environment;
 
     /**
      * 
      */
     public ConsoleUIImpl() {
+        this(new EnvironmentImpl());
+    }
+
+    /**
+     * @param environment
+     *            for the commands' input and output
+     */
+    public ConsoleUIImpl(Environment environment) {
 
         this.registry = new CommandRegistryImpl();
         this.commandParser = new CommandParserImpl();
-        this.environment = new EnvironmentImpl();
+        this.environment = environment;
         this.optionParser = new OptionParserImpl(registry.getOptions());
     }
 
@@ -78,10 +88,15 @@ public class ConsoleUIImpl implements ConsoleUI {
      * @see org.pidster.tomcat.util.cli.ConsoleUI#process(java.lang.String[])
      */
     @Override
-    public void process(String[] arguments) {
+    public int process(String[] arguments) {
+
+        int status = 0;
 
         CommandLine line = commandParser.parseArguments(arguments);
+
         boolean interactive = commandParser.isInteractive();
+        if (interactive)
+            ConnectionPool.getInstance().setLongLived(true);
 
         // Is there a more elegant solution?
         // If it's the first time, or we're interactive
@@ -102,6 +117,7 @@ public class ConsoleUIImpl implements ConsoleUI {
                     && !registry.isRegistered(line.getCommandName())) {
                 environment.sysout(manager.getString(
                         "tomcat.cli.commandNotFound", line.getCommandName()));
+                status = 1;
             }
 
             // if we found a command
@@ -120,12 +136,16 @@ public class ConsoleUIImpl implements ConsoleUI {
                     command.configure(config);
 
                     command.execute();
+
+                    status = command.getStatus();
                 }
                 catch (Throwable t) {
 
                     t.printStackTrace();
 
                     environment.sysout(t.getMessage());
+
+                    status = 1;
                 }
                 finally {
                     command.cleanup();
@@ -134,7 +154,10 @@ public class ConsoleUIImpl implements ConsoleUI {
 
             // Update the command line, if we're still running
             if (interactive)
-                line = commandParser.parseArguments(environment.readPrompt());
+                line = commandParser.parseArguments(environment
+                        .readPrompt(environment.getPrompt()));
         }
+
+        return status;
     }
 }
@@ -0,0 +1,300 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.impl;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.ServiceLoader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.pidster.tomcat.util.cli.Command;
+import org.pidster.tomcat.util.cli.ConsoleUI;
+import org.pidster.tomcat.util.cli.jmx.ConnectionPool;
+import org.pidster.tomcat.util.cli.util.IO;
+import org.pidster.tomcat.util.cli.util.NamedThreadFactory;
+
+/**
+ * A long running process which runs commands on behalf of clients, so that
+ * each call doesn't pay for starting a JVM, loading the commands and
+ * connecting to Tomcat. It listens on the loopback interface only, and
+ * writes its port and a secret to a file only the user can read, so that a
+ * client must be able to read the file to use it.
+ * <p>
+ * A client sends the secret, the number of arguments and the arguments, then
+ * its working directory and the rows and columns of its terminal, or 0 if it
+ * hasn't one, a line each, and sends nothing after that, so the end of its
+ * stream means it has gone away. The reply is the command's output, each line prefixed with
+ * {@link #OUTPUT}, or {@link #PRINT} for text without a new line of its own
+ * and with its new lines escaped, followed by {@link #EXIT} and an exit
+ * status.
+ * 
+ * @author pidster
+ * 
+ */
+public class Daemon {
+
+    public static final String OUTPUT = "o ";
+
+    public static final String EXIT = "x ";
+
+    public static final String PRINT = "p ";
+
+    public static final String ENCODING = "UTF-8";
+
+    public static final String PORT = "port";
+
+    public static final String SECRET = "secret";
+
+    public static final String INTERACTIVE = "--interactive";
+
+    /**
+     * How long a client has to send its request
+     */
+    private static final int REQUEST_TIMEOUT = 5000;
+
+    private final File file;
+
+    private final String secret;
+
+    private final ExecutorService executor;
+
+    /**
+     * 
+     */
+    public Daemon() {
+        this.file = file();
+        this.secret = new BigInteger(130, new SecureRandom()).toString(32);
+        this.executor = Executors.newCachedThreadPool(new NamedThreadFactory(
+                "tomcat-cli-daemon"));
+    }
+
+    /**
+     * @return the file holding the port and secret of the running daemon
+     */
+    public static File file() {
+        return new File(IO.homeDirectory(), "daemon.properties");
+    }
+
+    /**
+     * @param arguments
+     * @return true if a command run with these would prompt for the JMX
+     *         password, which only a local one can
+     */
+    public static boolean asksForPassword(List<String> arguments) {
+        boolean username = false;
+        boolean password = false;
+        for (String argument : arguments) {
+            username |= argument.startsWith("--username")
+                    || argument.startsWith("-U");
+            password |= argument.startsWith("--password")
+                    || argument.startsWith("-P");
+        }
+        return username && !password;
+    }
+
+    /**
+     * Serves requests until the process is stopped.
+     * 
+     * @throws IOException
+     */
+    public void run() throws IOException {
+
+        final ServerSocket server = new ServerSocket(0, 50,
+                InetAddress.getByName("127.0.0.1"));
+
+        publish(server.getLocalPort());
+        ConnectionPool.getInstance().setLongLived(true);
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                file.delete();
+                ConnectionPool.getInstance().close();
+            }
+        });
+
+        System.out.println("Listening on 127.0.0.1:" + server.getLocalPort());
+
+        while (true) {
+            final Socket socket = server.accept();
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param socket
+     */
+    private void serve(Socket socket) {
+        RemoteEnvironment environment = null;
+        try {
+            socket.setSoTimeout(REQUEST_TIMEOUT);
+
+            BufferedReader reader = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), ENCODING));
+            PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+                    socket.getOutputStream(), ENCODING));
+
+            if (!secret.equals(reader.readLine()))
+                return;
+
+            int count = Integer.parseInt(reader.readLine());
+            List<String> arguments = new ArrayList<String>();
+            for (int i = 0; i < count; i++) {
+                arguments.add(reader.readLine());
+            }
+
+            File directory = new File(reader.readLine());
+            int[] terminalSize = new int[] {
+                    Integer.parseInt(reader.readLine()),
+                    Integer.parseInt(reader.readLine())
+            };
+
+            // Commands may take as long as they need
+            socket.setSoTimeout(0);
+
+            environment = new RemoteEnvironment(writer, directory,
+                    terminalSize);
+            watch(reader, environment);
+
+            // There's no one at the other end to type anything
+            if (arguments.contains(INTERACTIVE)) {
+                environment.sysout("Interactive mode isn't available from the daemon");
+                environment.exit(1);
+                return;
+            }
+            if (asksForPassword(arguments)) {
+                environment.sysout("The daemon can't ask for a password, give --password too");
+                environment.exit(1);
+                return;
+            }
+
+            // Every request gets its own commands, connections are shared
+            ConsoleUI consoleUI = new ConsoleUIImpl(environment);
+            consoleUI.register(ServiceLoader.load(Command.class));
+
+            int status = 0;
+            try {
+                status = consoleUI.process(arguments.toArray(new String[arguments
+                        .size()]));
+            }
+            catch (RuntimeException e) {
+                // as it would be if the command were run locally
+                environment.sysout(e);
+                status = 1;
+            }
+
+            environment.exit(status);
+        }
+        catch (Exception e) {
+            // the client went away, or sent rubbish
+        }
+        finally {
+            if (environment != null)
+                environment.finish();
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                // ignore
+            }
+
+            // in case the client went away just as the command finished
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Waits for the client to go away, while its command runs.
+     * 
+     * @param reader
+     *            from the client, which has nothing more to send
+     * @param environment
+     *            of the command
+     */
+    private void watch(final BufferedReader reader,
+            final RemoteEnvironment environment) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (reader.read() >= 0) {
+                        // nothing is expected
+                    }
+                }
+                catch (IOException e) {
+                    // reset, or closed when the command finished
+                }
+                environment.close();
+            }
+        });
+    }
+
+    /**
+     * Writes then renames, so that a client never reads half a file.
+     * 
+     * @param port
+     * @throws IOException
+     */
+    private void publish(int port) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(PORT, Integer.toString(port));
+        properties.setProperty(SECRET, secret);
+
+        File temp = new File(file.getPath() + "." + System.nanoTime());
+        temp.createNewFile();
+
+        // only the owner may read it, before there's anything in it
+        IO.ownerOnly(temp);
+
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            properties.store(out, "tomcat-cli daemon");
+        }
+        finally {
+            IO.close(out);
+        }
+
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Can't write " + file);
+        }
+    }
+
+}
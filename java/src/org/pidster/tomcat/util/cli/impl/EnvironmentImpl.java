@@ -17,9 +17,15 @@
 
 package org.pidster.tomcat.util.cli.impl;
 
+import java.io.BufferedWriter;
 import java.io.Console;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 
 import org.pidster.tomcat.util.cli.Environment;
+import org.pidster.tomcat.util.cli.monitor.ScreenBuffer;
 
 /**
  * @author pidster
@@ -29,8 +35,12 @@ public class EnvironmentImpl implements Environment {
 
     private static final String DEFAULT_PROMPT = "> ";
 
+    private static final int BUFFER_SIZE = 64 * 1024;
+
     private final Console console;
 
+    private final Writer out;
+
     private String prompt;
 
     /**
@@ -39,6 +49,8 @@ public class EnvironmentImpl implements Environment {
     public EnvironmentImpl() {
         super();
         this.console = System.console();
+        this.out = new BufferedWriter(console == null ? new OutputStreamWriter(
+                System.out) : console.writer(), BUFFER_SIZE);
         this.prompt = DEFAULT_PROMPT;
     }
 
@@ -50,11 +62,21 @@ public class EnvironmentImpl implements Environment {
      */
     @Override
     public void sysout(String fmt, Object... args) {
+        // anything printed comes first
+        flush();
         try {
-            if (!fmt.endsWith("\n")) {
-                fmt += "\n";
+            // without arguments it's text, which may well contain a %
+            String text = args.length == 0 ? fmt : String.format(fmt, args);
+            if (!text.endsWith("\n")) {
+                text += "\n";
+            }
+            if (console == null) {
+                System.out.print(text);
+            }
+            else {
+                console.writer().print(text);
+                console.flush();
             }
-            console.format(fmt, args);
         }
         catch (Exception e) {
             System.out.println("Error: " + fmt);
@@ -69,9 +91,41 @@ public class EnvironmentImpl implements Environment {
      */
     @Override
     public void sysout(Throwable throwable) {
+        flush();
         throwable.printStackTrace(System.out);
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#print(java.lang.CharSequence)
+     */
+    @Override
+    public void print(CharSequence text) {
+        try {
+            out.append(text);
+        }
+        catch (IOException e) {
+            // the terminal has gone
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#flush()
+     */
+    @Override
+    public void flush() {
+        try {
+            // one write, so one packet over ssh rather than one per line
+            out.flush();
+        }
+        catch (IOException e) {
+            // the terminal has gone
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -117,6 +171,36 @@ public class EnvironmentImpl implements Environment {
         return line.split(" ");
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#resolve(java.lang.String)
+     */
+    @Override
+    public File resolve(String path) {
+        return new File(path);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#getTerminalSize()
+     */
+    @Override
+    public int[] getTerminalSize() {
+        return ScreenBuffer.terminalSize();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#isClosed()
+     */
+    @Override
+    public boolean isClosed() {
+        return false;
+    }
+
     /*
      * 
      */
@@ -0,0 +1,182 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.impl;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.pidster.tomcat.util.cli.Environment;
+
+/**
+ * Collects a command's output with a prefix on every line, and writes it to
+ * another environment in one go, so that output from commands running at the
+ * same time isn't interleaved.
+ * 
+ * @author pidster
+ * 
+ */
+public class PrefixedEnvironment implements Environment {
+
+    private final Environment environment;
+
+    private final String prefix;
+
+    private final StringBuilder buffer;
+
+    /**
+     * @param environment
+     *            to write to when flushed
+     * @param prefix
+     */
+    public PrefixedEnvironment(Environment environment, String prefix) {
+        this.environment = environment;
+        this.prefix = prefix;
+        this.buffer = new StringBuilder();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#sysout(java.lang.String,
+     * java.lang.Object)
+     */
+    @Override
+    public void sysout(String fmt, Object... args) {
+        String text = args.length == 0 ? fmt : String.format(fmt, args);
+        append(text);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#sysout(java.lang.Throwable)
+     */
+    @Override
+    public void sysout(Throwable throwable) {
+        StringWriter writer = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(writer));
+        append(writer.toString());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#getPrompt()
+     */
+    @Override
+    public String getPrompt() {
+        return environment.getPrompt();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#setPrompt(java.lang.String)
+     */
+    @Override
+    public void setPrompt(String prompt) {
+        environment.setPrompt(prompt);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#readPrompt(java.lang.String)
+     */
+    @Override
+    public String[] readPrompt(String prompt) {
+        synchronized (environment) {
+            return environment.readPrompt(prefix + prompt);
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#resolve(java.lang.String)
+     */
+    @Override
+    public File resolve(String path) {
+        return environment.resolve(path);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#getTerminalSize()
+     */
+    @Override
+    public int[] getTerminalSize() {
+        return environment.getTerminalSize();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#isClosed()
+     */
+    @Override
+    public boolean isClosed() {
+        return environment.isClosed();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#print(java.lang.CharSequence)
+     */
+    @Override
+    public void print(CharSequence text) {
+        append(text.toString());
+    }
+
+    /**
+     * Writes everything collected so far, and starts again.
+     */
+    @Override
+    public void flush() {
+        String text;
+        synchronized (this) {
+            if (buffer.length() == 0)
+                return;
+            text = buffer.toString();
+            buffer.setLength(0);
+        }
+
+        synchronized (environment) {
+            // no formatting, the text has been formatted already
+            environment.sysout("%s", text);
+        }
+    }
+
+    /**
+     * @param text
+     */
+    private synchronized void append(String text) {
+        if (text.endsWith("\n"))
+            text = text.substring(0, text.length() - 1);
+
+        for (String line : text.split("\n", -1)) {
+            buffer.append(prefix);
+            buffer.append(line);
+            buffer.append("\n");
+        }
+    }
+
+}
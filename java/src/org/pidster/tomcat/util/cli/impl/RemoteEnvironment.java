@@ -0,0 +1,263 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.impl;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import org.pidster.tomcat.util.cli.Environment;
+
+/**
+ * Sends a command's output back to the client which asked for it, a line at
+ * a time as it's written. There's no one to answer a prompt, so prompts get
+ * an empty reply.
+ * 
+ * Paths and the terminal are the client's, not the daemon's. When the client
+ * goes away the thread running the command is interrupted, so that a command
+ * which runs until it's stopped, monitor say, stops too rather than holding
+ * its connection for ever, and anything written after that is dropped.
+ * 
+ * @author pidster
+ * 
+ */
+public class RemoteEnvironment implements Environment {
+
+    private final PrintWriter writer;
+
+    private final StringBuilder printed = new StringBuilder();
+
+    private final File directory;
+
+    private final int[] terminalSize;
+
+    private final Thread thread;
+
+    private String prompt;
+
+    private volatile boolean closed;
+
+    private boolean finished;
+
+    /**
+     * Must be made on the thread which runs the command.
+     * 
+     * @param writer
+     *            to the client
+     * @param directory
+     *            the client's working directory
+     * @param terminalSize
+     *            rows and columns of the client's terminal, or zeros
+     */
+    public RemoteEnvironment(PrintWriter writer, File directory,
+            int[] terminalSize) {
+        this.writer = writer;
+        this.directory = directory;
+        this.terminalSize = terminalSize;
+        this.thread = Thread.currentThread();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#sysout(java.lang.String,
+     * java.lang.Object)
+     */
+    @Override
+    public void sysout(String fmt, Object... args) {
+        flush();
+        String text = args.length == 0 ? fmt : String.format(fmt, args);
+        send(text);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#sysout(java.lang.Throwable)
+     */
+    @Override
+    public void sysout(Throwable throwable) {
+        flush();
+        StringWriter trace = new StringWriter();
+        throwable.printStackTrace(new PrintWriter(trace));
+        send(trace.toString());
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#getPrompt()
+     */
+    @Override
+    public String getPrompt() {
+        return prompt;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#setPrompt(java.lang.String)
+     */
+    @Override
+    public void setPrompt(String prompt) {
+        this.prompt = prompt;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#readPrompt(java.lang.String)
+     */
+    @Override
+    public String[] readPrompt(String prompt) {
+        send(prompt);
+        return new String[0];
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#resolve(java.lang.String)
+     */
+    @Override
+    public File resolve(String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(directory, path);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#getTerminalSize()
+     */
+    @Override
+    public int[] getTerminalSize() {
+        return terminalSize.clone();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#isClosed()
+     */
+    @Override
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * The client has gone away: stops the command, if it's still running.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (!finished)
+            thread.interrupt();
+    }
+
+    /**
+     * The command has finished, its thread mustn't be interrupted from now on.
+     */
+    public synchronized void finish() {
+        finished = true;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#print(java.lang.CharSequence)
+     */
+    @Override
+    public synchronized void print(CharSequence text) {
+        printed.append(text);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.pidster.tomcat.util.cli.Environment#flush()
+     */
+    @Override
+    public synchronized void flush() {
+        if (printed.length() == 0)
+            return;
+        if (closed) {
+            printed.setLength(0);
+            return;
+        }
+
+        // one line, with any new lines escaped
+        writer.print(Daemon.PRINT);
+        for (int i = 0; i < printed.length(); i++) {
+            char c = printed.charAt(i);
+            if (c == '\\')
+                writer.print("\\\\");
+            else if (c == '\n')
+                writer.print("\\n");
+            else if (c == '\r')
+                writer.print("\\r");
+            else
+                writer.print(c);
+        }
+        writer.print('\n');
+        printed.setLength(0);
+        check();
+    }
+
+    /**
+     * Tells the client the command has finished.
+     * 
+     * @param status
+     */
+    public synchronized void exit(int status) {
+        finish();
+        flush();
+        if (closed)
+            return;
+        writer.print(Daemon.EXIT);
+        writer.print(status);
+        writer.print('\n');
+        writer.flush();
+    }
+
+    /**
+     * @param text
+     */
+    private synchronized void send(String text) {
+        if (closed)
+            return;
+        if (text.endsWith("\n"))
+            text = text.substring(0, text.length() - 1);
+
+        for (String line : text.split("\n", -1)) {
+            writer.print(Daemon.OUTPUT);
+            writer.print(line);
+            writer.print('\n');
+        }
+        check();
+    }
+
+    /**
+     * Flushes, and closes if the client can't be written to any more.
+     */
+    private void check() {
+        // flushes too, a PrintWriter swallows errors until it's asked
+        if (writer.checkError())
+            close();
+    }
+
+}
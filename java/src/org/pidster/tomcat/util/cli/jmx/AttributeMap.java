@@ -0,0 +1,96 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.jmx;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Set;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+
+/**
+ * The attribute values of a single MBean, as returned by one
+ * MBeanServerConnection.getAttributes() call. Attributes which could not be
+ * read are simply absent, so {@link #value(String)} returns null for them.
+ * 
+ * @author pidster
+ * 
+ */
+public class AttributeMap extends LinkedHashMap<String, Object> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Set<String> requested;
+
+    private final Exception failure;
+
+    /**
+     * @param failure
+     */
+    public AttributeMap(Exception failure) {
+        super();
+        this.requested = Collections.emptySet();
+        this.failure = failure;
+    }
+
+    /**
+     * @param requested
+     * @param list
+     */
+    public AttributeMap(String[] requested, AttributeList list) {
+        super();
+        this.requested = new HashSet<String>(Arrays.asList(requested));
+        this.failure = null;
+        for (Object obj : list) {
+            Attribute attribute = (Attribute) obj;
+            put(attribute.getName(), attribute.getValue());
+        }
+    }
+
+    /**
+     * @param name
+     * @return value, or null if not available
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T value(String name) {
+        // Same cheeky generic casting as AbstractJMXCommand.attribute()
+        return (T) get(name);
+    }
+
+    /**
+     * @param names
+     * @return true if all of these attributes were asked for, whether or not
+     *         they could be read, or if the request failed outright
+     */
+    public boolean covers(String... names) {
+        if (failure != null)
+            return true;
+        return requested.containsAll(Arrays.asList(names));
+    }
+
+    /**
+     * @return the exception which prevented the attributes being read, if any
+     */
+    public Exception getFailure() {
+        return failure;
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.jmx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+/**
+ * Issues many getAttributes requests at once on a bounded worker pool,
+ * sharing a single connection. Results are returned in the order the requests
+ * were added, whatever order the replies arrive in.
+ * 
+ * @author pidster
+ * 
+ */
+public class BulkFetcher {
+
+    private final MBeanServerConnection connection;
+
+    private final ExecutorService executor;
+
+    /**
+     * @param connection
+     * @param executor
+     */
+    public BulkFetcher(MBeanServerConnection connection,
+            ExecutorService executor) {
+        this.connection = connection;
+        this.executor = executor;
+    }
+
+    /**
+     * @return a new, empty batch
+     */
+    public Batch batch() {
+        return new Batch();
+    }
+
+    /**
+     * A set of independent requests, sent together.
+     */
+    public class Batch {
+
+        private final Map<ObjectName, Future<AttributeMap>> fetches;
+
+        private final List<FutureTask<?>> pending;
+
+        /**
+         * 
+         */
+        private Batch() {
+            this.fetches = new LinkedHashMap<ObjectName, Future<AttributeMap>>();
+            this.pending = new ArrayList<FutureTask<?>>();
+        }
+
+        /**
+         * @param names
+         * @param attributes
+         * @return this batch
+         */
+        public Batch fetch(Collection<ObjectName> names, String... attributes) {
+            for (ObjectName name : names) {
+                fetch(name, attributes);
+            }
+            return this;
+        }
+
+        /**
+         * @param name
+         * @param attributes
+         * @return this batch
+         */
+        public Batch fetch(final ObjectName name, final String... attributes) {
+            if (!fetches.containsKey(name)) {
+                Callable<AttributeMap> task = new Callable<AttributeMap>() {
+                    @Override
+                    public AttributeMap call() {
+                        try {
+                            return new AttributeMap(attributes,
+                                    connection.getAttributes(name, attributes));
+                        }
+                        catch (Exception e) {
+                            return new AttributeMap(e);
+                        }
+                    }
+                };
+                FutureTask<AttributeMap> future = new FutureTask<AttributeMap>(
+                        task);
+                fetches.put(name, future);
+                pending.add(future);
+            }
+            return this;
+        }
+
+        /**
+         * @return the number of requests in this batch
+         */
+        public int size() {
+            return pending.size();
+        }
+
+        /**
+         * Sends every request in the batch and waits for all of the replies.
+         * 
+         * @throws IOException
+         */
+        public void execute() throws IOException {
+
+            List<FutureTask<?>> submitted = new ArrayList<FutureTask<?>>(
+                    pending);
+            pending.clear();
+
+            // Submit everything before waiting for anything
+            for (FutureTask<?> future : submitted) {
+                executor.execute(future);
+            }
+
+            for (FutureTask<?> future : submitted) {
+                await(future);
+            }
+        }
+
+        /**
+         * @return the attributes of each MBean, in the order they were added
+         * @throws IOException
+         */
+        public Map<ObjectName, AttributeMap> getAttributes() throws IOException {
+            Map<ObjectName, AttributeMap> results = new LinkedHashMap<ObjectName, AttributeMap>();
+            for (Map.Entry<ObjectName, Future<AttributeMap>> entry : fetches
+                    .entrySet()) {
+                results.put(entry.getKey(), await(entry.getValue()));
+            }
+            return results;
+        }
+
+        /**
+         * @param future
+         * @return result
+         * @throws IOException
+         */
+        private <T> T await(Future<T> future) throws IOException {
+            try {
+                return future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted waiting for JMX reply");
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                if (cause instanceof RuntimeException)
+                    throw (RuntimeException) cause;
+                throw new IOException(cause.getMessage(), cause);
+            }
+        }
+    }
+
+}
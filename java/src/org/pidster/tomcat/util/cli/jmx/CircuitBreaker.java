@@ -0,0 +1,103 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.jmx;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Once a request to a target has timed out, further requests to it fail
+ * straight away instead of queueing up behind the stuck one. After a cool
+ * down period requests are let through again, so an interactive session
+ * recovers once the target does.
+ * 
+ * @author pidster
+ * 
+ */
+public class CircuitBreaker {
+
+    /**
+     * Requests are refused for 30 seconds after a timeout
+     */
+    public static final long DEFAULT_COOL_DOWN = 30 * 1000L;
+
+    private static final Map<String, CircuitBreaker> breakers = new HashMap<String, CircuitBreaker>();
+
+    private final String target;
+
+    private final long coolDown;
+
+    private volatile long openUntil;
+
+    /**
+     * @param target
+     * @param coolDown
+     */
+    public CircuitBreaker(String target, long coolDown) {
+        this.target = target;
+        this.coolDown = coolDown;
+    }
+
+    /**
+     * @param target
+     * @return the breaker for the target, shared by every command
+     */
+    public static CircuitBreaker forTarget(String target) {
+        synchronized (breakers) {
+            CircuitBreaker breaker = breakers.get(target);
+            if (breaker == null) {
+                breaker = new CircuitBreaker(target, DEFAULT_COOL_DOWN);
+                breakers.put(target, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    /**
+     * @throws DeadlineException
+     *             if a recent request to the target timed out
+     */
+    public void check() throws DeadlineException {
+        if (isOpen()) {
+            throw new DeadlineException("Not sending request to " + target
+                    + ", an earlier request timed out");
+        }
+    }
+
+    /**
+     * @return true if requests are being refused
+     */
+    public boolean isOpen() {
+        return System.currentTimeMillis() < openUntil;
+    }
+
+    /**
+     * Refuses requests for the cool down period.
+     */
+    public void trip() {
+        openUntil = System.currentTimeMillis() + coolDown;
+    }
+
+    /**
+     * Lets requests through again.
+     */
+    public void reset() {
+        openUntil = 0;
+    }
+
+}
@@ -0,0 +1,394 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.jmx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.pidster.tomcat.util.cli.util.IO;
+
+/**
+ * Keeps JMX connections open between commands, for as long as the shell runs.
+ * Connections are keyed by service URL and credentials, and shared by every
+ * command which asks for the same target. An idle connection is checked
+ * before it is handed out again, and closed once it has been idle for longer
+ * than the timeout.
+ * 
+ * @author pidster
+ * 
+ */
+public class ConnectionPool {
+
+    /**
+     * Idle connections are closed after 5 minutes
+     */
+    public static final long DEFAULT_IDLE_TIMEOUT = 5 * 60 * 1000L;
+
+    /**
+     * Connections idle for more than 10 seconds are checked before reuse
+     */
+    public static final long DEFAULT_CHECK_INTERVAL = 10 * 1000L;
+
+    private static final ConnectionPool instance = new ConnectionPool(
+            DEFAULT_IDLE_TIMEOUT, DEFAULT_CHECK_INTERVAL);
+
+    private final long idleTimeout;
+
+    private final long checkInterval;
+
+    private final Map<List<String>, Entry> entries;
+
+    private final Map<JMXConnector, Entry> leased;
+
+    private volatile boolean longLived;
+
+    /**
+     * @param idleTimeout
+     * @param checkInterval
+     */
+    public ConnectionPool(long idleTimeout, long checkInterval) {
+        this.idleTimeout = idleTimeout;
+        this.checkInterval = checkInterval;
+        this.entries = new HashMap<List<String>, Entry>();
+        this.leased = new HashMap<JMXConnector, Entry>();
+    }
+
+    /**
+     * @return the pool shared by every command in this process
+     */
+    public static ConnectionPool getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param longLived
+     *            true if the process runs many commands, a shell or the
+     *            daemon, so connections are used again
+     */
+    public void setLongLived(boolean longLived) {
+        this.longLived = longLived;
+    }
+
+    /**
+     * @return true if connections are used by more than one command, and
+     *         what's learnt about a server is worth keeping
+     */
+    public boolean isLongLived() {
+        return longLived;
+    }
+
+    /**
+     * Returns a connected connector for the target, reusing an open one if
+     * there is one which still works.
+     * 
+     * @param url
+     * @param environment
+     * @param timeout
+     *            for connecting or checking the connection, in milliseconds
+     * @return connector
+     * @throws IOException
+     */
+    public JMXConnector acquire(JMXServiceURL url, Map<String, ?> environment,
+            long timeout) throws IOException {
+
+        List<String> key = key(url, environment);
+        CircuitBreaker breaker = CircuitBreaker.forTarget(url.toString());
+
+        Entry entry;
+        synchronized (this) {
+            evictIdle();
+            entry = entries.get(key);
+            if (entry != null) {
+                entry.leases++;
+            }
+        }
+
+        if (entry != null && !entry.isHealthy(checkInterval, timeout, breaker)) {
+            synchronized (this) {
+                entry.leases--;
+                discard(entry);
+            }
+            entry = null;
+        }
+
+        if (entry == null) {
+            JMXConnector connector = connect(url, environment, timeout,
+                    breaker);
+
+            Entry created = new Entry(key, connector);
+            created.leases++;
+
+            synchronized (this) {
+                Entry existing = entries.get(key);
+                if (existing != null && !existing.failed) {
+                    // lost a race to connect, use theirs
+                    existing.leases++;
+                    IO.close(connector);
+                    entry = existing;
+                }
+                else {
+                    entries.put(key, created);
+                    entry = created;
+                }
+            }
+        }
+
+        synchronized (this) {
+            entry.lastUsed = System.currentTimeMillis();
+            leased.put(entry.connector, entry);
+        }
+
+        return entry.connector;
+    }
+
+    /**
+     * Hands a connector back, leaving it open for the next command.
+     * 
+     * @param connector
+     */
+    public synchronized void release(JMXConnector connector) {
+        Entry entry = leased.get(connector);
+        if (entry == null) {
+            IO.close(connector);
+            return;
+        }
+
+        entry.leases--;
+        entry.lastUsed = System.currentTimeMillis();
+
+        if (entry.leases <= 0) {
+            leased.remove(connector);
+        }
+
+        if (entry.failed) {
+            discard(entry);
+        }
+
+        evictIdle();
+    }
+
+    /**
+     * Closes a connector which is known to be broken, so that it won't be
+     * handed out again.
+     * 
+     * @param connector
+     */
+    public synchronized void invalidate(JMXConnector connector) {
+        Entry entry = leased.get(connector);
+        if (entry != null) {
+            entry.failed = true;
+        }
+    }
+
+    /**
+     * Closes every connection which isn't in use. Those which are stay
+     * leased, so that they're closed as they're released, rather than being
+     * lost and left open.
+     */
+    public synchronized void close() {
+        for (Entry entry : new ArrayList<Entry>(entries.values())) {
+            entry.failed = true;
+            discard(entry);
+        }
+    }
+
+    /**
+     * @param url
+     * @param environment
+     * @param timeout
+     * @param breaker
+     * @return a new, connected connector
+     * @throws IOException
+     */
+    private static JMXConnector connect(JMXServiceURL url,
+            Map<String, ?> environment, long timeout, CircuitBreaker breaker)
+            throws IOException {
+
+        final JMXConnector connector = JMXConnectorFactory.newJMXConnector(
+                url, environment);
+
+        try {
+            TimeoutConnection.call(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    connector.connect();
+                    return null;
+                }
+            }, timeout, breaker, "Connecting to " + url);
+        }
+        catch (DeadlineException e) {
+            // close() waits for connect(), so leave that to another thread
+            Thread closer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    IO.close(connector);
+                }
+            }, "tomcat-cli-close");
+            closer.setDaemon(true);
+            closer.start();
+            throw e;
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        // the target's answering again, forget any earlier timeout
+        breaker.reset();
+
+        return connector;
+    }
+
+    /**
+     * Closes connections which nobody is using and which have been idle for
+     * too long.
+     */
+    private void evictIdle() {
+        long now = System.currentTimeMillis();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.leases <= 0
+                    && (entry.failed || now - entry.lastUsed > idleTimeout)) {
+                iterator.remove();
+                IO.close(entry.connector);
+            }
+        }
+    }
+
+    /**
+     * @param entry
+     */
+    private void discard(Entry entry) {
+        if (entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+        }
+        if (entry.leases <= 0) {
+            leased.remove(entry.connector);
+            IO.close(entry.connector);
+        }
+    }
+
+    /**
+     * @param url
+     * @param environment
+     * @return key
+     */
+    private static List<String> key(JMXServiceURL url,
+            Map<String, ?> environment) {
+
+        String username = null;
+        String password = null;
+
+        Object credentials = environment == null ? null : environment
+                .get(JMXConnector.CREDENTIALS);
+
+        if (credentials instanceof String[]) {
+            String[] pair = (String[]) credentials;
+            username = pair.length > 0 ? pair[0] : null;
+            password = pair.length > 1 ? pair[1] : null;
+        }
+
+        return Arrays.asList(url.toString(), username, password);
+    }
+
+    /**
+     * A pooled connection.
+     */
+    private static class Entry implements NotificationListener {
+
+        private final List<String> key;
+
+        private final JMXConnector connector;
+
+        private volatile boolean failed;
+
+        private volatile long lastUsed;
+
+        private int leases;
+
+        /**
+         * @param key
+         * @param connector
+         */
+        Entry(List<String> key, JMXConnector connector) {
+            this.key = key;
+            this.connector = connector;
+            this.lastUsed = System.currentTimeMillis();
+            connector.addConnectionNotificationListener(this, null, null);
+        }
+
+        /**
+         * @param checkInterval
+         * @param timeout
+         * @param breaker
+         * @return true if the connection can be used
+         */
+        boolean isHealthy(long checkInterval, long timeout,
+                CircuitBreaker breaker) {
+            if (failed)
+                return false;
+
+            if (System.currentTimeMillis() - lastUsed < checkInterval)
+                return true;
+
+            try {
+                TimeoutConnection.wrap(connector.getMBeanServerConnection(),
+                        timeout, breaker).getMBeanCount();
+                return true;
+            }
+            catch (Exception e) {
+                failed = true;
+                return false;
+            }
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see
+         * javax.management.NotificationListener#handleNotification(javax.management
+         * .Notification, java.lang.Object)
+         */
+        @Override
+        public void handleNotification(Notification notification,
+                Object handback) {
+            String type = notification.getType();
+            if (JMXConnectionNotification.FAILED.equals(type)
+                    || JMXConnectionNotification.CLOSED.equals(type)) {
+                failed = true;
+            }
+        }
+    }
+
+}
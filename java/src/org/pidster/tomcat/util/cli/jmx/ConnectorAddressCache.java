@@ -0,0 +1,230 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.jmx;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import org.pidster.tomcat.util.cli.util.IO;
+
+/**
+ * Remembers the local connector address of each process we've attached to,
+ * and the instance name if it was found by {@link Discovery}, so that the
+ * next run can connect without attaching again. Entries are
+ * keyed by PID and checked against the process's start time, so a recycled
+ * PID is never mistaken for the process that used to have it. Where the start
+ * time can't be read (i.e. there's no /proc), nothing is cached.
+ * 
+ * @author pidster
+ * 
+ */
+public class ConnectorAddressCache {
+
+    private static final ConnectorAddressCache instance = new ConnectorAddressCache(
+            new File(IO.homeDirectory(), "addresses.properties"));
+
+    private final File file;
+
+    /**
+     * @param file
+     */
+    public ConnectorAddressCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * @return the cache in the user's home directory
+     */
+    public static ConnectorAddressCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * @param pid
+     * @return the address, or null if the process has not been seen or has
+     *         been replaced since
+     */
+    public synchronized String get(String pid) {
+        String[] entry = entry(pid);
+        return entry == null ? null : entry[1];
+    }
+
+    /**
+     * @param pid
+     * @return the instance name, if discovery found one
+     */
+    public synchronized String getName(String pid) {
+        String[] entry = entry(pid);
+        return entry == null || entry.length < 3 ? null : entry[2];
+    }
+
+    /**
+     * @param pid
+     * @param address
+     */
+    public synchronized void put(String pid, String address) {
+        put(pid, address, getName(pid));
+    }
+
+    /**
+     * @param pid
+     * @param address
+     * @param name
+     */
+    public synchronized void put(String pid, String address, String name) {
+        String startTime = startTime(pid);
+        if (startTime == null || address == null)
+            return;
+
+        String entry = startTime + " " + address;
+        if (name != null)
+            entry += " " + name;
+
+        Properties entries = load();
+        entries.setProperty(pid, entry);
+        store(entries);
+    }
+
+    /**
+     * Forgets the process, e.g. because its address no longer works.
+     * 
+     * @param pid
+     */
+    public synchronized void evict(String pid) {
+        Properties entries = load();
+        if (entries.remove(pid) != null)
+            store(entries);
+    }
+
+    /**
+     * @param pid
+     * @return start time, address and name (if any), or null if the entry is
+     *         missing or stale
+     */
+    private String[] entry(String pid) {
+        String startTime = startTime(pid);
+        if (startTime == null)
+            return null;
+
+        String value = load().getProperty(pid);
+        if (value == null)
+            return null;
+
+        // the address has no spaces, the name might
+        String[] entry = value.split(" ", 3);
+        if (entry.length < 2 || !startTime.equals(entry[0])) {
+            evict(pid);
+            return null;
+        }
+
+        return entry;
+    }
+
+    /**
+     * @return entries, empty if there's no file or it can't be read
+     */
+    private Properties load() {
+        Properties entries = new Properties();
+        if (!file.isFile())
+            return entries;
+
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            entries.load(in);
+        }
+        catch (IOException e) {
+            // start again
+        }
+        finally {
+            IO.close(in);
+        }
+        return entries;
+    }
+
+    /**
+     * Writes then renames, so that concurrent runs never read half a file.
+     * 
+     * @param entries
+     */
+    private void store(Properties entries) {
+        File temp = new File(file.getPath() + "." + System.nanoTime());
+
+        OutputStream out = null;
+        try {
+            // the addresses need no password, so only the owner may read them
+            temp.createNewFile();
+            IO.ownerOnly(temp);
+
+            out = new FileOutputStream(temp);
+            entries.store(out, "pid=starttime address [name]");
+        }
+        catch (IOException e) {
+            // it's only a cache
+            temp.delete();
+            return;
+        }
+        finally {
+            IO.close(out);
+        }
+
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                temp.delete();
+        }
+    }
+
+    /**
+     * @param pid
+     * @return the process start time, in clock ticks since boot, or null if
+     *         it isn't known
+     */
+    private static String startTime(String pid) {
+        File stat = new File("/proc/" + pid + "/stat");
+        if (!stat.isFile())
+            return null;
+
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(stat));
+            String line = reader.readLine();
+
+            // the command name may contain spaces, so count from after it
+            String[] fields = line.substring(line.lastIndexOf(')') + 2).split(
+                    " ");
+
+            // starttime is field 22, the state (field 3) is fields[0]
+            return fields.length > 19 ? fields[19] : null;
+        }
+        catch (Exception e) {
+            return null;
+        }
+        finally {
+            IO.close(reader);
+        }
+    }
+
+}
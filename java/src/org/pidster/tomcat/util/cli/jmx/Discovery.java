@@ -0,0 +1,254 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.jmx;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.pidster.tomcat.util.cli.util.NamedThreadFactory;
+
+import com.sun.tools.attach.VirtualMachine;
+import com.sun.tools.attach.VirtualMachineDescriptor;
+
+/**
+ * Finds the Tomcat instances running on this machine. Every candidate JVM is
+ * probed at the same time, and each probe is abandoned if the JVM doesn't
+ * answer within the timeout, so one hung process can't hold up the rest.
+ * Processes whose details are in the {@link ConnectorAddressCache} aren't
+ * attached to at all.
+ * 
+ * @author pidster
+ * 
+ */
+public class Discovery {
+
+    public static final String CATALINA_BOOTSTRAP = "org.apache.catalina.startup.Bootstrap";
+
+    public static final String LOCAL_CONNECTOR_ADDRESS = "com.sun.management.jmxremote.localConnectorAddress";
+
+    public static final String JMX_REMOTE_PORT = "com.sun.management.jmxremote.port";
+
+    public static final long DEFAULT_TIMEOUT = 750;
+
+    private final long timeout;
+
+    /**
+     * @param timeout
+     *            per process, in milliseconds
+     */
+    public Discovery(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return every Tomcat found
+     */
+    public List<Instance> discover() {
+
+        Map<String, Instance> found = new LinkedHashMap<String, Instance>();
+        Map<String, Future<Instance>> probes = new LinkedHashMap<String, Future<Instance>>();
+
+        ExecutorService executor = null;
+        ConnectorAddressCache cache = ConnectorAddressCache.getInstance();
+
+        try {
+            for (final VirtualMachineDescriptor vmd : VirtualMachine.list()) {
+                if (!vmd.displayName().startsWith(CATALINA_BOOTSTRAP))
+                    continue;
+
+                String address = cache.get(vmd.id());
+                String name = cache.getName(vmd.id());
+                if (address != null && name != null) {
+                    found.put(vmd.id(), new Instance(vmd.id(), name, null,
+                            null, address));
+                    continue;
+                }
+
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(new NamedThreadFactory(
+                            "tomcat-cli-discovery"));
+                }
+
+                found.put(vmd.id(), new Instance(vmd.id(), null, null, null,
+                        null));
+                probes.put(vmd.id(), executor.submit(new Callable<Instance>() {
+                    @Override
+                    public Instance call() throws Exception {
+                        return probe(vmd);
+                    }
+                }));
+            }
+
+            // One deadline for everything, they're all running at once
+            long deadline = System.currentTimeMillis() + timeout;
+
+            for (Map.Entry<String, Future<Instance>> probe : probes.entrySet()) {
+                try {
+                    long remaining = Math.max(0,
+                            deadline - System.currentTimeMillis());
+                    Instance instance = probe.getValue().get(remaining,
+                            TimeUnit.MILLISECONDS);
+                    found.put(probe.getKey(), instance);
+                    cache.put(instance.getPid(), instance.getAddress(),
+                            instance.getName());
+                }
+                catch (Exception e) {
+                    // timed out or couldn't attach, leave it unknown
+                    probe.getValue().cancel(true);
+                }
+            }
+        }
+        finally {
+            if (executor != null)
+                executor.shutdownNow();
+        }
+
+        return new ArrayList<Instance>(found.values());
+    }
+
+    /**
+     * @param vmd
+     * @return the instance's details
+     * @throws Exception
+     */
+    private static Instance probe(VirtualMachineDescriptor vmd)
+            throws Exception {
+
+        VirtualMachine machine = VirtualMachine.attach(vmd);
+        try {
+            Properties system = machine.getSystemProperties();
+            Properties agent = machine.getAgentProperties();
+
+            String base = system.getProperty("catalina.base");
+            String home = system.getProperty("catalina.home");
+            String address = agent.getProperty(LOCAL_CONNECTOR_ADDRESS);
+
+            // Fall back to the remote connector, if there's no local one
+            String port = system.getProperty(JMX_REMOTE_PORT);
+            if (address == null && port != null) {
+                address = "service:jmx:rmi:///jndi/rmi://127.0.0.1:" + port
+                        + "/jmxrmi";
+            }
+
+            String name = base == null ? home : base;
+            if (name != null)
+                name = new File(name).getName();
+
+            return new Instance(vmd.id(), name, base, home, address);
+        }
+        finally {
+            machine.detach();
+        }
+    }
+
+    /**
+     * A Tomcat process. Anything which couldn't be found out is null.
+     */
+    public static class Instance {
+
+        private final String pid;
+
+        private final String name;
+
+        private final String catalinaBase;
+
+        private final String catalinaHome;
+
+        private final String address;
+
+        /**
+         * @param pid
+         * @param name
+         * @param catalinaBase
+         * @param catalinaHome
+         * @param address
+         */
+        Instance(String pid, String name, String catalinaBase,
+                String catalinaHome, String address) {
+            this.pid = pid;
+            this.name = name;
+            this.catalinaBase = catalinaBase;
+            this.catalinaHome = catalinaHome;
+            this.address = address;
+        }
+
+        /**
+         * @return the process id
+         */
+        public String getPid() {
+            return pid;
+        }
+
+        /**
+         * @return the name of the catalina.base directory
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return catalina.base
+         */
+        public String getCatalinaBase() {
+            return catalinaBase;
+        }
+
+        /**
+         * @return catalina.home
+         */
+        public String getCatalinaHome() {
+            return catalinaHome;
+        }
+
+        /**
+         * @return the JMX service URL
+         */
+        public String getAddress() {
+            return address;
+        }
+
+        /*
+         * (non-Javadoc)
+         * 
+         * @see java.lang.Object#toString()
+         */
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            s.append(pid);
+            s.append(" ");
+            s.append(name == null ? "?" : name);
+            if (catalinaBase != null) {
+                s.append(" [");
+                s.append(catalinaBase);
+                s.append("]");
+            }
+            return s.toString();
+        }
+    }
+
+}
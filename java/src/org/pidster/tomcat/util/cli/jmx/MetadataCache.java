@@ -0,0 +1,212 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.jmx;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.management.MBeanInfo;
+import javax.management.ObjectInstance;
+import javax.management.ObjectName;
+
+import org.pidster.tomcat.util.cli.util.IO;
+
+/**
+ * MBeanInfo, cached by server version and MBean class, see
+ * {@link #key(ObjectInstance)}. Tomcat describes every MBean of the same
+ * class and type identically, so once one RequestProcessor or Servlet has
+ * been described, the rest need not be. The cache lives for as long as the
+ * process, and can be saved to and loaded from the user's home directory,
+ * one file per version.
+ * 
+ * @author pidster
+ * 
+ */
+public class MetadataCache {
+
+    private static final MetadataCache instance = new MetadataCache();
+
+    private final Map<String, Map<String, MBeanInfo>> versions;
+
+    private final Set<String> loaded;
+
+    private final Set<String> modified;
+
+    /**
+     * 
+     */
+    private MetadataCache() {
+        this.versions = new HashMap<String, Map<String, MBeanInfo>>();
+        this.loaded = new HashSet<String>();
+        this.modified = new HashSet<String>();
+    }
+
+    /**
+     * @return the cache shared by every command in this process
+     */
+    public static MetadataCache getInstance() {
+        return instance;
+    }
+
+    /**
+     * The MBean's class name alone is not enough, as many Tomcat MBeans share
+     * the modeler's class, so the type from the name is added, and the names
+     * of the name's other keys, which tell apart model MBeans of one type
+     * registered for different things, e.g. a Host's valves and a Context's.
+     * Their values are left out, they name instances, except a valve's name,
+     * which Tomcat takes from the valve's class.
+     * 
+     * @param mbean
+     * @return key
+     */
+    public static String key(ObjectInstance mbean) {
+        ObjectName name = mbean.getObjectName();
+        String type = name.getKeyProperty("type");
+        if (type == null)
+            type = name.getKeyProperty("j2eeType");
+
+        StringBuilder key = new StringBuilder();
+        key.append(mbean.getClassName()).append('|').append(type);
+        for (String property : new TreeSet<String>(name.getKeyPropertyList()
+                .keySet()))
+            key.append('|').append(property);
+        if ("Valve".equals(type))
+            key.append('|').append(name.getKeyProperty("name"));
+        return key.toString();
+    }
+
+    /**
+     * @param version
+     * @param mbean
+     * @return info, or null if it has not been seen yet
+     */
+    public synchronized MBeanInfo get(String version, ObjectInstance mbean) {
+        return entries(version).get(key(mbean));
+    }
+
+    /**
+     * @param version
+     * @param mbean
+     * @param info
+     */
+    public synchronized void put(String version, ObjectInstance mbean,
+            MBeanInfo info) {
+        entries(version).put(key(mbean), info);
+        modified.add(version);
+    }
+
+    /**
+     * Reads the version's file, the first time it is asked for. A missing or
+     * unreadable file is an empty cache.
+     * 
+     * @param version
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized void load(String version) {
+        if (!loaded.add(version))
+            return;
+
+        File file = file(version);
+        if (!file.isFile())
+            return;
+
+        ObjectInputStream in = null;
+        try {
+            in = new ObjectInputStream(new BufferedInputStream(
+                    new FileInputStream(file)));
+            Map<String, MBeanInfo> saved = (Map<String, MBeanInfo>) in
+                    .readObject();
+
+            // Anything found since takes precedence
+            saved.putAll(entries(version));
+            versions.put(version, saved);
+        }
+        catch (Exception e) {
+            // stale or corrupt, it'll be rewritten on save
+            file.delete();
+        }
+        finally {
+            IO.close(in);
+        }
+    }
+
+    /**
+     * Writes the version's file, if anything has been added to it.
+     * 
+     * @param version
+     * @throws IOException
+     */
+    public synchronized void save(String version) throws IOException {
+        if (!modified.remove(version))
+            return;
+
+        // Write then rename, so a reader never sees half a file
+        File file = file(version);
+        File temp = new File(file.getPath() + ".tmp");
+
+        ObjectOutputStream out = null;
+        try {
+            out = new ObjectOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            out.writeObject(new HashMap<String, MBeanInfo>(entries(version)));
+        }
+        finally {
+            IO.close(out);
+        }
+
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file))
+                throw new IOException("Unable to write " + file);
+        }
+    }
+
+    /**
+     * @param version
+     * @return entries
+     */
+    private Map<String, MBeanInfo> entries(String version) {
+        Map<String, MBeanInfo> entries = versions.get(version);
+        if (entries == null) {
+            entries = new HashMap<String, MBeanInfo>();
+            versions.put(version, entries);
+        }
+        return entries;
+    }
+
+    /**
+     * @param version
+     * @return the file for the version
+     */
+    private static File file(String version) {
+        String name = version.replaceAll("[^A-Za-z0-9._-]", "_");
+        return new File(IO.homeDirectory(), "mbeaninfo-" + name + ".ser");
+    }
+
+}
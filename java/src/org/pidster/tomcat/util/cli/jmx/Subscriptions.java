@@ -0,0 +1,214 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.jmx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.management.MBeanServerConnection;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+/**
+ * Keeps track of the notification listeners a command has added, so that
+ * every one of them is removed again when the command finishes, or when the
+ * process is stopped. Otherwise a pooled connection, or the server, would go
+ * on delivering notifications to no one.
+ * 
+ * @author pidster
+ * 
+ */
+public class Subscriptions {
+
+    private final MBeanServerConnection connection;
+
+    private final ExecutorService executor;
+
+    private final List<Subscription> subscriptions;
+
+    private Thread hook;
+
+    /**
+     * @param connection
+     * @param executor
+     *            to send requests on, many at once
+     */
+    public Subscriptions(MBeanServerConnection connection,
+            ExecutorService executor) {
+        this.connection = connection;
+        this.executor = executor;
+        this.subscriptions = new ArrayList<Subscription>();
+    }
+
+    /**
+     * Adds the listener to every MBean, all at once.
+     * 
+     * @param names
+     * @param listener
+     * @param filter
+     *            or null
+     * @return the number added, an MBean which doesn't send notifications is
+     *         skipped
+     * @throws IOException
+     */
+    public int add(Collection<ObjectName> names,
+            final NotificationListener listener,
+            final NotificationFilter filter) throws IOException {
+
+        List<Future<Subscription>> futures = new ArrayList<Future<Subscription>>();
+        for (final ObjectName name : names) {
+            futures.add(executor.submit(new Callable<Subscription>() {
+                @Override
+                public Subscription call() throws Exception {
+                    connection.addNotificationListener(name, listener, filter,
+                            null);
+                    return new Subscription(name, listener, filter);
+                }
+            }));
+        }
+
+        int added = 0;
+        for (Future<Subscription> future : futures) {
+            try {
+                track(future.get());
+                added++;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted adding listeners");
+            }
+            catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                // not a broadcaster, or already gone
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Removes every listener, best effort. The MBean may have gone, or the
+     * connection with it.
+     */
+    public void removeAll() {
+        List<Subscription> removing;
+        synchronized (this) {
+            removing = new ArrayList<Subscription>(subscriptions);
+            subscriptions.clear();
+
+            if (hook != null && hook != Thread.currentThread()) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(hook);
+                }
+                catch (IllegalStateException e) {
+                    // already shutting down, the hook is doing this too
+                }
+            }
+            hook = null;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final Subscription subscription : removing) {
+            try {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        connection.removeNotificationListener(
+                                subscription.name, subscription.listener,
+                                subscription.filter, null);
+                        return null;
+                    }
+                }));
+            }
+            catch (Exception e) {
+                // the executor has gone, the connection will go with it
+                return;
+            }
+        }
+
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            catch (ExecutionException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * @return the number of listeners added
+     */
+    public synchronized int size() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @param subscription
+     */
+    private synchronized void track(Subscription subscription) {
+        subscriptions.add(subscription);
+
+        // Ctrl-C doesn't give commands a chance to clean up
+        if (hook == null) {
+            hook = new Thread("tomcat-cli-unsubscribe") {
+                @Override
+                public void run() {
+                    removeAll();
+                }
+            };
+            Runtime.getRuntime().addShutdownHook(hook);
+        }
+    }
+
+    /**
+     * A listener on an MBean.
+     */
+    private static class Subscription {
+
+        private final ObjectName name;
+
+        private final NotificationListener listener;
+
+        private final NotificationFilter filter;
+
+        /**
+         * @param name
+         * @param listener
+         * @param filter
+         */
+        private Subscription(ObjectName name, NotificationListener listener,
+                NotificationFilter filter) {
+            this.name = name;
+            this.listener = listener;
+            this.filter = filter;
+        }
+    }
+
+}
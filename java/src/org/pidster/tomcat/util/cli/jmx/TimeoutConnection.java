@@ -0,0 +1,178 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.jmx;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.MBeanServerConnection;
+
+import org.pidster.tomcat.util.cli.util.NamedThreadFactory;
+
+/**
+ * Puts a deadline on every request made through an MBeanServerConnection.
+ * The RMI connector has no timeouts of its own, so each request is made on a
+ * worker thread and abandoned if the reply doesn't arrive in time. A blown
+ * deadline trips the target's {@link CircuitBreaker}, so that later requests
+ * fail at once rather than each waiting out its own deadline.
+ * 
+ * @author pidster
+ * 
+ */
+public class TimeoutConnection implements InvocationHandler {
+
+    private static final ExecutorService executor = Executors
+            .newCachedThreadPool(new NamedThreadFactory("tomcat-cli-request"));
+
+    private final MBeanServerConnection connection;
+
+    private final long timeout;
+
+    private final CircuitBreaker breaker;
+
+    /**
+     * @param connection
+     * @param timeout
+     * @param breaker
+     */
+    private TimeoutConnection(MBeanServerConnection connection, long timeout,
+            CircuitBreaker breaker) {
+        this.connection = connection;
+        this.timeout = timeout;
+        this.breaker = breaker;
+    }
+
+    /**
+     * @param connection
+     * @param timeout
+     *            in milliseconds, no deadline if zero or less
+     * @param breaker
+     * @return a connection whose requests time out
+     */
+    public static MBeanServerConnection wrap(MBeanServerConnection connection,
+            long timeout, CircuitBreaker breaker) {
+
+        if (timeout <= 0)
+            return connection;
+
+        return (MBeanServerConnection) Proxy.newProxyInstance(
+                MBeanServerConnection.class.getClassLoader(),
+                new Class<?>[] { MBeanServerConnection.class },
+                new TimeoutConnection(connection, timeout, breaker));
+    }
+
+    /**
+     * Runs the task with a deadline, unless the breaker is already open.
+     * 
+     * @param task
+     * @param timeout
+     *            in milliseconds, no deadline if zero or less
+     * @param breaker
+     * @param description
+     *            of the task, for the error message
+     * @return the task's result
+     * @throws Exception
+     *             whatever the task threw, or a {@link DeadlineException}
+     */
+    public static <T> T call(Callable<T> task, long timeout,
+            CircuitBreaker breaker, String description) throws Exception {
+
+        breaker.check();
+
+        if (timeout <= 0)
+            return task.call();
+
+        Future<T> future = executor.submit(task);
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            future.cancel(true);
+            breaker.trip();
+            throw new DeadlineException(description + " timed out after "
+                    + timeout + "ms");
+        }
+        catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new DeadlineException(description + " was interrupted");
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw (Error) cause;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.reflect.InvocationHandler#invoke(java.lang.Object,
+     * java.lang.reflect.Method, java.lang.Object[])
+     */
+    @Override
+    public Object invoke(Object proxy, final Method method, final Object[] args)
+            throws Throwable {
+
+        // Object's own methods never go near the wire
+        if (method.getDeclaringClass() == Object.class)
+            return method.invoke(connection, args);
+
+        Callable<Object> task = new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                try {
+                    return method.invoke(connection, args);
+                }
+                catch (InvocationTargetException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception)
+                        throw (Exception) cause;
+                    throw (Error) cause;
+                }
+            }
+        };
+
+        try {
+            return call(task, timeout, breaker, method.getName());
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            // Rethrow what the method declares, wrap anything else
+            for (Class<?> declared : method.getExceptionTypes()) {
+                if (declared.isInstance(e))
+                    throw e;
+            }
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+}
@@ -0,0 +1,368 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.jmx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+
+/**
+ * Every ObjectName registered in a remote MBeanServer, fetched with a single
+ * queryNames sweep and indexed by domain and by key property, so that name
+ * patterns can be matched locally. The index is kept up to date by listening
+ * to the MBeanServerDelegate for registrations and unregistrations, and is
+ * shared by every command using the same connection.
+ * 
+ * @author pidster
+ * 
+ */
+public class TopologyIndex implements NotificationListener {
+
+    private static final Map<String, TopologyIndex> indexes = new HashMap<String, TopologyIndex>();
+
+    private final JMXConnector connector;
+
+    private final String connectionId;
+
+    private final SortedSet<ObjectName> names;
+
+    private final Map<String, Set<ObjectName>> byDomain;
+
+    private final Map<String, Set<ObjectName>> byProperty;
+
+    private String defaultDomain;
+
+    private List<MBeanServerNotification> pending;
+
+    private volatile boolean stale;
+
+    private final Object sweep = new Object();
+
+    private boolean built;
+
+    /**
+     * @param connector
+     * @param connectionId
+     */
+    private TopologyIndex(JMXConnector connector, String connectionId) {
+        this.connector = connector;
+        this.connectionId = connectionId;
+        this.names = new TreeSet<ObjectName>();
+        this.byDomain = new HashMap<String, Set<ObjectName>>();
+        this.byProperty = new HashMap<String, Set<ObjectName>>();
+    }
+
+    /**
+     * Returns the index for the connection, building it the first time the
+     * connection is seen, or if notifications have been lost since.
+     * 
+     * @param connector
+     * @param connection
+     *            to send the sweep through
+     * @return index
+     * @throws IOException
+     */
+    public static TopologyIndex getInstance(JMXConnector connector,
+            MBeanServerConnection connection) throws IOException {
+
+        String connectionId = connector.getConnectionId();
+
+        TopologyIndex index;
+        synchronized (indexes) {
+            index = indexes.get(connectionId);
+            if (index == null || index.stale) {
+                if (index != null)
+                    index.dispose();
+
+                index = new TopologyIndex(connector, connectionId);
+                indexes.put(connectionId, index);
+            }
+        }
+
+        // Sweep outside the registry lock, so that commands running against
+        // other servers at the same time don't wait for this one
+        synchronized (index.sweep) {
+            if (!index.built) {
+                try {
+                    index.build(connection);
+                    index.built = true;
+                }
+                catch (IOException e) {
+                    index.dispose();
+                    throw e;
+                }
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Answers a queryNames pattern from the index.
+     * 
+     * @param pattern
+     * @return matching names, in order
+     */
+    public synchronized SortedSet<ObjectName> query(ObjectName pattern) {
+
+        SortedSet<ObjectName> results = new TreeSet<ObjectName>();
+
+        if (pattern == null) {
+            results.addAll(names);
+            return results;
+        }
+
+        pattern = qualify(pattern);
+
+        // Start from the smallest set which all matches must belong to
+        Set<ObjectName> candidates = names;
+        if (!pattern.isDomainPattern()) {
+            candidates = smallest(candidates, byDomain.get(pattern.getDomain()));
+        }
+        for (Map.Entry<String, String> property : pattern.getKeyPropertyList()
+                .entrySet()) {
+            if (pattern.isPropertyValuePattern(property.getKey()))
+                continue;
+            candidates = smallest(candidates,
+                    byProperty.get(property.getKey() + "=" + property.getValue()));
+        }
+
+        for (ObjectName name : candidates) {
+            if (pattern.apply(name)) {
+                results.add(name);
+            }
+        }
+
+        return results;
+    }
+
+    /**
+     * @return the number of names in the index
+     */
+    public synchronized int size() {
+        return names.size();
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * javax.management.NotificationListener#handleNotification(javax.management
+     * .Notification, java.lang.Object)
+     */
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+
+        if (notification instanceof MBeanServerNotification) {
+            MBeanServerNotification mbsn = (MBeanServerNotification) notification;
+            synchronized (this) {
+                if (pending != null) {
+                    // The sweep is still running, apply it afterwards
+                    pending.add(mbsn);
+                }
+                else {
+                    apply(mbsn);
+                }
+            }
+        }
+
+        else if (notification instanceof JMXConnectionNotification) {
+            String type = notification.getType();
+            if (JMXConnectionNotification.NOTIFS_LOST.equals(type)) {
+                // Can't tell what we missed, start again next time
+                stale = true;
+            }
+            else if (JMXConnectionNotification.CLOSED.equals(type)
+                    || JMXConnectionNotification.FAILED.equals(type)) {
+                synchronized (indexes) {
+                    if (indexes.get(connectionId) == this)
+                        indexes.remove(connectionId);
+                }
+                stale = true;
+            }
+        }
+    }
+
+    /**
+     * Subscribes to the delegate before sweeping, so that nothing registered
+     * or unregistered during the sweep is missed.
+     * 
+     * @param connection
+     * @throws IOException
+     */
+    private void build(MBeanServerConnection connection) throws IOException {
+
+        synchronized (this) {
+            pending = new ArrayList<MBeanServerNotification>();
+        }
+
+        connector.addConnectionNotificationListener(this, null, null);
+
+        try {
+            connection.addNotificationListener(
+                    MBeanServerDelegate.DELEGATE_NAME, this, null, null);
+        }
+        catch (InstanceNotFoundException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+
+        String domain = connection.getDefaultDomain();
+        Set<ObjectName> found = connection.queryNames(null, null);
+
+        synchronized (this) {
+            this.defaultDomain = domain;
+            for (ObjectName name : found) {
+                add(name);
+            }
+            for (MBeanServerNotification mbsn : pending) {
+                apply(mbsn);
+            }
+            pending = null;
+        }
+    }
+
+    /**
+     * Stops listening, best effort.
+     */
+    private void dispose() {
+        try {
+            connector.removeConnectionNotificationListener(this);
+        }
+        catch (ListenerNotFoundException e) {
+            // ignore
+        }
+
+        try {
+            connector.getMBeanServerConnection().removeNotificationListener(
+                    MBeanServerDelegate.DELEGATE_NAME, this);
+        }
+        catch (Exception e) {
+            // ignore, the connection may already be gone
+        }
+    }
+
+    /**
+     * @param mbsn
+     */
+    private void apply(MBeanServerNotification mbsn) {
+        if (MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(mbsn
+                .getType())) {
+            add(mbsn.getMBeanName());
+        }
+        else if (MBeanServerNotification.UNREGISTRATION_NOTIFICATION
+                .equals(mbsn.getType())) {
+            remove(mbsn.getMBeanName());
+        }
+    }
+
+    /**
+     * @param name
+     */
+    private void add(ObjectName name) {
+        if (!names.add(name))
+            return;
+
+        entries(byDomain, name.getDomain()).add(name);
+        for (Map.Entry<String, String> property : name.getKeyPropertyList()
+                .entrySet()) {
+            entries(byProperty, property.getKey() + "=" + property.getValue())
+                    .add(name);
+        }
+    }
+
+    /**
+     * @param name
+     */
+    private void remove(ObjectName name) {
+        if (!names.remove(name))
+            return;
+
+        byDomain.get(name.getDomain()).remove(name);
+        for (Map.Entry<String, String> property : name.getKeyPropertyList()
+                .entrySet()) {
+            byProperty.get(property.getKey() + "=" + property.getValue())
+                    .remove(name);
+        }
+    }
+
+    /**
+     * A pattern with an empty domain means the server's default domain.
+     * 
+     * @param pattern
+     * @return pattern
+     */
+    private ObjectName qualify(ObjectName pattern) {
+        if (pattern.getDomain().length() > 0 || defaultDomain == null)
+            return pattern;
+
+        try {
+            return ObjectName.getInstance(defaultDomain
+                    + pattern.getCanonicalName());
+        }
+        catch (MalformedObjectNameException e) {
+            return pattern;
+        }
+    }
+
+    /**
+     * @param map
+     * @param key
+     * @return the set for the key, created if need be
+     */
+    private static Set<ObjectName> entries(Map<String, Set<ObjectName>> map,
+            String key) {
+        Set<ObjectName> set = map.get(key);
+        if (set == null) {
+            set = new HashSet<ObjectName>();
+            map.put(key, set);
+        }
+        return set;
+    }
+
+    /**
+     * @param current
+     * @param other
+     * @return the smaller of the two, an empty set if other is missing
+     */
+    private static Set<ObjectName> smallest(Set<ObjectName> current,
+            Set<ObjectName> other) {
+        if (other == null)
+            return Collections.emptySet();
+        return other.size() < current.size() ? other : current;
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+/**
+ * A {@link Rule} which has held for long enough, for one instance.
+ * 
+ * @author pidster
+ * 
+ */
+public class Alert {
+
+    private final Rule rule;
+
+    private final String instance;
+
+    private final double value;
+
+    private final long time;
+
+    /**
+     * @param rule
+     * @param instance
+     * @param value
+     *            of the left hand side
+     * @param time
+     */
+    public Alert(Rule rule, String instance, double value, long time) {
+        this.rule = rule;
+        this.instance = instance;
+        this.value = value;
+        this.time = time;
+    }
+
+    /**
+     * @return rule
+     */
+    public Rule getRule() {
+        return rule;
+    }
+
+    /**
+     * @return instance
+     */
+    public String getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the value of the left hand side
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @return time
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        String v = value == Math.rint(value) ? String.valueOf((long) value)
+                : String.format("%.3f", value);
+        return rule + " [" + instance + "] was " + v;
+    }
+
+}
@@ -0,0 +1,397 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Lays out a sample as a table per group, top style: counters as rates,
+ * gauges as they are, latencies as the mean over the interval and the
+ * percentiles of those means so far. Big groups show their busiest rows only.
+ * Each row ends with a sparkline of its first metric over the last few
+ * minutes, the peak in each slice, from the rollups once there are some.
+ * 
+ * @author pidster
+ * 
+ */
+public class Dashboard {
+
+    private static final int MAX_ROWS = 10;
+
+    private static final int COLUMN_WIDTH = 10;
+
+    private static final int MIN_NAME_WIDTH = 20;
+
+    private static final int MAX_NAME_WIDTH = 40;
+
+    private static final int TREND_POINTS = 16;
+
+    private static final long TREND_WINDOW = 5 * 60 * 1000L;
+
+    private static final String SPARKS = Charset.defaultCharset()
+            .newEncoder().canEncode("\u2581\u2588") ? "\u2581\u2582\u2583\u2584\u2585\u2586\u2587\u2588"
+            : "_.-~=*#@";
+
+    private final double[] points = new double[TREND_POINTS];
+
+    private final Map<MetricGroup, List<Row>> groups;
+
+    private final List<Row> latencies;
+
+    private final int nameWidth;
+
+    /**
+     * @param series
+     *            in sample order
+     * @param columns
+     *            where each series is in the store
+     * @param histograms
+     *            of latencies, by series name, kept from one dashboard to
+     *            the next
+     */
+    public Dashboard(List<Series> series, int[] columns,
+            Map<String, Histogram> histograms) {
+        this.groups = new LinkedHashMap<MetricGroup, List<Row>>();
+        this.latencies = new ArrayList<Row>();
+
+        Map<String, Row> rows = new LinkedHashMap<String, Row>();
+        int width = MIN_NAME_WIDTH;
+
+        for (int i = 0; i < series.size(); i++) {
+            Series s = series.get(i);
+            int metric = s.getGroup().getMetrics().indexOf(s.getMetric());
+            // e.g. an attribute only a rule needs
+            if (metric < 0)
+                continue;
+
+            String key = s.getGroup().getName() + "|" + s.getInstance();
+
+            Row row = rows.get(key);
+            if (row == null) {
+                row = new Row(s.getGroup(), s.getInstance(), histograms);
+                rows.put(key, row);
+                if (row.hasLatency)
+                    latencies.add(row);
+
+                List<Row> members = groups.get(s.getGroup());
+                if (members == null) {
+                    members = new ArrayList<Row>();
+                    groups.put(s.getGroup(), members);
+                }
+                members.add(row);
+                width = Math.max(width, s.getInstance().length() + 2);
+            }
+
+            row.columns[metric] = columns[i];
+        }
+
+        this.nameWidth = Math.min(width, MAX_NAME_WIDTH);
+    }
+
+    /**
+     * Adds the latest latencies to the histograms, once per sample.
+     * 
+     * @param store
+     * @param sequence
+     */
+    public void record(MetricStore store, long sequence) {
+        for (Row row : latencies) {
+            List<MetricGroup.Metric> metrics = row.group.getMetrics();
+            for (int i = 0; i < metrics.size(); i++) {
+                if (row.histograms[i] == null)
+                    continue;
+
+                MetricGroup.Metric metric = metrics.get(i);
+                double count = delta(store, row, metric.getDenominator(),
+                        sequence);
+                row.histograms[i].record(
+                        latency(store, row, metric, sequence), (long) count);
+            }
+        }
+    }
+
+    /**
+     * @param s
+     *            to append to
+     * @param store
+     *            holding the values
+     * @param sequence
+     *            of the sample to show
+     */
+    public void render(StringBuilder s, final MetricStore store,
+            final long sequence) {
+
+        for (Map.Entry<MetricGroup, List<Row>> entry : groups.entrySet()) {
+            final MetricGroup group = entry.getKey();
+            List<Row> rows = entry.getValue();
+
+            s.append(pad(group.getName().toUpperCase(), nameWidth));
+            for (MetricGroup.Metric metric : group.getMetrics()) {
+                if (metric.getHeading() != null)
+                    s.append(lpad(metric.getHeading(), COLUMN_WIDTH));
+            }
+            s.append("  last ");
+            s.append(TREND_WINDOW / 60000);
+            s.append("m\n");
+
+            // busiest first, if they don't all fit
+            if (rows.size() > MAX_ROWS) {
+                rows = new ArrayList<Row>(rows);
+                Collections.sort(rows, new Comparator<Row>() {
+                    @Override
+                    public int compare(Row r1, Row r2) {
+                        return Double.compare(
+                                sortable(value(group, 0, r2, store, sequence)),
+                                sortable(value(group, 0, r1, store, sequence)));
+                    }
+                });
+            }
+
+            for (Row row : rows.subList(0, Math.min(rows.size(), MAX_ROWS))) {
+                s.append(pad(row.instance, nameWidth));
+                for (int i = 0; i < row.columns.length; i++) {
+                    if (group.getMetrics().get(i).getHeading() == null)
+                        continue;
+                    double value = value(group, i, row, store, sequence);
+                    s.append(lpad(format(group.getMetrics().get(i), value),
+                            COLUMN_WIDTH));
+                }
+                s.append("  ");
+                sparkline(s, store, row.columns[0], store.time(sequence));
+                s.append("\n");
+            }
+
+            if (rows.size() > MAX_ROWS) {
+                s.append("... ");
+                s.append(rows.size() - MAX_ROWS);
+                s.append(" more\n");
+            }
+
+            s.append("\n");
+        }
+    }
+
+    /**
+     * @param s
+     *            to append to
+     * @param store
+     * @param column
+     *            of the series
+     * @param time
+     *            of the sample being shown
+     */
+    private void sparkline(StringBuilder s, MetricStore store, int column,
+            long time) {
+        if (column < 0)
+            return;
+
+        // a counter's peak rate, so a burst shows
+        store.query(column, time - TREND_WINDOW + 1, time + 1,
+                Rollup.Aggregate.MAX, points);
+
+        double low = 0;
+        double high = 0;
+        for (double point : points) {
+            if (Double.isNaN(point))
+                continue;
+            low = Math.min(low, point);
+            high = Math.max(high, point);
+        }
+
+        int levels = SPARKS.length() - 1;
+        for (double point : points) {
+            if (Double.isNaN(point))
+                s.append(' ');
+            else if (high == low)
+                s.append(SPARKS.charAt(0));
+            else
+                s.append(SPARKS.charAt((int) Math.round((point - low)
+                        / (high - low) * levels)));
+        }
+    }
+
+    /**
+     * @param group
+     * @param column
+     * @param row
+     * @param store
+     * @param sequence
+     * @return the value to show, or NaN
+     */
+    private static double value(MetricGroup group, int column, Row row,
+            MetricStore store, long sequence) {
+        MetricGroup.Metric metric = group.getMetrics().get(column);
+        int index = row.columns[column];
+
+        double value;
+        switch (metric.getKind()) {
+            case COUNTER:
+                value = store.rate(index, sequence);
+                break;
+            case LATENCY:
+                value = latency(store, row, metric, sequence);
+                break;
+            case PERCENTILE:
+                Histogram histogram = row.histograms[group.indexOf(metric
+                        .getNumerator())];
+                value = histogram.percentile(metric.getPercentile());
+                break;
+            default:
+                value = store.get(index, sequence);
+        }
+
+        return value / metric.getDivisor();
+    }
+
+    /**
+     * @param store
+     * @param row
+     * @param metric
+     *            a latency
+     * @param sequence
+     * @return the mean time taken over the interval, or NaN if there was
+     *         nothing to take it
+     */
+    private static double latency(MetricStore store, Row row,
+            MetricGroup.Metric metric, long sequence) {
+        double time = delta(store, row, metric.getNumerator(), sequence);
+        double count = delta(store, row, metric.getDenominator(), sequence);
+        if (!(count > 0) || time < 0)
+            return Double.NaN;
+        return time / count;
+    }
+
+    /**
+     * @param store
+     * @param row
+     * @param metric
+     *            a counter
+     * @param sequence
+     * @return how much it went up since the sample before, or NaN
+     */
+    private static double delta(MetricStore store, Row row, String metric,
+            long sequence) {
+        int column = row.columns[row.group.indexOf(metric)];
+        return store.get(column, sequence) - store.get(column, sequence - 1);
+    }
+
+    /**
+     * @param value
+     * @return the value, with NaN sorting below everything else
+     */
+    private static double sortable(double value) {
+        return Double.isNaN(value) ? Double.NEGATIVE_INFINITY : value;
+    }
+
+    /**
+     * @param metric
+     * @param value
+     * @return formatted value
+     */
+    private static String format(MetricGroup.Metric metric, double value) {
+        if (Double.isNaN(value))
+            return "-";
+        if (metric.getKind() != MetricGroup.Kind.GAUGE)
+            return String.format("%.1f", value);
+        return String.format("%.0f", value);
+    }
+
+    /**
+     * @param text
+     * @param width
+     * @return text, padded or cut to the width
+     */
+    private static String pad(String text, int width) {
+        if (text.length() >= width)
+            return text.substring(0, width - 2) + "  ";
+
+        StringBuilder s = new StringBuilder(text);
+        while (s.length() < width)
+            s.append(' ');
+        return s.toString();
+    }
+
+    /**
+     * @param text
+     * @param width
+     * @return text, right aligned
+     */
+    private static String lpad(String text, int width) {
+        StringBuilder s = new StringBuilder();
+        while (s.length() + text.length() < width)
+            s.append(' ');
+        s.append(text);
+        return s.toString();
+    }
+
+    /**
+     * An instance in a group, and where its values are in the store.
+     */
+    private static class Row {
+
+        private final MetricGroup group;
+
+        private final String instance;
+
+        private final int[] columns;
+
+        private final Histogram[] histograms;
+
+        private boolean hasLatency;
+
+        /**
+         * @param group
+         * @param instance
+         * @param histograms
+         *            to find or keep this row's histograms in
+         */
+        private Row(MetricGroup group, String instance,
+                Map<String, Histogram> histograms) {
+            List<MetricGroup.Metric> metrics = group.getMetrics();
+
+            this.group = group;
+            this.instance = instance;
+            this.columns = new int[metrics.size()];
+            this.histograms = new Histogram[metrics.size()];
+            Arrays.fill(columns, -1);
+
+            for (int i = 0; i < metrics.size(); i++) {
+                if (metrics.get(i).getKind() != MetricGroup.Kind.LATENCY)
+                    continue;
+
+                String key = group.getName() + "." + metrics.get(i).getName()
+                        + "[" + instance + "]";
+                Histogram histogram = histograms.get(key);
+                if (histogram == null) {
+                    histogram = new Histogram();
+                    histograms.put(key, histogram);
+                }
+                this.histograms[i] = histogram;
+                this.hasLatency = true;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,600 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.pidster.tomcat.util.cli.util.IO;
+
+/**
+ * Serves the latest sample as OpenMetrics text over HTTP, e.g. for
+ * Prometheus to scrape.
+ * 
+ * The monitor renders each sample once, on its own thread, into a buffer
+ * which then answers every scrape until the next sample, so scrapes never
+ * reach the server and cost it nothing however many there are. Buffers are
+ * kept and reused once nobody is reading them.
+ * 
+ * One thread serves every connection, with a selector.
+ * 
+ * @author pidster
+ * 
+ */
+public class Exporter implements Closeable {
+
+    private static final String CONTENT_TYPE = "application/openmetrics-text; version=1.0.0; charset=utf-8";
+
+    private static final int HEADER_ROOM = 256;
+
+    private static final int REQUEST_SIZE = 8 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final byte[] NOT_FOUND = response("404 Not Found",
+            "Try /metrics\n");
+
+    private static final byte[] NOT_ALLOWED = response(
+            "405 Method Not Allowed", "GET or HEAD only\n");
+
+    private static final byte[] TOO_LARGE = response(
+            "431 Request Header Fields Too Large", "");
+
+    private static final byte[] UNAVAILABLE = response(
+            "503 Service Unavailable", "No sample yet\n");
+
+    private final ServerSocketChannel server;
+
+    private final Selector selector;
+
+    private final Thread thread;
+
+    private final Object lock = new Object();
+
+    private final List<Snapshot> snapshots = new ArrayList<Snapshot>();
+
+    private final StringBuilder text = new StringBuilder();
+
+    private final CharsetEncoder encoder = UTF_8.newEncoder();
+
+    private final Map<String, List<int[]>> families = new LinkedHashMap<String, List<int[]>>();
+
+    private final List<String> labels = new ArrayList<String>();
+
+    private Snapshot current;
+
+    private volatile boolean closed;
+
+    /**
+     * Starts listening.
+     * 
+     * @param address
+     * @throws IOException
+     */
+    public Exporter(InetSocketAddress address) throws IOException {
+        this.selector = Selector.open();
+        this.server = ServerSocketChannel.open();
+        try {
+            server.socket().setReuseAddress(true);
+            server.socket().bind(address);
+            server.configureBlocking(false);
+            server.register(selector, SelectionKey.OP_ACCEPT);
+        }
+        catch (IOException e) {
+            IO.close(server);
+            close(selector);
+            throw e;
+        }
+
+        this.thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                serve();
+            }
+        }, "tomcat-cli-exporter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param listen
+     *            e.g. 9404, or 0.0.0.0:9404
+     * @return the address, on the loopback interface unless a host is given
+     */
+    public static InetSocketAddress parseAddress(String listen) {
+        int colon = listen.lastIndexOf(':');
+        if (colon < 0)
+            return new InetSocketAddress("127.0.0.1", Integer.parseInt(listen
+                    .trim()));
+        return new InetSocketAddress(listen.substring(0, colon).trim(),
+                Integer.parseInt(listen.substring(colon + 1).trim()));
+    }
+
+    /**
+     * @return the address it's listening on
+     */
+    public InetSocketAddress getAddress() {
+        return (InetSocketAddress) server.socket().getLocalSocketAddress();
+    }
+
+    /**
+     * Works out the metric families, whenever the series change. Only the
+     * monitor's thread calls this.
+     * 
+     * @param series
+     * @param columns
+     *            where each series is in the store
+     */
+    public void bind(List<Series> series, int[] columns) {
+        families.clear();
+        labels.clear();
+
+        // series aggregated into one column share it, it's one member
+        BitSet bound = new BitSet();
+        for (int i = 0; i < series.size(); i++) {
+            Series s = series.get(i);
+            MetricGroup.Metric metric = s.getMetric();
+            if (columns[i] < 0 || bound.get(columns[i])
+                    || metric.getAttribute() == null)
+                continue;
+            bound.set(columns[i]);
+
+            String family = "tomcat_" + s.getGroup().getName() + "_"
+                    + name(metric.getName())
+                    + (s.isCounter() ? " counter" : " gauge");
+            List<int[]> members = families.get(family);
+            if (members == null) {
+                members = new ArrayList<int[]>();
+                families.put(family, members);
+            }
+
+            // the label is rendered once here, not on every sample
+            members.add(new int[] {
+                    columns[i], labels.size()
+            });
+            labels.add("{" + name(s.getGroup().getName()) + "=\""
+                    + escape(s.getInstance()) + "\"}");
+        }
+    }
+
+    /**
+     * Renders the latest sample for the scrapes until the next one. Only the
+     * monitor's thread calls this.
+     * 
+     * @param store
+     * @param sample
+     */
+    public void publish(MetricStore store, Sample sample) {
+        text.setLength(0);
+        for (Map.Entry<String, List<int[]>> entry : families.entrySet()) {
+            String family = entry.getKey();
+            int space = family.indexOf(' ');
+            boolean counter = family.endsWith("counter");
+
+            text.append("# TYPE ").append(family).append('\n');
+            for (int[] member : entry.getValue()) {
+                double value = store.get(member[0], sample.getSequence());
+                if (Double.isNaN(value))
+                    continue;
+                text.append(family, 0, space);
+                if (counter)
+                    text.append("_total");
+                text.append(labels.get(member[1])).append(' ');
+                append(value);
+                text.append('\n');
+            }
+        }
+
+        text.append("# TYPE tomcat_cli_poll_seconds gauge\n");
+        text.append("tomcat_cli_poll_seconds ");
+        append(sample.getDuration() / 1e9);
+        text.append("\n# TYPE tomcat_cli_poll_requests gauge\n");
+        text.append("tomcat_cli_poll_requests ").append(sample.getRequests());
+        text.append("\n# TYPE tomcat_cli_sample_timestamp_seconds gauge\n");
+        text.append("tomcat_cli_sample_timestamp_seconds ");
+        text.append(sample.getTime() / 1000).append('.');
+        text.append(String.valueOf(1000 + sample.getTime() % 1000), 1, 4);
+        text.append("\n# EOF\n");
+
+        Snapshot snapshot = spare();
+        snapshot.render(text, encoder);
+        synchronized (lock) {
+            current = snapshot;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return a snapshot which nobody is reading, and isn't the current one
+     */
+    private Snapshot spare() {
+        synchronized (lock) {
+            for (Snapshot snapshot : snapshots) {
+                if (snapshot != current && snapshot.readers == 0)
+                    return snapshot;
+            }
+            Snapshot snapshot = new Snapshot();
+            snapshots.add(snapshot);
+            return snapshot;
+        }
+    }
+
+    /**
+     * @param value
+     */
+    private void append(double value) {
+        if (value == Math.rint(value) && Math.abs(value) < (1L << 53))
+            text.append((long) value);
+        else
+            text.append(value);
+    }
+
+    /**
+     * The selector loop, until closed.
+     */
+    private void serve() {
+        try {
+            while (!closed) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys()
+                        .iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else if (key.isReadable())
+                            read(key);
+                        else if (key.isWritable())
+                            write(key);
+                    }
+                    catch (IOException e) {
+                        // the scraper went away
+                        close(key);
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            // nothing more can be served
+        }
+        finally {
+            for (SelectionKey key : selector.keys()) {
+                close(key);
+            }
+            close(selector);
+        }
+    }
+
+    /**
+     * @throws IOException
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.register(selector, SelectionKey.OP_READ, new Connection());
+        }
+    }
+
+    /**
+     * Reads until there's a whole request, then answers it.
+     * 
+     * @param key
+     * @throws IOException
+     */
+    private void read(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+        ByteBuffer request = connection.request;
+
+        if (channel.read(request) < 0) {
+            close(key);
+            return;
+        }
+
+        int end = end(request);
+        if (end < 0) {
+            if (!request.hasRemaining())
+                respond(key, ByteBuffer.wrap(TOO_LARGE), false);
+            return;
+        }
+
+        String head = new String(request.array(), 0, end, "ISO-8859-1");
+        String[] line = head.substring(0, head.indexOf('\r')).split(" ");
+
+        // anything after this request is the start of the next
+        request.flip();
+        request.position(end);
+        request.compact();
+
+        boolean keepAlive = line.length > 2 && "HTTP/1.1".equals(line[2])
+                && head.toLowerCase().indexOf("connection: close") < 0;
+
+        if (line.length < 2) {
+            respond(key, ByteBuffer.wrap(NOT_ALLOWED), false);
+        }
+        else if (!"GET".equals(line[0]) && !"HEAD".equals(line[0])) {
+            respond(key, ByteBuffer.wrap(NOT_ALLOWED), keepAlive);
+        }
+        else if (!"/metrics".equals(path(line[1])) && !"/".equals(path(line[1]))) {
+            respond(key, ByteBuffer.wrap(NOT_FOUND), keepAlive);
+        }
+        else {
+            Snapshot snapshot;
+            synchronized (lock) {
+                snapshot = current;
+                if (snapshot != null)
+                    snapshot.readers++;
+            }
+
+            if (snapshot == null) {
+                respond(key, ByteBuffer.wrap(UNAVAILABLE), keepAlive);
+                return;
+            }
+
+            connection.snapshot = snapshot;
+            ByteBuffer response = snapshot.bytes.duplicate();
+            response.position(snapshot.start);
+            if ("HEAD".equals(line[0]))
+                response.limit(HEADER_ROOM);
+            respond(key, response, keepAlive);
+        }
+    }
+
+    /**
+     * @param key
+     * @param response
+     * @param keepAlive
+     *            or close once it's written
+     * @throws IOException
+     */
+    private void respond(SelectionKey key, ByteBuffer response,
+            boolean keepAlive) throws IOException {
+        Connection connection = (Connection) key.attachment();
+        connection.response = response;
+        connection.keepAlive = keepAlive;
+        key.interestOps(SelectionKey.OP_WRITE);
+        write(key);
+    }
+
+    /**
+     * Writes as much as the socket will take.
+     * 
+     * @param key
+     * @throws IOException
+     */
+    private void write(SelectionKey key) throws IOException {
+        SocketChannel channel = (SocketChannel) key.channel();
+        Connection connection = (Connection) key.attachment();
+
+        channel.write(connection.response);
+        if (connection.response.hasRemaining())
+            return;
+
+        release(connection);
+        if (!connection.keepAlive) {
+            close(key);
+            return;
+        }
+
+        key.interestOps(SelectionKey.OP_READ);
+        // a pipelined request may already be here
+        if (end(connection.request) >= 0)
+            read(key);
+    }
+
+    /**
+     * @param key
+     */
+    private void close(SelectionKey key) {
+        if (key.attachment() instanceof Connection)
+            release((Connection) key.attachment());
+        key.cancel();
+        IO.close(key.channel());
+    }
+
+    /**
+     * @param connection
+     */
+    private void release(Connection connection) {
+        connection.response = null;
+        if (connection.snapshot == null)
+            return;
+        synchronized (lock) {
+            connection.snapshot.readers--;
+        }
+        connection.snapshot = null;
+    }
+
+    /**
+     * @param selector
+     */
+    private static void close(Selector selector) {
+        try {
+            // not Closeable until Java 7
+            selector.close();
+        }
+        catch (IOException e) {
+            // ignore
+        }
+    }
+
+    /**
+     * @param request
+     *            as read so far
+     * @return the end of the head, after the blank line, or -1
+     */
+    private static int end(ByteBuffer request) {
+        byte[] bytes = request.array();
+        for (int i = 3; i < request.position(); i++) {
+            if (bytes[i] == '\n' && bytes[i - 1] == '\r'
+                    && bytes[i - 2] == '\n' && bytes[i - 3] == '\r')
+                return i + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * @param uri
+     * @return the path, without any query
+     */
+    private static String path(String uri) {
+        int query = uri.indexOf('?');
+        return query < 0 ? uri : uri.substring(0, query);
+    }
+
+    /**
+     * @param name
+     * @return the name, with anything not allowed in a metric name as _
+     */
+    private static String name(String name) {
+        StringBuilder s = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            s.append(Character.isLetterOrDigit(c) && c < 128 ? c : '_');
+        }
+        return s.toString();
+    }
+
+    /**
+     * @param value
+     * @return the value, escaped for a label
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"")
+                .replace("\n", "\\n");
+    }
+
+    /**
+     * @param status
+     * @param body
+     * @return a whole response
+     */
+    private static byte[] response(String status, String body) {
+        try {
+            return ("HTTP/1.1 " + status + "\r\nContent-Type: text/plain\r\n"
+                    + "Content-Length: " + body.length() + "\r\n\r\n" + body)
+                    .getBytes("ISO-8859-1");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * A rendered response, the head at the end of the room before the body.
+     */
+    private static class Snapshot {
+
+        private ByteBuffer bytes = ByteBuffer.allocate(64 * 1024);
+
+        private int start;
+
+        private int readers;
+
+        /**
+         * @param text
+         *            the body
+         * @param encoder
+         */
+        private void render(CharSequence text, CharsetEncoder encoder) {
+            while (true) {
+                bytes.clear();
+                bytes.position(HEADER_ROOM);
+                encoder.reset();
+                CoderResult result = encoder.encode(CharBuffer.wrap(text),
+                        bytes, true);
+                if (!result.isOverflow())
+                    result = encoder.flush(bytes);
+                if (!result.isOverflow())
+                    break;
+                bytes = ByteBuffer.allocate(bytes.capacity() * 2);
+            }
+
+            int length = bytes.position() - HEADER_ROOM;
+            byte[] head;
+            try {
+                head = ("HTTP/1.1 200 OK\r\nContent-Type: " + CONTENT_TYPE
+                        + "\r\nContent-Length: " + length + "\r\n\r\n")
+                        .getBytes("ISO-8859-1");
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+
+            start = HEADER_ROOM - head.length;
+            bytes.flip();
+            for (int i = 0; i < head.length; i++) {
+                bytes.put(start + i, head[i]);
+            }
+        }
+    }
+
+    /**
+     * What's been read from a connection, and what's being written to it.
+     */
+    private static class Connection {
+
+        private final ByteBuffer request = ByteBuffer.allocate(REQUEST_SIZE);
+
+        private ByteBuffer response;
+
+        private Snapshot snapshot;
+
+        private boolean keepAlive;
+    }
+
+}
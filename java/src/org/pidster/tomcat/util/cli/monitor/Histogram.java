@@ -0,0 +1,110 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+/**
+ * Counts values in buckets which grow by 10% each, from 10 microseconds to
+ * an hour, so any percentile is within 5% of the truth whatever the scale,
+ * in a fixed 1.7KB.
+ * 
+ * @author pidster
+ * 
+ */
+public class Histogram {
+
+    private static final double MIN = 0.01;
+
+    private static final double GROWTH = 1.1;
+
+    private static final double LOG_GROWTH = Math.log(GROWTH);
+
+    private static final int BUCKETS = 2 + (int) Math.ceil(Math.log(3600000 / MIN)
+            / LOG_GROWTH);
+
+    private final long[] counts;
+
+    private long total;
+
+    /**
+     * An empty histogram.
+     */
+    public Histogram() {
+        this.counts = new long[BUCKETS];
+    }
+
+    /**
+     * @param value
+     *            in milliseconds
+     * @param weight
+     *            e.g. the number of requests it's the mean of
+     */
+    public void record(double value, long weight) {
+        if (Double.isNaN(value) || weight <= 0)
+            return;
+        counts[bucket(value)] += weight;
+        total += weight;
+    }
+
+    /**
+     * @param percentile
+     *            e.g. 0.99
+     * @return the value, or NaN if nothing has been recorded
+     */
+    public double percentile(double percentile) {
+        if (total == 0)
+            return Double.NaN;
+
+        long rank = (long) Math.ceil(percentile * total);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && counts[i] > 0)
+                return value(i);
+        }
+        return value(counts.length - 1);
+    }
+
+    /**
+     * @return the total weight recorded
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @param value
+     * @return its bucket, the first is everything below the minimum
+     */
+    private static int bucket(double value) {
+        if (value < MIN)
+            return 0;
+        int bucket = 1 + (int) (Math.log(value / MIN) / LOG_GROWTH);
+        return Math.min(bucket, BUCKETS - 1);
+    }
+
+    /**
+     * @param bucket
+     * @return the middle of the bucket
+     */
+    private static double value(int bucket) {
+        if (bucket == 0)
+            return 0;
+        return MIN * Math.pow(GROWTH, bucket - 0.5);
+    }
+
+}
@@ -0,0 +1,391 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+/**
+ * A kind of MBean worth monitoring, e.g. every Executor, and the attributes
+ * to sample from each one.
+ * 
+ * @author pidster
+ * 
+ */
+public class MetricGroup {
+
+    private static final List<MetricGroup> defaults = Collections
+            .unmodifiableList(Arrays.asList(
+                    new MetricGroup("connector", 0, "*:type=GlobalRequestProcessor,*",
+                            new String[] { "name" },
+                            new Metric("requests", "requestCount", Kind.COUNTER, "req/s", 1),
+                            new Metric("sent", "bytesSent", Kind.COUNTER, "KB/s", 1024),
+                            new Metric("errors", "errorCount", Kind.COUNTER, "err/s", 1),
+                            new Metric("time", "processingTime", Kind.COUNTER, null, 1),
+                            Metric.latency("latency", "ms", "time", "requests"),
+                            Metric.percentile("p50", "p50", "latency", 0.5),
+                            Metric.percentile("p99", "p99", "latency", 0.99)),
+                    // a webapp is the sum of its servlets, Tomcat 6 doesn't count requests per context
+                    new MetricGroup("webapp", 2, "*:j2eeType=Servlet,*",
+                            new String[] { "WebModule" },
+                            new Metric("requests", "requestCount", Kind.COUNTER, "req/s", 1),
+                            new Metric("errors", "errorCount", Kind.COUNTER, "err/s", 1),
+                            new Metric("time", "processingTime", Kind.COUNTER, null, 1),
+                            Metric.latency("latency", "ms", "time", "requests"),
+                            Metric.percentile("p50", "p50", "latency", 0.5),
+                            Metric.percentile("p99", "p99", "latency", 0.99)),
+                    new MetricGroup("servlet", 3, "*:j2eeType=Servlet,*",
+                            new String[] { "WebModule", "name" },
+                            new Metric("requests", "requestCount", Kind.COUNTER, "req/s", 1),
+                            new Metric("errors", "errorCount", Kind.COUNTER, "err/s", 1),
+                            new Metric("time", "processingTime", Kind.COUNTER, null, 1),
+                            Metric.latency("latency", "ms", "time", "requests"),
+                            Metric.percentile("p50", "p50", "latency", 0.5),
+                            Metric.percentile("p99", "p99", "latency", 0.99)),
+                    new MetricGroup("executor", 0, "*:type=Executor,*",
+                            new String[] { "name" },
+                            new Metric("active", "activeCount", Kind.GAUGE, "active", 1),
+                            new Metric("queue", "queueSize", Kind.GAUGE, "queue", 1),
+                            new Metric("pool", "poolSize", Kind.GAUGE, "pool", 1),
+                            new Metric("max", "maxThreads", Kind.GAUGE, "max", 1)),
+                    new MetricGroup("threadpool", 0, "*:type=ThreadPool,*",
+                            new String[] { "name" },
+                            new Metric("busy", "currentThreadsBusy", Kind.GAUGE, "busy", 1),
+                            new Metric("threads", "currentThreadCount", Kind.GAUGE, "threads", 1),
+                            new Metric("max", "maxThreads", Kind.GAUGE, "max", 1)),
+                    new MetricGroup("datasource", 0, "*:type=DataSource,*",
+                            new String[] { "name" },
+                            new Metric("active", "numActive", Kind.GAUGE, "active", 1),
+                            new Metric("idle", "numIdle", Kind.GAUGE, "idle", 1),
+                            new Metric("max", "maxActive", Kind.GAUGE, "max", 1)),
+                    new MetricGroup("manager", 1, "*:type=Manager,*",
+                            new String[] { "host", "context", "path" },
+                            new Metric("sessions", "activeSessions", Kind.GAUGE, "sessions", 1),
+                            new Metric("created", "sessionCounter", Kind.COUNTER, "new/s", 1)),
+                    new MetricGroup("gc", 0, "java.lang:type=GarbageCollector,*",
+                            new String[] { "name" },
+                            new Metric("collections", "CollectionCount", Kind.COUNTER, "gc/s", 1),
+                            new Metric("time", "CollectionTime", Kind.COUNTER, "ms/s", 1)),
+                    // composite attributes are read as attribute.key
+                    new MetricGroup("memory", 0, "java.lang:type=Memory",
+                            new String[] { "type" },
+                            new Metric("heap", "HeapMemoryUsage.used", Kind.GAUGE, "heap MB", 1024 * 1024),
+                            new Metric("committed", "HeapMemoryUsage.committed", Kind.GAUGE, "comm MB", 1024 * 1024),
+                            new Metric("max", "HeapMemoryUsage.max", Kind.GAUGE, "max MB", 1024 * 1024),
+                            new Metric("nonheap", "NonHeapMemoryUsage.used", Kind.GAUGE, "nonheap", 1024 * 1024)),
+                    new MetricGroup("threads", 0, "java.lang:type=Threading",
+                            new String[] { "type" },
+                            new Metric("threads", "ThreadCount", Kind.GAUGE, "threads", 1),
+                            new Metric("daemon", "DaemonThreadCount", Kind.GAUGE, "daemon", 1),
+                            new Metric("peak", "PeakThreadCount", Kind.GAUGE, "peak", 1))));
+
+    /**
+     * Counters only ever go up, so it's their rate that's interesting. A
+     * latency is the mean over the last interval, one counter's change
+     * divided by another's, and a percentile is of those latencies over the
+     * whole session.
+     */
+    public enum Kind {
+        COUNTER, GAUGE, LATENCY, PERCENTILE
+    }
+
+    private final String name;
+
+    private final int priority;
+
+    private final String pattern;
+
+    private final String[] instanceKeys;
+
+    private final List<Metric> metrics;
+
+    /**
+     * @param name
+     * @param priority
+     *            0 for groups which are always polled, higher numbers are
+     *            dropped first when polling costs too much
+     * @param pattern
+     *            matching the MBeans in the group
+     * @param instanceKeys
+     *            whose values, joined, name each MBean
+     * @param metrics
+     */
+    public MetricGroup(String name, int priority, String pattern,
+            String[] instanceKeys, Metric... metrics) {
+        this.name = name;
+        this.priority = priority;
+        this.pattern = pattern;
+        this.instanceKeys = instanceKeys;
+        this.metrics = Collections.unmodifiableList(Arrays.asList(metrics));
+    }
+
+    /**
+     * @return the groups the monitor knows about
+     */
+    public static List<MetricGroup> defaults() {
+        return defaults;
+    }
+
+    /**
+     * @return name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return priority, 0 is the highest
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return pattern
+     */
+    public String getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @return metrics
+     */
+    public List<Metric> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param metric
+     *            the metric's name or attribute
+     * @return the metric, or null
+     */
+    public Metric getMetric(String metric) {
+        for (Metric m : metrics) {
+            if (m.getName().equals(metric) || metric.equals(m.getAttribute()))
+                return m;
+        }
+        return null;
+    }
+
+    /**
+     * @param metric
+     * @return its position, or -1
+     */
+    public int indexOf(String metric) {
+        return metrics.indexOf(getMetric(metric));
+    }
+
+    /**
+     * @param name
+     *            of an MBean in this group
+     * @return one series per metric which is read from the MBean
+     */
+    public List<Series> series(ObjectName name) {
+        String instance = instance(name);
+
+        List<Series> series = new ArrayList<Series>();
+        for (Metric metric : metrics) {
+            if (metric.getAttribute() != null)
+                series.add(new Series(this, instance, name, metric));
+        }
+        return series;
+    }
+
+    /**
+     * @param name
+     * @return e.g. http-8080, or localhost/shop
+     */
+    public String instance(ObjectName name) {
+        StringBuilder s = new StringBuilder();
+        for (String key : instanceKeys) {
+            String value = name.getKeyProperty(key);
+            if (value == null)
+                continue;
+            if (value.startsWith("\""))
+                value = ObjectName.unquote(value);
+            // a WebModule is named //host/path
+            if (value.startsWith("//"))
+                value = value.substring(2);
+            if (s.length() > 0 && !value.startsWith("/"))
+                s.append(':');
+            s.append(value);
+        }
+        return s.length() == 0 ? name.getCanonicalKeyPropertyListString() : s
+                .toString();
+    }
+
+    /**
+     * An attribute of each MBean in the group, or a value worked out from
+     * other metrics.
+     */
+    public static class Metric {
+
+        private final String name;
+
+        private final String attribute;
+
+        private final Kind kind;
+
+        private final String heading;
+
+        private final double divisor;
+
+        private final String numerator;
+
+        private final String denominator;
+
+        private final double percentile;
+
+        /**
+         * @param name
+         * @param attribute
+         * @param kind
+         * @param heading
+         *            for the column on screen, or null if it isn't shown
+         * @param divisor
+         *            for the value on screen, e.g. 1024 for KB
+         */
+        public Metric(String name, String attribute, Kind kind, String heading,
+                double divisor) {
+            this(name, attribute, kind, heading, divisor, null, null, 0);
+        }
+
+        /**
+         * @param name
+         * @param attribute
+         * @param kind
+         * @param heading
+         * @param divisor
+         * @param numerator
+         * @param denominator
+         * @param percentile
+         */
+        private Metric(String name, String attribute, Kind kind,
+                String heading, double divisor, String numerator,
+                String denominator, double percentile) {
+            this.name = name;
+            this.attribute = attribute;
+            this.kind = kind;
+            this.heading = heading;
+            this.divisor = divisor;
+            this.numerator = numerator;
+            this.denominator = denominator;
+            this.percentile = percentile;
+        }
+
+        /**
+         * @param name
+         * @param heading
+         * @param time
+         *            the counter of time spent, in milliseconds
+         * @param count
+         *            the counter of things it was spent on
+         * @return the mean time each took over the last interval
+         */
+        public static Metric latency(String name, String heading, String time,
+                String count) {
+            return new Metric(name, null, Kind.LATENCY, heading, 1, time,
+                    count, 0);
+        }
+
+        /**
+         * @param attribute
+         * @return a gauge which isn't shown, named after the attribute
+         */
+        public static Metric extra(String attribute) {
+            return new Metric(attribute, attribute, Kind.GAUGE, null, 1);
+        }
+
+        /**
+         * @param name
+         * @param heading
+         * @param latency
+         *            the latency metric
+         * @param percentile
+         *            e.g. 0.99
+         * @return the percentile of the latency over the session
+         */
+        public static Metric percentile(String name, String heading,
+                String latency, double percentile) {
+            return new Metric(name, null, Kind.PERCENTILE, heading, 1,
+                    latency, null, percentile);
+        }
+
+        /**
+         * @return name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return attribute
+         */
+        public String getAttribute() {
+            return attribute;
+        }
+
+        /**
+         * @return kind
+         */
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return heading
+         */
+        public String getHeading() {
+            return heading;
+        }
+
+        /**
+         * @return divisor
+         */
+        public double getDivisor() {
+            return divisor;
+        }
+
+        /**
+         * @return the time counter of a latency, or the latency of a
+         *         percentile
+         */
+        public String getNumerator() {
+            return numerator;
+        }
+
+        /**
+         * @return the count counter of a latency
+         */
+        public String getDenominator() {
+            return denominator;
+        }
+
+        /**
+         * @return percentile
+         */
+        public double getPercentile() {
+            return percentile;
+        }
+    }
+
+}
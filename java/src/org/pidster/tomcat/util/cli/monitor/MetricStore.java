@@ -0,0 +1,585 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The history of every series, in fixed size ring buffers: one long[] of
+ * sample times, shared by every series, and one double[] of values per
+ * series. A row is a sample, a column is a series, and each sample is known
+ * by its sequence number, counting from zero.
+ * 
+ * Nothing grows once a column has been allocated, so a store never holds
+ * more than 8 bytes * rows * (columns + 1), e.g. 24 hours of one second
+ * samples for 300 series is 86400 rows * 301 * 8 = 199MB. Reads don't
+ * allocate either.
+ * 
+ * Series names are interned, so a series which goes away and comes back,
+ * e.g. a redeployed webapp, carries on in the same column.
+ * 
+ * Older history is kept in {@link Rollup} tiers, each coarser than the one
+ * before, which are fed each sample as it's completed. A query is answered
+ * from the coarsest tier which is fine enough for it.
+ * 
+ * Not thread safe, there's one writer and the same thread reads.
+ * 
+ * @author pidster
+ * 
+ */
+public class MetricStore {
+
+    public static final int BYTES_PER_VALUE = 8;
+
+    /**
+     * How long each resolution is worth keeping, in milliseconds: raw
+     * samples, then each tier of rollups
+     */
+    private static final long[][] RETENTION = {
+            { 0, 60 * 60 * 1000L },
+            { 10 * 1000L, 24 * 60 * 60 * 1000L },
+            { 60 * 1000L, 7 * 24 * 60 * 60 * 1000L },
+            { 10 * 60 * 1000L, 30 * 24 * 60 * 60 * 1000L }
+    };
+
+    private static final int MIN_TIER_ROWS = 60;
+
+    private final int rows;
+
+    private final long[] times;
+
+    private final double[][] columns;
+
+    private final String[] names;
+
+    private final Map<String, Integer> index;
+
+    private final boolean[] counters;
+
+    private final Rollup[] tiers;
+
+    private int size;
+
+    private long count;
+
+    /**
+     * @param rows
+     *            the number of samples kept
+     * @param columns
+     *            the most series there can be
+     * @param tiers
+     *            of rollups, finest first, each passing on to the next
+     */
+    public MetricStore(int rows, int columns, Rollup... tiers) {
+        if (rows < 2 || columns < 1)
+            throw new IllegalArgumentException("Too small: " + rows + " rows, "
+                    + columns + " columns");
+
+        this.rows = rows;
+        this.times = new long[rows];
+        this.columns = new double[columns][];
+        this.names = new String[columns];
+        this.index = new HashMap<String, Integer>();
+        this.counters = new boolean[columns];
+        this.tiers = tiers.clone();
+    }
+
+    /**
+     * Sizes a store and its tiers to fit in a budget, keeping as much history
+     * as is worth keeping at each resolution, while leaving room for more
+     * series to turn up. If it all won't fit, every tier is cut by the same
+     * share, so the coarsest still reaches back furthest.
+     * 
+     * @param budget
+     *            in bytes, at least {@link #minimum(long)}
+     * @param interval
+     *            between samples, in milliseconds
+     * @param series
+     *            the number of series there are now
+     * @return the store
+     * @throws IllegalArgumentException
+     *             if the budget won't hold even one series
+     */
+    public static MetricStore create(long budget, long interval, int series) {
+        interval = Math.max(1, interval);
+        long minimum = minimum(interval);
+        if (budget < minimum)
+            throw new IllegalArgumentException("History needs at least "
+                    + minimum + " bytes, not " + budget);
+
+        // a quarter more, for webapps deployed while we watch
+        long headroom = series + Math.max(1, series / 4);
+
+        long[] resolutions = resolutions(interval);
+        long[] rows = new long[RETENTION.length];
+        double wanted = 0;
+        for (int t = 0; t < RETENTION.length; t++) {
+            if (resolutions[t] == 0)
+                continue;
+            rows[t] = Math.max(2, RETENTION[t][1] / resolutions[t]);
+            wanted += rows[t]
+                    * ((double) bytes(t) * (headroom + 1) + overhead(t));
+        }
+
+        // tiers held at their least can push it over, then they all are
+        long[] sized = scale(rows, Math.min(1, budget / wanted));
+        if (budget - cost(sized, false) < cost(sized, true))
+            sized = scale(rows, 0);
+
+        long columns = (budget - cost(sized, false)) / cost(sized, true);
+        columns = Math.min(columns, Integer.MAX_VALUE);
+
+        Rollup next = null;
+        Rollup[] tiers = new Rollup[0];
+        for (int t = sized.length - 1; t > 0; t--) {
+            if (sized[t] == 0)
+                continue;
+            next = new Rollup(resolutions[t], (int) sized[t], (int) columns,
+                    next);
+            tiers = Arrays.copyOf(tiers, tiers.length + 1);
+            System.arraycopy(tiers, 0, tiers, 1, tiers.length - 1);
+            tiers[0] = next;
+        }
+        return new MetricStore((int) sized[0], (int) columns, tiers);
+    }
+
+    /**
+     * @param interval
+     *            between samples, in milliseconds
+     * @return the smallest budget {@link #create(long, long, int)} takes for
+     *         it, every tier at its fewest rows and a single series
+     */
+    public static long minimum(long interval) {
+        // any non-zero row count scales down to the fewest
+        long[] least = scale(resolutions(Math.max(1, interval)), 0);
+        return cost(least, false) + cost(least, true);
+    }
+
+    /**
+     * @param interval
+     * @return the resolution of each tier, 0 for a tier no coarser than the
+     *         samples, which would just be a copy
+     */
+    private static long[] resolutions(long interval) {
+        long[] resolutions = new long[RETENTION.length];
+        for (int t = 0; t < RETENTION.length; t++) {
+            resolutions[t] = t == 0 ? interval : RETENTION[t][0];
+            if (t > 0 && resolutions[t] <= interval)
+                resolutions[t] = 0;
+        }
+        return resolutions;
+    }
+
+    /**
+     * @param rows
+     *            wanted by each tier, 0 for one that's not kept
+     * @param share
+     *            of them that fits
+     * @return the rows each tier gets, no fewer than it can work with
+     */
+    private static long[] scale(long[] rows, double share) {
+        long[] sized = new long[rows.length];
+        for (int t = 0; t < rows.length; t++) {
+            if (rows[t] == 0)
+                continue;
+            sized[t] = Math.max(t == 0 ? 2 : MIN_TIER_ROWS,
+                    Math.min((long) (rows[t] * share), Integer.MAX_VALUE));
+        }
+        return sized;
+    }
+
+    /**
+     * @param rows
+     *            in each tier
+     * @param perColumn
+     *            true for what each series costs, false for the times and
+     *            counts every tier keeps whatever the number of series
+     * @return the cost, in bytes
+     */
+    private static long cost(long[] rows, boolean perColumn) {
+        long cost = 0;
+        for (int t = 0; t < rows.length; t++)
+            cost += rows[t] * (perColumn ? bytes(t) : overhead(t));
+        return cost;
+    }
+
+    /**
+     * @param tier
+     * @return bytes a row of the tier costs, besides its values
+     */
+    private static int overhead(int tier) {
+        return tier == 0 ? 8 : 12;
+    }
+
+    private static int bytes(int tier) {
+        return tier == 0 ? BYTES_PER_VALUE : Rollup.BYTES_PER_VALUE;
+    }
+
+    /**
+     * @param name
+     *            of a series
+     * @param counter
+     *            true if its rate is what matters, which is what's rolled up
+     * @return its column, or -1 if the store is full
+     */
+    public int intern(String name, boolean counter) {
+        Integer column = index.get(name);
+        if (column != null)
+            return column.intValue();
+
+        if (size == columns.length)
+            return -1;
+
+        // this is the only allocation, and it happens once per series
+        double[] values = new double[rows];
+        Arrays.fill(values, Double.NaN);
+        columns[size] = values;
+        names[size] = name;
+        counters[size] = counter;
+        index.put(name, Integer.valueOf(size));
+        return size++;
+    }
+
+    /**
+     * Starts a sample, every value in it is NaN until it's put.
+     * 
+     * @param time
+     *            in milliseconds
+     * @return the sample's sequence number
+     */
+    public long append(long time) {
+        // the sample before is complete now, and still held
+        if (count > 0 && tiers.length > 0)
+            tiers[0].add(this, count - 1);
+
+        int row = (int) (count % rows);
+        times[row] = time;
+        for (int i = 0; i < size; i++) {
+            columns[i][row] = Double.NaN;
+        }
+        return count++;
+    }
+
+    /**
+     * Sets a value in the latest sample.
+     * 
+     * @param column
+     *            or -1, which is ignored
+     * @param value
+     */
+    public void put(int column, double value) {
+        if (column < 0 || count == 0)
+            return;
+        columns[column][(int) ((count - 1) % rows)] = value;
+    }
+
+    /**
+     * Adds to a value in the latest sample, for series which are the sum of
+     * several MBeans.
+     * 
+     * @param column
+     *            or -1, which is ignored
+     * @param value
+     */
+    public void add(int column, double value) {
+        if (column < 0 || count == 0)
+            return;
+        int row = (int) ((count - 1) % rows);
+        double current = columns[column][row];
+        columns[column][row] = Double.isNaN(current) ? value : current + value;
+    }
+
+    /**
+     * @param column
+     * @param sequence
+     * @return the value, or NaN if there isn't one
+     */
+    public double get(int column, long sequence) {
+        if (column < 0 || column >= size || !contains(sequence))
+            return Double.NaN;
+        return columns[column][(int) (sequence % rows)];
+    }
+
+    /**
+     * @param column
+     * @return the latest value, or NaN
+     */
+    public double latest(int column) {
+        return get(column, count - 1);
+    }
+
+    /**
+     * @param column
+     * @param sequence
+     * @return the change per second since the sample before, or NaN
+     */
+    public double rate(int column, long sequence) {
+        if (!contains(sequence - 1))
+            return Double.NaN;
+
+        long elapsed = time(sequence) - time(sequence - 1);
+        if (elapsed <= 0)
+            return Double.NaN;
+
+        double delta = get(column, sequence) - get(column, sequence - 1);
+        // a restarted webapp starts counting again
+        if (delta < 0)
+            return Double.NaN;
+        return delta * 1000 / elapsed;
+    }
+
+    /**
+     * Fills the points with the values between two times, from the coarsest
+     * tier which is still fine enough to give each point a value, and which
+     * reaches back to the start, then the raw samples since its last bucket.
+     * Falls back to the raw samples alone.
+     * 
+     * @param column
+     * @param from
+     *            in milliseconds
+     * @param to
+     *            in milliseconds
+     * @param aggregate
+     *            of the values in each point
+     * @param points
+     *            to fill, NaN where there's nothing
+     * @return the resolution the values came from, 0 for raw samples
+     */
+    public long query(int column, long from, long to, Rollup.Aggregate aggregate,
+            double[] points) {
+        Arrays.fill(points, Double.NaN);
+        if (points.length == 0 || to <= from)
+            return 0;
+        long step = Math.max(1, (to - from + points.length - 1) / points.length);
+
+        Rollup tier = null;
+        for (int t = tiers.length - 1; t >= 0 && tier == null; t--) {
+            Rollup candidate = tiers[t];
+            if (candidate.getResolution() <= step && candidate.getCount() > 0
+                    && candidate.time(candidate.first()) <= from)
+                tier = candidate;
+        }
+
+        int point = -1;
+        double sum = 0;
+        long n = 0;
+        long raw = from;
+        if (tier != null) {
+            for (long s = tier.seek(from); s < tier.getCount()
+                    && tier.time(s) < to; s++) {
+                double value = tier.get(column, s, aggregate);
+                int weight = tier.getSamples(column, s);
+                int p = (int) ((tier.time(s) - from) / step);
+                if (p != point) {
+                    flush(points, point, aggregate, sum, n);
+                    point = p;
+                    sum = 0;
+                    n = 0;
+                }
+                if (Double.isNaN(value))
+                    continue;
+                sum = combine(points, p, aggregate, sum, value, weight);
+                n += weight;
+            }
+            // the bucket still open is only in the raw samples
+            raw = Math.max(from, tier.time(tier.last()) + tier.getResolution());
+        }
+
+        for (long s = seek(raw); s < count && time(s) < to; s++) {
+            double value = counters[column] ? rate(column, s) : get(column, s);
+            int p = (int) ((time(s) - from) / step);
+            if (p != point) {
+                flush(points, point, aggregate, sum, n);
+                point = p;
+                sum = 0;
+                n = 0;
+            }
+            if (Double.isNaN(value))
+                continue;
+            sum = combine(points, p, aggregate, sum, value, 1);
+            n++;
+        }
+        flush(points, point, aggregate, sum, n);
+        return tier == null ? 0 : tier.getResolution();
+    }
+
+    /**
+     * @param sequence
+     * @return when the sample was taken, or 0 if it isn't held
+     */
+    public long time(long sequence) {
+        if (!contains(sequence))
+            return 0;
+        return times[(int) (sequence % rows)];
+    }
+
+    /**
+     * @param sequence
+     * @return true if the sample is still held
+     */
+    public boolean contains(long sequence) {
+        return sequence >= first() && sequence < count;
+    }
+
+    /**
+     * @param time
+     * @return the sequence of the first sample at or after the time, or
+     *         {@link #getCount()} if there isn't one
+     */
+    public long seek(long time) {
+        long low = first();
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (times[(int) (middle % rows)] < time)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * @return the sequence of the oldest sample held
+     */
+    public long first() {
+        return Math.max(0, count - rows);
+    }
+
+    /**
+     * @return the sequence of the latest sample, or -1 if there isn't one
+     */
+    public long last() {
+        return count - 1;
+    }
+
+    /**
+     * @return the number of samples ever taken
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @param column
+     * @return the series' name
+     */
+    public String getName(int column) {
+        return names[column];
+    }
+
+    /**
+     * @param column
+     * @return true if its rate is what matters
+     */
+    public boolean isCounter(int column) {
+        return counters[column];
+    }
+
+    /**
+     * @return the tiers of rollups, finest first
+     */
+    public List<Rollup> getTiers() {
+        return Collections.unmodifiableList(Arrays.asList(tiers));
+    }
+
+    /**
+     * @return the number of series
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of samples kept
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return the most series there can be
+     */
+    public int getColumns() {
+        return columns.length;
+    }
+
+    /**
+     * @return the most memory the store will use, in bytes
+     */
+    public long getBudget() {
+        long budget = (long) BYTES_PER_VALUE * rows * (columns.length + 1);
+        for (Rollup tier : tiers) {
+            budget += tier.getBudget();
+        }
+        return budget;
+    }
+
+    /**
+     * @param points
+     * @param point
+     *            the point being filled, or -1
+     * @param aggregate
+     * @param sum
+     *            of the values in it
+     * @param n
+     *            the weight of the sum
+     */
+    private static void flush(double[] points, int point,
+            Rollup.Aggregate aggregate, double sum, long n) {
+        if (point >= 0 && point < points.length
+                && aggregate == Rollup.Aggregate.AVG && n > 0)
+            points[point] = sum / n;
+    }
+
+    /**
+     * @param points
+     * @param point
+     * @param aggregate
+     * @param sum
+     *            so far, for an average
+     * @param value
+     * @param weight
+     * @return the sum
+     */
+    private static double combine(double[] points, int point,
+            Rollup.Aggregate aggregate, double sum, double value, int weight) {
+        if (point < 0 || point >= points.length)
+            return sum;
+        double current = points[point];
+        switch (aggregate) {
+            case MIN:
+                points[point] = Double.isNaN(current) ? value : Math.min(current, value);
+                break;
+            case MAX:
+                points[point] = Double.isNaN(current) ? value : Math.max(current, value);
+                break;
+            case LAST:
+                points[point] = value;
+                break;
+            default:
+                return sum + value * weight;
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,332 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+import org.pidster.tomcat.util.cli.util.IO;
+
+/**
+ * Appends samples to a file, for {@link Recording} to read back later.
+ * 
+ * The file is a header followed by records, each one an int length, a type
+ * and the payload. A sample is one columnar block: which values are missing,
+ * which can't be stored as whole numbers, then each value as the difference
+ * from the one before it, so an idle counter costs a byte.
+ * 
+ * Records are written straight into a memory mapped region, and the length is
+ * written last. The pages belong to the OS as soon as they're written, so if
+ * the process is killed only a record being written is lost, and it reads as
+ * the end of the file.
+ * 
+ * @author pidster
+ * 
+ */
+public class Recorder implements Closeable {
+
+    static final byte[] MAGIC = new byte[] {
+            'T', 'C', 'L', 'I', 'R', 'E', 'C', '1'
+    };
+
+    static final byte SESSION = 'N';
+
+    static final byte SERIES = 'S';
+
+    static final byte SAMPLE = 'B';
+
+    static final byte EVENT = 'E';
+
+    private static final int REGION = 4 * 1024 * 1024;
+
+    private static final String ENCODING = "UTF-8";
+
+    private final RandomAccessFile file;
+
+    private final FileChannel channel;
+
+    private MappedByteBuffer buffer;
+
+    private long base;
+
+    private final BitSet defined;
+
+    private long[] previous;
+
+    /**
+     * Opens the file, carrying on after the last complete record if it
+     * already exists.
+     * 
+     * @param path
+     * @throws IOException
+     */
+    public Recorder(File path) throws IOException {
+        long end = path.length() > 0 ? Recording.end(path) : 0;
+
+        this.file = new RandomAccessFile(path, "rw");
+        this.channel = file.getChannel();
+        this.defined = new BitSet();
+        this.previous = new long[0];
+
+        // anything after the last complete record is a partial one
+        file.setLength(end);
+        map(end, REGION);
+        if (end == 0)
+            buffer.put(MAGIC);
+    }
+
+    /**
+     * Starts a session, every series has to be defined again after this.
+     * 
+     * @param time
+     * @param serverInfo
+     * @param interval
+     *            in milliseconds
+     * @throws IOException
+     */
+    public void session(long time, String serverInfo, long interval)
+            throws IOException {
+        byte[] info = bytes(serverInfo);
+        int start = begin(SESSION, 16 + 2 + info.length);
+        buffer.putLong(time);
+        buffer.putLong(interval);
+        putBytes(info);
+        end(start);
+
+        defined.clear();
+        Arrays.fill(previous, 0);
+    }
+
+    /**
+     * Defines any series not already defined.
+     * 
+     * @param series
+     * @param columns
+     *            where each series is in the store
+     * @throws IOException
+     */
+    public void define(List<Series> series, int[] columns) throws IOException {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] < 0 || defined.get(columns[i]))
+                continue;
+
+            Series s = series.get(i);
+            byte[] group = bytes(s.getGroup().getName());
+            byte[] metric = bytes(s.getMetric().getName());
+            byte[] instance = bytes(s.getInstance());
+            byte[] name = bytes(s.getObjectName().toString());
+
+            int start = begin(SERIES, 4 + 8 + group.length + metric.length
+                    + instance.length + name.length);
+            buffer.putInt(columns[i]);
+            putBytes(group);
+            putBytes(metric);
+            putBytes(instance);
+            putBytes(name);
+            end(start);
+
+            defined.set(columns[i]);
+        }
+    }
+
+    /**
+     * @param time
+     * @param event
+     * @throws IOException
+     */
+    public void event(long time, String event) throws IOException {
+        byte[] text = bytes(event);
+        int start = begin(EVENT, 8 + 2 + text.length);
+        buffer.putLong(time);
+        putBytes(text);
+        end(start);
+    }
+
+    /**
+     * Writes every column of a sample in the store.
+     * 
+     * @param store
+     * @param sample
+     * @param skipped
+     *            ticks so far
+     * @throws IOException
+     */
+    public void sample(MetricStore store, Sample sample, long skipped)
+            throws IOException {
+        int columns = store.size();
+        if (previous.length < columns)
+            previous = Arrays.copyOf(previous, columns);
+
+        int bitmap = (columns + 7) / 8;
+        int start = begin(SAMPLE, 8 + 10 + 10 + 5 + 5 + 2 * bitmap + 10
+                * columns);
+        buffer.putLong(sample.getTime());
+        putVarLong(sample.getDuration());
+        putVarLong(skipped);
+        putVarLong(sample.getRequests());
+        putVarLong(columns);
+
+        // two bitmaps, missing then raw, filled in as the values are written
+        int missing = buffer.position();
+        int raw = missing + bitmap;
+        for (int i = 0; i < 2 * bitmap; i++) {
+            buffer.put((byte) 0);
+        }
+
+        for (int c = 0; c < columns; c++) {
+            double value = store.get(c, sample.getSequence());
+            if (Double.isNaN(value)) {
+                set(missing, c);
+            }
+            else if (isWhole(value)) {
+                long whole = (long) value;
+                putVarLong(zigzag(whole - previous[c]));
+                previous[c] = whole;
+            }
+            else {
+                set(raw, c);
+                buffer.putDouble(value);
+            }
+        }
+        end(start);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        long end = base + buffer.position();
+        buffer.force();
+        buffer = null;
+        try {
+            // a mapped region can't be unmapped, it goes when collected
+            file.setLength(end);
+        }
+        catch (IOException e) {
+            // the zeros at the end read as the end of the file anyway
+        }
+        IO.close(file);
+    }
+
+    /**
+     * Writes a record's header, with room for the length.
+     * 
+     * @param type
+     * @param size
+     *            the most the payload can be
+     * @return the record's start
+     * @throws IOException
+     */
+    private int begin(byte type, int size) throws IOException {
+        if (buffer.remaining() < 5 + size)
+            map(base + buffer.position(), Math.max(REGION, 5 + size));
+
+        int start = buffer.position();
+        buffer.putInt(0);
+        buffer.put(type);
+        return start;
+    }
+
+    /**
+     * Writes the length, which makes the record visible to a reader.
+     * 
+     * @param start
+     */
+    private void end(int start) {
+        buffer.putInt(start, buffer.position() - start - 4);
+    }
+
+    /**
+     * @param position
+     *            in the file
+     * @param size
+     * @throws IOException
+     */
+    private void map(long position, int size) throws IOException {
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+        base = position;
+    }
+
+    /**
+     * @param bitmap
+     *            position
+     * @param bit
+     */
+    private void set(int bitmap, int bit) {
+        int index = bitmap + bit / 8;
+        buffer.put(index, (byte) (buffer.get(index) | (1 << (bit % 8))));
+    }
+
+    /**
+     * @param value
+     */
+    private void putVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * @param bytes
+     */
+    private void putBytes(byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    /**
+     * @param text
+     * @return the text as UTF-8, cut to fit a short length
+     * @throws IOException
+     */
+    private static byte[] bytes(String text) throws IOException {
+        byte[] bytes = String.valueOf(text).getBytes(ENCODING);
+        if (bytes.length > Short.MAX_VALUE)
+            return Arrays.copyOf(bytes, Short.MAX_VALUE);
+        return bytes;
+    }
+
+    /**
+     * @param value
+     * @return true if it's stored exactly as a long
+     */
+    private static boolean isWhole(double value) {
+        return value == Math.rint(value) && Math.abs(value) < (1L << 53);
+    }
+
+    /**
+     * @param value
+     * @return the value, with small negative numbers as small positive ones
+     */
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+}
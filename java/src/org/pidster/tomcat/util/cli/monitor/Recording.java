@@ -0,0 +1,379 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.pidster.tomcat.util.cli.util.IO;
+
+/**
+ * Reads back a file written by {@link Recorder}, a record at a time. After
+ * {@link #next()} the getters for that type of record are valid. The arrays
+ * behind them are reused, so reading a long capture doesn't churn the heap.
+ * 
+ * @author pidster
+ * 
+ */
+public class Recording implements Closeable {
+
+    public static final int END = -1;
+
+    public static final int SESSION = Recorder.SESSION;
+
+    public static final int SERIES = Recorder.SERIES;
+
+    public static final int SAMPLE = Recorder.SAMPLE;
+
+    public static final int EVENT = Recorder.EVENT;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final DataInputStream input;
+
+    private long position;
+
+    private byte[] record;
+
+    private ByteBuffer buffer;
+
+    private long time;
+
+    private long interval;
+
+    private String text;
+
+    private int column;
+
+    private Series series;
+
+    private long duration;
+
+    private long skipped;
+
+    private int requests;
+
+    private int columns;
+
+    private double[] values;
+
+    private long[] previous;
+
+    /**
+     * @param path
+     * @throws IOException
+     *             if it isn't a recording
+     */
+    public Recording(File path) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(path), BUFFER_SIZE));
+        this.record = new byte[BUFFER_SIZE];
+        this.buffer = ByteBuffer.wrap(record);
+        this.values = new double[0];
+        this.previous = new long[0];
+
+        byte[] magic = new byte[Recorder.MAGIC.length];
+        try {
+            input.readFully(magic);
+        }
+        catch (EOFException e) {
+            // handled below
+        }
+        if (!Arrays.equals(magic, Recorder.MAGIC)) {
+            IO.close(input);
+            throw new IOException("Not a recording: " + path);
+        }
+        position = magic.length;
+    }
+
+    /**
+     * @param path
+     * @return the position after the last complete record
+     * @throws IOException
+     *             if it isn't a recording
+     */
+    static long end(File path) throws IOException {
+        Recording recording = new Recording(path);
+        try {
+            while (recording.next() != END) {
+                // just reading
+            }
+            return recording.position;
+        }
+        finally {
+            IO.close(recording);
+        }
+    }
+
+    /**
+     * @return the type of the next record, or {@link #END}
+     * @throws IOException
+     */
+    public int next() throws IOException {
+        int length;
+        try {
+            length = input.readInt();
+            // a record that wasn't finished, or the zeros after the last
+            if (length <= 0)
+                return END;
+
+            if (length > record.length) {
+                record = new byte[Math.max(length, record.length * 2)];
+                buffer = ByteBuffer.wrap(record);
+            }
+            input.readFully(record, 0, length);
+        }
+        catch (EOFException e) {
+            return END;
+        }
+
+        position += 4 + length;
+        buffer.clear();
+        buffer.limit(length);
+
+        byte type = buffer.get();
+        switch (type) {
+            case Recorder.SESSION:
+                time = buffer.getLong();
+                interval = buffer.getLong();
+                text = readString();
+                Arrays.fill(previous, 0);
+                break;
+
+            case Recorder.SERIES:
+                column = buffer.getInt();
+                series = readSeries();
+                break;
+
+            case Recorder.EVENT:
+                time = buffer.getLong();
+                text = readString();
+                break;
+
+            case Recorder.SAMPLE:
+                readSample();
+                break;
+
+            default:
+                throw new IOException("Unknown record '" + (char) type
+                        + "' at " + (position - length - 4));
+        }
+        return type;
+    }
+
+    /**
+     * @return the time of a session, event or sample
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return a session's sampling interval, in milliseconds
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return a session's server info
+     */
+    public String getServerInfo() {
+        return text;
+    }
+
+    /**
+     * @return an event's text
+     */
+    public String getEvent() {
+        return text;
+    }
+
+    /**
+     * @return a series' column
+     */
+    public int getColumn() {
+        return column;
+    }
+
+    /**
+     * @return a series, or null if it's from a group this version doesn't know
+     */
+    public Series getSeries() {
+        return series;
+    }
+
+    /**
+     * @return a sample's poll duration, in nanoseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return the ticks skipped before the sample
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return the requests a sample took
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+    /**
+     * @return the number of columns in a sample
+     */
+    public int getColumns() {
+        return columns;
+    }
+
+    /**
+     * @param column
+     * @return the value in a sample, or NaN
+     */
+    public double get(int column) {
+        return column < columns ? values[column] : Double.NaN;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.io.Closeable#close()
+     */
+    @Override
+    public void close() throws IOException {
+        input.close();
+    }
+
+    /**
+     * Reads a block, undoing the encoding in {@link Recorder}.
+     */
+    private void readSample() {
+        time = buffer.getLong();
+        duration = readVarLong();
+        skipped = readVarLong();
+        requests = (int) readVarLong();
+        columns = (int) readVarLong();
+
+        if (values.length < columns)
+            values = new double[columns];
+        if (previous.length < columns)
+            previous = Arrays.copyOf(previous, columns);
+
+        int bitmap = (columns + 7) / 8;
+        int missing = buffer.position();
+        int raw = missing + bitmap;
+        buffer.position(raw + bitmap);
+
+        for (int c = 0; c < columns; c++) {
+            if (isSet(missing, c)) {
+                values[c] = Double.NaN;
+            }
+            else if (isSet(raw, c)) {
+                values[c] = buffer.getDouble();
+            }
+            else {
+                long delta = readVarLong();
+                previous[c] += (delta >>> 1) ^ -(delta & 1);
+                values[c] = previous[c];
+            }
+        }
+    }
+
+    /**
+     * @return the series, or null if its group or metric is unknown
+     */
+    private Series readSeries() {
+        String group = readString();
+        String metric = readString();
+        String instance = readString();
+        String name = readString();
+
+        for (MetricGroup g : MetricGroup.defaults()) {
+            if (!g.getName().equals(group))
+                continue;
+
+            MetricGroup.Metric m = g.getMetric(metric);
+            // an attribute sampled for a rule
+            if (m == null)
+                m = MetricGroup.Metric.extra(metric);
+            try {
+                return new Series(g, instance, ObjectName.getInstance(name), m);
+            }
+            catch (MalformedObjectNameException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param bitmap
+     * @param bit
+     * @return true if it's set
+     */
+    private boolean isSet(int bitmap, int bit) {
+        return (buffer.get(bitmap + bit / 8) & (1 << (bit % 8))) != 0;
+    }
+
+    /**
+     * @return the value
+     */
+    private long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * @return the string
+     */
+    private String readString() {
+        int length = buffer.getShort();
+        int offset = buffer.position();
+        buffer.position(offset + length);
+        try {
+            return new String(record, offset, length, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
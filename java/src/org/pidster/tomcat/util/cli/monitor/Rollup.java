@@ -0,0 +1,355 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.util.Arrays;
+
+/**
+ * One tier of downsampled history: a bucket per resolution, e.g. a minute,
+ * holding the min, max, average and last value of every series in it, and
+ * how many samples of the series went into it, which can be fewer than the
+ * bucket's, e.g. for a webapp deployed part way through. A counter is held
+ * as its rate, so a spike in requests shows in the max.
+ * 
+ * Buckets are filled as samples arrive. When one closes it's written to a
+ * fixed size ring, like {@link MetricStore}, and passed on to the next,
+ * coarser, tier, so each tier only ever sees a bucket once. Values are held
+ * as floats, which is plenty for a graph, in 20 bytes a bucket.
+ * 
+ * @author pidster
+ * 
+ */
+public class Rollup {
+
+    /**
+     * Floats held per bucket: min, max, average, last and samples
+     */
+    private static final int STRIDE = 5;
+
+    public static final int BYTES_PER_VALUE = STRIDE * 4;
+
+    /**
+     * What to make of the values in a bucket, or several.
+     */
+    public enum Aggregate {
+        MIN, MAX, AVG, LAST
+    }
+
+    private static final int MIN = 0;
+
+    private static final int MAX = 1;
+
+    private static final int AVG = 2;
+
+    private static final int LAST = 3;
+
+    private static final int N = 4;
+
+    private final long resolution;
+
+    private final int rows;
+
+    private final long[] times;
+
+    private final int[] counts;
+
+    private final float[][] values;
+
+    private final Rollup next;
+
+    private long count;
+
+    private long open = -1;
+
+    private int samples;
+
+    private int size;
+
+    private final double[] min;
+
+    private final double[] max;
+
+    private final double[] sum;
+
+    private final double[] last;
+
+    private final int[] n;
+
+    /**
+     * @param resolution
+     *            of each bucket, in milliseconds
+     * @param rows
+     *            the number of buckets kept
+     * @param columns
+     *            the most series there can be
+     * @param next
+     *            the coarser tier to pass closed buckets to, or null
+     */
+    public Rollup(long resolution, int rows, int columns, Rollup next) {
+        this.resolution = resolution;
+        this.rows = rows;
+        this.times = new long[rows];
+        this.counts = new int[rows];
+        this.values = new float[columns][];
+        this.next = next;
+
+        this.min = new double[columns];
+        this.max = new double[columns];
+        this.sum = new double[columns];
+        this.last = new double[columns];
+        this.n = new int[columns];
+    }
+
+    /**
+     * Adds a sample from the store, once it's complete.
+     * 
+     * @param store
+     * @param sequence
+     */
+    void add(MetricStore store, long sequence) {
+        roll(store.time(sequence));
+        for (int c = 0; c < store.size(); c++) {
+            double value = store.isCounter(c) ? store.rate(c, sequence)
+                    : store.get(c, sequence);
+            accumulate(c, value, value, value, 1, value);
+        }
+        samples++;
+    }
+
+    /**
+     * Adds a bucket closed by the finer tier.
+     * 
+     * @param finer
+     * @param row
+     */
+    private void add(Rollup finer, int row) {
+        roll(finer.times[row]);
+        for (int c = 0; c < finer.size; c++) {
+            float[] v = finer.values[c];
+            if (v == null)
+                continue;
+            // weighted by the column's own samples, not the bucket's
+            int i = row * STRIDE;
+            int weight = (int) v[i + N];
+            accumulate(c, v[i + MIN], v[i + MAX], v[i + AVG] * weight,
+                    weight, v[i + LAST]);
+        }
+        samples += finer.counts[row];
+    }
+
+    /**
+     * @param column
+     * @param sequence
+     *            of a bucket
+     * @param aggregate
+     * @return the value, or NaN
+     */
+    public double get(int column, long sequence, Aggregate aggregate) {
+        if (column < 0 || column >= values.length || values[column] == null
+                || !contains(sequence))
+            return Double.NaN;
+        return values[column][(int) (sequence % rows) * STRIDE
+                + aggregate.ordinal()];
+    }
+
+    /**
+     * @param column
+     * @param sequence
+     *            of a bucket
+     * @return the number of samples of the series in the bucket
+     */
+    public int getSamples(int column, long sequence) {
+        if (column < 0 || column >= values.length || values[column] == null
+                || !contains(sequence))
+            return 0;
+        return (int) values[column][(int) (sequence % rows) * STRIDE + N];
+    }
+
+    /**
+     * @param sequence
+     * @return the number of samples in the bucket
+     */
+    public int getSamples(long sequence) {
+        return contains(sequence) ? counts[(int) (sequence % rows)] : 0;
+    }
+
+    /**
+     * @param sequence
+     * @return the start of the bucket, or 0 if it isn't held
+     */
+    public long time(long sequence) {
+        return contains(sequence) ? times[(int) (sequence % rows)] : 0;
+    }
+
+    /**
+     * @param sequence
+     * @return true if the bucket is still held
+     */
+    public boolean contains(long sequence) {
+        return sequence >= first() && sequence < count;
+    }
+
+    /**
+     * @return the sequence of the oldest bucket held
+     */
+    public long first() {
+        return Math.max(0, count - rows);
+    }
+
+    /**
+     * @return the sequence of the latest closed bucket, or -1
+     */
+    public long last() {
+        return count - 1;
+    }
+
+    /**
+     * @param time
+     * @return the sequence of the first bucket which starts at or after the
+     *         time, or {@link #getCount()} if there isn't one
+     */
+    public long seek(long time) {
+        long low = first();
+        long high = count;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            if (times[(int) (middle % rows)] < time)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * @return the number of buckets ever closed
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * @return resolution, in milliseconds
+     */
+    public long getResolution() {
+        return resolution;
+    }
+
+    /**
+     * @return the number of buckets kept
+     */
+    public int getRows() {
+        return rows;
+    }
+
+    /**
+     * @return how far back the tier reaches, once it's full, in milliseconds
+     */
+    public long getSpan() {
+        return resolution * rows;
+    }
+
+    /**
+     * @return the most memory the tier will use, in bytes
+     */
+    public long getBudget() {
+        return (8L + 4) * rows + (long) BYTES_PER_VALUE * rows * values.length;
+    }
+
+    /**
+     * Closes the open bucket, if the time is past it.
+     * 
+     * @param time
+     */
+    private void roll(long time) {
+        long bucket = time - time % resolution;
+        if (bucket == open)
+            return;
+        if (open >= 0 && samples > 0)
+            close();
+        open = bucket;
+    }
+
+    /**
+     * @param column
+     * @param min
+     * @param max
+     * @param sum
+     * @param n
+     *            the number of samples in the sum
+     * @param last
+     */
+    private void accumulate(int column, double min, double max, double sum,
+            int n, double last) {
+        if (Double.isNaN(sum) || n == 0)
+            return;
+        if (this.n[column] == 0) {
+            this.min[column] = min;
+            this.max[column] = max;
+            this.sum[column] = 0;
+        }
+        else {
+            this.min[column] = Math.min(this.min[column], min);
+            this.max[column] = Math.max(this.max[column], max);
+        }
+        this.sum[column] += sum;
+        this.n[column] += n;
+        this.last[column] = last;
+        size = Math.max(size, column + 1);
+    }
+
+    /**
+     * Writes the open bucket to the ring, and passes it on.
+     */
+    private void close() {
+        int row = (int) (count % rows);
+        times[row] = open;
+        counts[row] = samples;
+
+        for (int c = 0; c < size; c++) {
+            float[] v = values[c];
+            if (v == null && n[c] > 0) {
+                // allocated once per series, the first time it has a value
+                v = new float[rows * STRIDE];
+                Arrays.fill(v, Float.NaN);
+                values[c] = v;
+            }
+            if (v == null)
+                continue;
+
+            int i = row * STRIDE;
+            if (n[c] == 0) {
+                Arrays.fill(v, i, i + N, Float.NaN);
+                v[i + N] = 0;
+                continue;
+            }
+            v[i + MIN] = (float) min[c];
+            v[i + MAX] = (float) max[c];
+            v[i + AVG] = (float) (sum[c] / n[c]);
+            v[i + LAST] = (float) last[c];
+            v[i + N] = n[c];
+            n[c] = 0;
+        }
+
+        count++;
+        samples = 0;
+        if (next != null)
+            next.add(this, row);
+    }
+
+}
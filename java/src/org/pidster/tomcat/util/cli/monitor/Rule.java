@@ -0,0 +1,599 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.pidster.tomcat.util.cli.util.DateTime;
+
+/**
+ * A condition over the series of one group, checked against every instance
+ * in it, e.g.
+ * 
+ * <pre>
+ * executor.active / executor.max &gt; 0.9 for 30s
+ * datasource.numActive == maxActive for 60s
+ * </pre>
+ * 
+ * Metrics are named as on screen or by attribute, and once one is qualified
+ * with its group the rest needn't be. An attribute the group doesn't
+ * usually sample is sampled as a gauge. Counters are per second, as on
+ * screen, but nothing is scaled, so bytes are bytes.
+ * 
+ * Each sample is checked as it arrives: an instance only remembers since when
+ * the condition has held, so nothing is rescanned. A rule fires once when it
+ * has held for long enough, and again only after it stops holding.
+ * 
+ * @author pidster
+ * 
+ */
+public class Rule {
+
+    private static final Pattern TOKEN = Pattern
+            .compile("\\s*(\\d+(?:\\.\\d+)?[a-z]*|[A-Za-z_][\\w.]*|>=|<=|==|!=|[-+*/()<>])");
+
+    private static final List<String> COMPARISONS = Arrays.asList(">", ">=",
+            "<", "<=", "==", "!=");
+
+    private final String text;
+
+    private final MetricGroup group;
+
+    private final List<MetricGroup.Metric> inputs;
+
+    private final List<MetricGroup.Metric> extras;
+
+    private final Node left;
+
+    private final String comparison;
+
+    private final Node right;
+
+    private final long duration;
+
+    private final Map<String, Instance> instances;
+
+    private List<String> tokens;
+
+    private int next;
+
+    /**
+     * @param text
+     * @throws IllegalArgumentException
+     *             if it can't be read
+     */
+    private Rule(String text) {
+        this.text = text.trim();
+        this.tokens = tokenize(this.text);
+        this.group = group(tokens);
+        this.inputs = new ArrayList<MetricGroup.Metric>();
+        this.extras = new ArrayList<MetricGroup.Metric>();
+        this.instances = new LinkedHashMap<String, Instance>();
+
+        this.left = expression();
+        this.comparison = take();
+        if (!COMPARISONS.contains(comparison))
+            throw invalid("expected one of " + COMPARISONS + " but found '"
+                    + comparison + "'");
+        this.right = expression();
+
+        if ("for".equals(peek())) {
+            take();
+            String held = take();
+            if (held == null)
+                throw invalid("expected a duration after 'for'");
+            this.duration = DateTime.parseDuration(held);
+        }
+        else {
+            this.duration = 0;
+        }
+
+        if (peek() != null)
+            throw invalid("unexpected '" + peek() + "'");
+        this.tokens = null;
+    }
+
+    /**
+     * @param text
+     *            one or more rules, separated by ;
+     * @return the rules
+     * @throws IllegalArgumentException
+     *             if one can't be read
+     */
+    public static List<Rule> parse(String text) {
+        List<Rule> rules = new ArrayList<Rule>();
+        for (String rule : text.split(";")) {
+            if (rule.trim().length() > 0)
+                rules.add(new Rule(rule));
+        }
+        return rules;
+    }
+
+    /**
+     * @return group
+     */
+    public MetricGroup getGroup() {
+        return group;
+    }
+
+    /**
+     * @return attributes the group doesn't usually sample, but this rule
+     *         needs
+     */
+    public List<MetricGroup.Metric> getExtras() {
+        return extras;
+    }
+
+    /**
+     * Finds where each instance's inputs are in the store, whenever the
+     * series change. Instances carry on where they were.
+     * 
+     * @param series
+     * @param columns
+     *            where each series is in the store
+     */
+    public void bind(List<Series> series, int[] columns) {
+        for (Instance instance : instances.values()) {
+            Arrays.fill(instance.columns, -1);
+        }
+
+        for (int i = 0; i < series.size(); i++) {
+            Series s = series.get(i);
+            if (s.getGroup() != group)
+                continue;
+
+            int input = indexOf(s.getMetric().getName());
+            if (input < 0)
+                continue;
+
+            Instance instance = instances.get(s.getInstance());
+            if (instance == null) {
+                instance = new Instance(s.getInstance(), inputs.size());
+                instances.put(s.getInstance(), instance);
+            }
+            instance.columns[input] = columns[i];
+        }
+    }
+
+    /**
+     * Checks the latest sample.
+     * 
+     * @param store
+     * @param sequence
+     *            of the sample
+     * @param fired
+     *            to add an alert to, for each instance which fires now
+     */
+    public void evaluate(MetricStore store, long sequence, List<Alert> fired) {
+        long time = store.time(sequence);
+        for (Instance instance : instances.values()) {
+            double value = left.evaluate(store, sequence, instance);
+            if (!holds(value, right.evaluate(store, sequence, instance))) {
+                instance.since = -1;
+                instance.fired = false;
+                continue;
+            }
+
+            if (instance.since < 0)
+                instance.since = time;
+
+            if (!instance.fired && time - instance.since >= duration) {
+                instance.fired = true;
+                fired.add(new Alert(this, instance.name, value, time));
+            }
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * @param value
+     * @param threshold
+     * @return true if the comparison holds, never if either is NaN
+     */
+    private boolean holds(double value, double threshold) {
+        if (Double.isNaN(value) || Double.isNaN(threshold))
+            return false;
+        if (">".equals(comparison))
+            return value > threshold;
+        if (">=".equals(comparison))
+            return value >= threshold;
+        if ("<".equals(comparison))
+            return value < threshold;
+        if ("<=".equals(comparison))
+            return value <= threshold;
+        if ("==".equals(comparison))
+            return value == threshold;
+        return value != threshold;
+    }
+
+    // ------------------------------------------------------------------
+    // A small recursive descent parser
+
+    /**
+     * @return expression := term (('+'|'-') term)*
+     */
+    private Node expression() {
+        Node node = term();
+        while ("+".equals(peek()) || "-".equals(peek())) {
+            node = new Binary(take().charAt(0), node, term());
+        }
+        return node;
+    }
+
+    /**
+     * @return term := factor (('*'|'/') factor)*
+     */
+    private Node term() {
+        Node node = factor();
+        while ("*".equals(peek()) || "/".equals(peek())) {
+            node = new Binary(take().charAt(0), node, factor());
+        }
+        return node;
+    }
+
+    /**
+     * @return factor := number | metric | '(' expression ')' | '-' factor
+     */
+    private Node factor() {
+        String token = take();
+        if (token == null)
+            throw invalid("it ends too soon");
+
+        if ("(".equals(token)) {
+            Node node = expression();
+            if (!")".equals(take()))
+                throw invalid("expected ')'");
+            return node;
+        }
+
+        if ("-".equals(token))
+            return new Binary('-', new Constant(0), factor());
+
+        if (Character.isDigit(token.charAt(0))) {
+            try {
+                return new Constant(Double.parseDouble(token));
+            }
+            catch (NumberFormatException e) {
+                throw invalid("'" + token + "' isn't a number");
+            }
+        }
+
+        if (Character.isLetter(token.charAt(0)) || token.charAt(0) == '_')
+            return reference(token);
+
+        throw invalid("unexpected '" + token + "'");
+    }
+
+    /**
+     * @param token
+     *            e.g. executor.active, or maxActive
+     * @return the metric's value
+     */
+    private Node reference(String token) {
+        String name = token.substring(token.indexOf('.') + 1);
+
+        MetricGroup.Metric metric = group.getMetric(name);
+        int extra = indexOf(name);
+        if (metric == null && extra >= 0) {
+            metric = inputs.get(extra);
+        }
+        else if (metric == null) {
+            // not on screen, but if it's an attribute it can be read
+            metric = MetricGroup.Metric.extra(name);
+            extras.add(metric);
+        }
+
+        switch (metric.getKind()) {
+            case LATENCY:
+                return new Latency(input(group.getMetric(metric.getNumerator())),
+                        input(group.getMetric(metric.getDenominator())));
+            case PERCENTILE:
+                throw invalid("'" + token
+                        + "' is over the whole session, rules need a latest value");
+            default:
+                return new Value(input(metric), metric.getKind());
+        }
+    }
+
+    /**
+     * @param metric
+     * @return its position in each instance's columns
+     */
+    private int input(MetricGroup.Metric metric) {
+        int input = indexOf(metric.getName());
+        if (input < 0) {
+            inputs.add(metric);
+            input = inputs.size() - 1;
+        }
+        return input;
+    }
+
+    /**
+     * @param metric
+     *            name
+     * @return its position in each instance's columns, or -1
+     */
+    private int indexOf(String metric) {
+        for (int i = 0; i < inputs.size(); i++) {
+            if (inputs.get(i).getName().equals(metric))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the next token, or null
+     */
+    private String peek() {
+        return next < tokens.size() ? tokens.get(next) : null;
+    }
+
+    /**
+     * @return the next token, or null
+     */
+    private String take() {
+        return next < tokens.size() ? tokens.get(next++) : null;
+    }
+
+    /**
+     * @param problem
+     * @return an exception saying what's wrong with the rule
+     */
+    private IllegalArgumentException invalid(String problem) {
+        return new IllegalArgumentException("Invalid rule '" + text + "', "
+                + problem);
+    }
+
+    /**
+     * @param text
+     * @return the tokens
+     */
+    private static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        Matcher matcher = TOKEN.matcher(text);
+        int end = 0;
+        while (end < text.length() && matcher.find(end)
+                && matcher.start() == end) {
+            tokens.add(matcher.group(1));
+            end = matcher.end();
+        }
+
+        if (text.substring(end).trim().length() > 0)
+            throw new IllegalArgumentException("Invalid rule '" + text
+                    + "', can't read '" + text.substring(end).trim() + "'");
+        return tokens;
+    }
+
+    /**
+     * @param tokens
+     * @return the one group the qualified metrics are in
+     */
+    private static MetricGroup group(List<String> tokens) {
+        MetricGroup found = null;
+        for (String token : tokens) {
+            int dot = token.indexOf('.');
+            if (dot < 1 || !Character.isLetter(token.charAt(0)))
+                continue;
+
+            String name = token.substring(0, dot);
+            MetricGroup group = null;
+            for (MetricGroup g : MetricGroup.defaults()) {
+                if (g.getName().equals(name))
+                    group = g;
+            }
+
+            if (group == null)
+                throw new IllegalArgumentException("Invalid rule, no group '"
+                        + name + "'");
+            if (found != null && found != group)
+                throw new IllegalArgumentException(
+                        "Invalid rule, it can only be about one group");
+            found = group;
+        }
+
+        if (found == null)
+            throw new IllegalArgumentException(
+                    "Invalid rule, which group? e.g. executor.active");
+        return found;
+    }
+
+    /**
+     * Where an instance's inputs are, and since when the rule has held.
+     */
+    private static class Instance {
+
+        private final String name;
+
+        private final int[] columns;
+
+        private long since = -1;
+
+        private boolean fired;
+
+        /**
+         * @param name
+         * @param inputs
+         */
+        private Instance(String name, int inputs) {
+            this.name = name;
+            this.columns = new int[inputs];
+            Arrays.fill(columns, -1);
+        }
+    }
+
+    /**
+     * Part of an expression.
+     */
+    private interface Node {
+
+        /**
+         * @param store
+         * @param sequence
+         * @param instance
+         * @return the value, or NaN
+         */
+        double evaluate(MetricStore store, long sequence, Instance instance);
+    }
+
+    /**
+     * A number.
+     */
+    private static class Constant implements Node {
+
+        private final double value;
+
+        /**
+         * @param value
+         */
+        private Constant(double value) {
+            this.value = value;
+        }
+
+        @Override
+        public double evaluate(MetricStore store, long sequence,
+                Instance instance) {
+            return value;
+        }
+    }
+
+    /**
+     * A gauge's value, or a counter's rate.
+     */
+    private static class Value implements Node {
+
+        private final int input;
+
+        private final MetricGroup.Kind kind;
+
+        /**
+         * @param input
+         * @param kind
+         */
+        private Value(int input, MetricGroup.Kind kind) {
+            this.input = input;
+            this.kind = kind;
+        }
+
+        @Override
+        public double evaluate(MetricStore store, long sequence,
+                Instance instance) {
+            int column = instance.columns[input];
+            if (kind == MetricGroup.Kind.COUNTER)
+                return store.rate(column, sequence);
+            return store.get(column, sequence);
+        }
+    }
+
+    /**
+     * The mean time taken over the last interval.
+     */
+    private static class Latency implements Node {
+
+        private final int time;
+
+        private final int count;
+
+        /**
+         * @param time
+         * @param count
+         */
+        private Latency(int time, int count) {
+            this.time = time;
+            this.count = count;
+        }
+
+        @Override
+        public double evaluate(MetricStore store, long sequence,
+                Instance instance) {
+            double t = delta(store, sequence, instance.columns[time]);
+            double n = delta(store, sequence, instance.columns[count]);
+            if (!(n > 0) || t < 0)
+                return Double.NaN;
+            return t / n;
+        }
+
+        /**
+         * @param store
+         * @param sequence
+         * @param column
+         * @return the change since the sample before
+         */
+        private static double delta(MetricStore store, long sequence,
+                int column) {
+            return store.get(column, sequence)
+                    - store.get(column, sequence - 1);
+        }
+    }
+
+    /**
+     * Arithmetic on two nodes.
+     */
+    private static class Binary implements Node {
+
+        private final char operator;
+
+        private final Node left;
+
+        private final Node right;
+
+        /**
+         * @param operator
+         * @param left
+         * @param right
+         */
+        private Binary(char operator, Node left, Node right) {
+            this.operator = operator;
+            this.left = left;
+            this.right = right;
+        }
+
+        @Override
+        public double evaluate(MetricStore store, long sequence,
+                Instance instance) {
+            double l = left.evaluate(store, sequence, instance);
+            double r = right.evaluate(store, sequence, instance);
+            switch (operator) {
+                case '+':
+                    return l + r;
+                case '-':
+                    return l - r;
+                case '*':
+                    return l * r;
+                default:
+                    // x/0 is NaN rather than infinity, e.g. an idle pool
+                    return r == 0 ? Double.NaN : l / r;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+/**
+ * One poll of every series, whose values went into a {@link MetricStore}.
+ * 
+ * @author pidster
+ * 
+ */
+public class Sample {
+
+    private final long time;
+
+    private final long sequence;
+
+    private final long duration;
+
+    private final int requests;
+
+    /**
+     * @param time
+     *            when the poll started, in milliseconds
+     * @param sequence
+     *            of the sample in the store
+     * @param duration
+     *            of the poll, in nanoseconds
+     * @param requests
+     *            sent to take the sample
+     */
+    public Sample(long time, long sequence, long duration, int requests) {
+        this.time = time;
+        this.sequence = sequence;
+        this.duration = duration;
+        this.requests = requests;
+    }
+
+    /**
+     * @return time
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * @return the sample's sequence number in the store
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the poll's duration, in nanoseconds
+     */
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * @return requests
+     */
+    public int getRequests() {
+        return requests;
+    }
+
+}
@@ -0,0 +1,177 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.pidster.tomcat.util.cli.jmx.AttributeMap;
+import org.pidster.tomcat.util.cli.jmx.BulkFetcher;
+
+/**
+ * Reads every series in one round of concurrent requests, one per MBean
+ * rather than one per attribute.
+ * 
+ * @author pidster
+ * 
+ */
+public class Sampler {
+
+    private final List<Series> series;
+
+    private final Map<ObjectName, String[]> attributes;
+
+    private final Map<ObjectName, int[]> indexes;
+
+    private final Map<ObjectName, String[]> keys;
+
+    private final MetricStore store;
+
+    private final int[] columns;
+
+    /**
+     * @param series
+     * @param store
+     *            to keep the values in
+     */
+    public Sampler(List<Series> series, MetricStore store) {
+        this.series = Collections.unmodifiableList(new ArrayList<Series>(
+                series));
+        this.attributes = new LinkedHashMap<ObjectName, String[]>();
+        this.indexes = new LinkedHashMap<ObjectName, int[]>();
+        this.keys = new LinkedHashMap<ObjectName, String[]>();
+        this.store = store;
+        this.columns = new int[series.size()];
+
+        for (int i = 0; i < series.size(); i++) {
+            ObjectName name = series.get(i).getObjectName();
+            String attribute = series.get(i).getMetric().getAttribute();
+
+            String[] names = attributes.get(name);
+            int[] positions = indexes.get(name);
+            String[] composites = keys.get(name);
+            if (names == null) {
+                names = new String[0];
+                positions = new int[0];
+                composites = new String[0];
+            }
+
+            names = Arrays.copyOf(names, names.length + 1);
+            positions = Arrays.copyOf(positions, positions.length + 1);
+            composites = Arrays.copyOf(composites, composites.length + 1);
+
+            // e.g. HeapMemoryUsage.used is the used key of HeapMemoryUsage
+            int dot = attribute.indexOf('.');
+            names[names.length - 1] = dot < 0 ? attribute : attribute
+                    .substring(0, dot);
+            composites[composites.length - 1] = dot < 0 ? null : attribute
+                    .substring(dot + 1);
+            positions[positions.length - 1] = store.intern(series.get(i)
+                    .toString(), series.get(i).isCounter());
+
+            attributes.put(name, names);
+            indexes.put(name, positions);
+            keys.put(name, composites);
+            columns[i] = positions[positions.length - 1];
+        }
+    }
+
+    /**
+     * @return the series, in sample order
+     */
+    public List<Series> getSeries() {
+        return series;
+    }
+
+    /**
+     * @return the store's column for each series, in sample order, -1 for any
+     *         which didn't fit
+     */
+    public int[] getColumns() {
+        return columns.clone();
+    }
+
+    /**
+     * @return the store
+     */
+    public MetricStore getStore() {
+        return store;
+    }
+
+    /**
+     * Appends a sample to the store.
+     * 
+     * @param batch
+     *            an empty batch to send the requests in
+     * @return the sample, whose values are in the store
+     * @throws IOException
+     *             if the requests couldn't be sent at all
+     */
+    public Sample sample(BulkFetcher.Batch batch) throws IOException {
+
+        long time = System.currentTimeMillis();
+        long started = System.nanoTime();
+
+        for (Map.Entry<ObjectName, String[]> entry : attributes.entrySet()) {
+            batch.fetch(entry.getKey(), entry.getValue());
+        }
+
+        int requests = batch.size();
+        batch.execute();
+
+        long sequence = store.append(time);
+        for (Map.Entry<ObjectName, AttributeMap> entry : batch.getAttributes()
+                .entrySet()) {
+            String[] names = attributes.get(entry.getKey());
+            int[] positions = indexes.get(entry.getKey());
+            String[] composites = keys.get(entry.getKey());
+
+            for (int i = 0; i < names.length; i++) {
+                Object value = entry.getValue().get(names[i]);
+                if (value instanceof CompositeData)
+                    value = get((CompositeData) value, composites[i]);
+                if (value instanceof Number)
+                    store.add(positions[i], ((Number) value).doubleValue());
+            }
+        }
+
+        return new Sample(time, sequence, System.nanoTime() - started,
+                requests);
+    }
+
+    /**
+     * @param data
+     * @param key
+     *            or null
+     * @return the key's value, or null
+     */
+    private static Object get(CompositeData data, String key) {
+        if (key == null || !data.containsKey(key))
+            return null;
+        return data.get(key);
+    }
+
+}
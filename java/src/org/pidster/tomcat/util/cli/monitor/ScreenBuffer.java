@@ -0,0 +1,242 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+import org.pidster.tomcat.util.cli.util.IO;
+
+/**
+ * A copy of what's on the terminal, so that each new screen is drawn by
+ * writing only the cells which changed, with ANSI cursor addressing. Over a
+ * slow link a screen where only the numbers change costs a few hundred bytes,
+ * not a few thousand, and nothing flickers.
+ * 
+ * Screens are cut to the terminal's size, if it's known, since addressing
+ * past the bottom would scroll and spoil the copy.
+ * 
+ * @author pidster
+ * 
+ */
+public class ScreenBuffer {
+
+    private static final String ESC = "\033[";
+
+    /**
+     * Unchanged cells shorter than this between two changes are rewritten
+     * rather than skipped, it's cheaper than addressing the cursor again
+     */
+    private static final int GAP = 6;
+
+    private final int height;
+
+    private final int width;
+
+    private final StringBuilder output;
+
+    private char[][] cells;
+
+    private int[] lengths;
+
+    private int lines;
+
+    /**
+     * @param height
+     *            of the terminal, or 0 if it isn't known
+     * @param width
+     *            of the terminal, or 0 if it isn't known
+     */
+    public ScreenBuffer(int height, int width) {
+        this.height = height;
+        this.width = width;
+        this.output = new StringBuilder();
+        this.cells = new char[0][];
+        this.lengths = new int[0];
+    }
+
+    /**
+     * @return rows and columns of this process's terminal, or zeros if they
+     *         can't be found out
+     */
+    public static int[] terminalSize() {
+        int height = parse(System.getenv("LINES"));
+        int width = parse(System.getenv("COLUMNS"));
+        if ((height == 0 || width == 0) && System.console() != null) {
+            int[] size = stty();
+            height = height == 0 ? size[0] : height;
+            width = width == 0 ? size[1] : width;
+        }
+        return new int[] { height, width };
+    }
+
+    /**
+     * Works out what to write to turn the last screen into this one.
+     * 
+     * @param screen
+     *            lines of text, without control characters
+     * @return what to write, which is reused by the next update
+     */
+    public CharSequence update(CharSequence screen) {
+        output.setLength(0);
+        boolean first = lines == 0 && cells.length == 0;
+        if (first)
+            output.append(ESC).append("H").append(ESC).append("2J");
+
+        int row = 0;
+        int start = 0;
+        int length = screen.length();
+        while (start < length && (height == 0 || row < height - 1)) {
+            int end = start;
+            while (end < length && screen.charAt(end) != '\n')
+                end++;
+            line(row++, screen, start, Math.min(end, width == 0 ? end
+                    : start + width));
+            start = end + 1;
+        }
+
+        // lines which were there last time, but aren't now
+        if (row < lines) {
+            move(row, 0);
+            output.append(ESC).append("J");
+            Arrays.fill(lengths, row, lines, 0);
+        }
+
+        if (output.length() > 0)
+            move(row, 0);
+        lines = row;
+        return output;
+    }
+
+    /**
+     * @param row
+     * @param screen
+     * @param start
+     *            of the line in the screen
+     * @param end
+     *            of the line in the screen
+     */
+    private void line(int row, CharSequence screen, int start, int end) {
+        int length = end - start;
+        if (row >= cells.length) {
+            cells = Arrays.copyOf(cells, row + 1);
+            lengths = Arrays.copyOf(lengths, row + 1);
+        }
+        if (cells[row] == null || cells[row].length < length)
+            cells[row] = Arrays.copyOf(cells[row] == null ? new char[0]
+                    : cells[row], Math.max(length, 80));
+
+        char[] cell = cells[row];
+        int previous = row < lines ? lengths[row] : 0;
+
+        int column = 0;
+        while (column < length) {
+            if (column < previous && cell[column] == screen.charAt(start + column)) {
+                column++;
+                continue;
+            }
+
+            // a run of changes, taking in short unchanged gaps
+            int from = column;
+            int to = column;
+            int same = 0;
+            while (column < length && same < GAP) {
+                char c = screen.charAt(start + column);
+                if (column < previous && cell[column] == c) {
+                    same++;
+                }
+                else {
+                    same = 0;
+                    to = column + 1;
+                }
+                column++;
+            }
+
+            move(row, from);
+            for (int i = from; i < to; i++) {
+                char c = screen.charAt(start + i);
+                output.append(c);
+                cell[i] = c;
+            }
+        }
+
+        if (length < previous) {
+            move(row, length);
+            output.append(ESC).append("K");
+        }
+        lengths[row] = length;
+    }
+
+    /**
+     * @param row
+     *            from 0
+     * @param column
+     *            from 0
+     */
+    private void move(int row, int column) {
+        output.append(ESC).append(row + 1).append(';').append(column + 1)
+                .append('H');
+    }
+
+    /**
+     * @param value
+     * @return the number, or 0
+     */
+    private static int parse(String value) {
+        try {
+            return value == null ? 0 : Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return rows and columns, or zeros if stty can't say
+     */
+    private static int[] stty() {
+        int[] size = new int[2];
+        BufferedReader reader = null;
+        try {
+            Process process = new ProcessBuilder("sh", "-c",
+                    "stty size < /dev/tty").start();
+            reader = new BufferedReader(new InputStreamReader(
+                    process.getInputStream()));
+            String line = reader.readLine();
+            process.waitFor();
+            if (line != null && line.trim().indexOf(' ') > 0) {
+                String[] parts = line.trim().split("\\s+");
+                size[0] = parse(parts[0]);
+                size[1] = parse(parts[1]);
+            }
+        }
+        catch (IOException e) {
+            // not a unix terminal
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        finally {
+            IO.close(reader);
+        }
+        return size;
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import javax.management.ObjectName;
+
+/**
+ * One attribute of one MBean, sampled over time.
+ * 
+ * @author pidster
+ * 
+ */
+public class Series {
+
+    private final MetricGroup group;
+
+    private final String instance;
+
+    private final ObjectName name;
+
+    private final MetricGroup.Metric metric;
+
+    /**
+     * @param group
+     * @param instance
+     * @param name
+     * @param metric
+     */
+    public Series(MetricGroup group, String instance, ObjectName name,
+            MetricGroup.Metric metric) {
+        this.group = group;
+        this.instance = instance;
+        this.name = name;
+        this.metric = metric;
+    }
+
+    /**
+     * @return group
+     */
+    public MetricGroup getGroup() {
+        return group;
+    }
+
+    /**
+     * @return instance, e.g. http-8080
+     */
+    public String getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return the MBean's name
+     */
+    public ObjectName getObjectName() {
+        return name;
+    }
+
+    /**
+     * @return metric
+     */
+    public MetricGroup.Metric getMetric() {
+        return metric;
+    }
+
+    /**
+     * @return true if it's the rate that matters
+     */
+    public boolean isCounter() {
+        return metric.getKind() == MetricGroup.Kind.COUNTER;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.lang.Object#toString()
+     */
+    @Override
+    public String toString() {
+        return group.getName() + "." + metric.getName() + "[" + instance + "]";
+    }
+
+}
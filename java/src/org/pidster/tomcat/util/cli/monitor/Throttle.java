@@ -0,0 +1,204 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the cost of polling within a budget, the share of each interval spent
+ * waiting for the server to answer. When polls cost too much the interval is
+ * lengthened, up to a limit, and after that low priority groups are dropped.
+ * When there's room again they come back, then the interval shortens.
+ * 
+ * @author pidster
+ * 
+ */
+public class Throttle {
+
+    /**
+     * The most the interval is lengthened by
+     */
+    public static final int MAX_SLOWDOWN = 10;
+
+    private static final double SMOOTHING = 0.5;
+
+    private static final double HEADROOM = 0.5;
+
+    private static final int CALM_POLLS = 5;
+
+    private final double budget;
+
+    private final long base;
+
+    private final int lowest;
+
+    private long interval;
+
+    private int priority;
+
+    private double cost;
+
+    private int calm;
+
+    private String change;
+
+    /**
+     * @param budget
+     *            the share of time polls may take, e.g. 0.1, more than 0 and
+     *            less than 1
+     * @param interval
+     *            the interval asked for, in milliseconds
+     * @param lowest
+     *            the lowest priority there is, the highest number
+     */
+    public Throttle(double budget, long interval, int lowest) {
+        if (!(budget > 0 && budget < 1))
+            throw new IllegalArgumentException("Invalid budget: " + budget);
+        this.budget = budget;
+        this.base = interval;
+        this.interval = interval;
+        this.lowest = lowest;
+        this.priority = lowest;
+        this.cost = Double.NaN;
+    }
+
+    /**
+     * Takes a poll into account, and works out what to do about it.
+     * 
+     * @param duration
+     *            of the poll, in nanoseconds
+     * @param requests
+     *            the poll took
+     * @param restore
+     *            how many more requests it would take with the next dropped
+     *            priority back
+     * @return true if the interval or priority changed, see
+     *         {@link #getChange()}
+     */
+    public boolean update(long duration, int requests, int restore) {
+        double measured = (double) duration
+                / TimeUnit.MILLISECONDS.toNanos(interval);
+        cost = Double.isNaN(cost) ? measured : SMOOTHING * measured
+                + (1 - SMOOTHING) * cost;
+        change = null;
+
+        if (cost > budget) {
+            calm = 0;
+            if (interval < base * MAX_SLOWDOWN) {
+                // capped first, a poll which took far too long mustn't overflow
+                double wanted = Math.ceil(interval * cost / budget);
+                setInterval(round((long) Math.min(wanted, base * MAX_SLOWDOWN)));
+                change = String.format("poll cost %.0f%% over budget, every %dms",
+                        cost * 100, interval);
+            }
+            else if (priority > 0) {
+                priority--;
+                // the next polls will be cheaper, don't hold them to this one
+                cost = Double.NaN;
+                change = "poll cost over budget, dropped";
+            }
+            return change != null;
+        }
+
+        if (cost > budget * HEADROOM || ++calm < CALM_POLLS)
+            return false;
+        calm = 0;
+
+        if (priority < lowest && requests > 0) {
+            double predicted = cost * (requests + restore) / requests;
+            if (predicted < budget * HEADROOM) {
+                priority++;
+                change = "poll cost within budget, restored";
+                return true;
+            }
+        }
+
+        if (interval > base) {
+            long wanted = (long) Math.ceil(interval * cost / (budget * HEADROOM));
+            setInterval(Math.max(base, round(wanted)));
+            change = String.format("poll cost %.0f%% within budget, every %dms",
+                    cost * 100, interval);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the interval to poll at now, in milliseconds
+     */
+    public long getInterval() {
+        return interval;
+    }
+
+    /**
+     * @return the lowest priority to poll, the highest number
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return the smoothed share of time spent polling, or NaN
+     */
+    public double getCost() {
+        return cost;
+    }
+
+    /**
+     * @return budget
+     */
+    public double getBudget() {
+        return budget;
+    }
+
+    /**
+     * @return true if the interval is longer than asked for, or groups have
+     *         been dropped
+     */
+    public boolean isThrottled() {
+        return interval > base || priority < lowest;
+    }
+
+    /**
+     * @return what the last update changed, or null
+     */
+    public String getChange() {
+        return change;
+    }
+
+    /**
+     * @param interval
+     */
+    private void setInterval(long interval) {
+        // the old cost was measured against the old interval
+        cost = cost * this.interval / interval;
+        this.interval = interval;
+    }
+
+    /**
+     * @param interval
+     * @return the interval rounded up to half the base, no longer than the
+     *         most it may be lengthened to
+     */
+    private long round(long interval) {
+        long step = Math.max(1, base / 2);
+        return Math.min(base * MAX_SLOWDOWN, (interval + step - 1) / step
+                * step);
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed rate clock. Ticks are counted from the start rather than from the
+ * last tick, so they don't drift however long each poll takes, and ticks
+ * missed while a poll overran are skipped rather than run back to back.
+ * 
+ * @author pidster
+ * 
+ */
+public class Ticker {
+
+    private long start;
+
+    private long interval;
+
+    private long tick;
+
+    private long skipped;
+
+    /**
+     * @param interval
+     *            in milliseconds, more than 0
+     */
+    public Ticker(long interval) {
+        this.start = System.nanoTime();
+        this.interval = nanos(interval);
+        this.tick = 0;
+    }
+
+    /**
+     * Sleeps until the next tick which hasn't already passed.
+     * 
+     * @return the number of ticks skipped
+     * @throws InterruptedException
+     */
+    public long await() throws InterruptedException {
+        long now = System.nanoTime();
+        long next = (now - start) / interval + 1;
+
+        long missed = next - tick - 1;
+        skipped += missed;
+        tick = next;
+
+        long wait = start + next * interval - now;
+        TimeUnit.NANOSECONDS.sleep(wait);
+        return missed;
+    }
+
+    /**
+     * Changes the interval from the current tick onwards.
+     * 
+     * @param interval
+     *            in milliseconds, more than 0
+     */
+    public void setInterval(long interval) {
+        long nanos = nanos(interval);
+        this.start += tick * this.interval;
+        this.tick = 0;
+        this.interval = nanos;
+    }
+
+    /**
+     * @return the interval in milliseconds
+     */
+    public long getInterval() {
+        return TimeUnit.NANOSECONDS.toMillis(interval);
+    }
+
+    /**
+     * @return the total number of ticks skipped
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @param interval
+     *            in milliseconds
+     * @return the interval in nanoseconds
+     */
+    private static long nanos(long interval) {
+        if (interval <= 0)
+            throw new IllegalArgumentException("Invalid interval: " + interval
+                    + "ms");
+        return TimeUnit.MILLISECONDS.toNanos(interval);
+    }
+
+}
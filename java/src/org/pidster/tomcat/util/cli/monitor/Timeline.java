@@ -0,0 +1,112 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The most recent events, whether they were noticed by polling or sent as
+ * notifications, in the order they happened.
+ * 
+ * @author pidster
+ * 
+ */
+public class Timeline {
+
+    private final String[] events;
+
+    private final long[] times;
+
+    private long count;
+
+    /**
+     * @param capacity
+     *            the number of events kept
+     */
+    public Timeline(int capacity) {
+        this.events = new String[capacity];
+        this.times = new long[capacity];
+    }
+
+    /**
+     * @param event
+     */
+    public void add(String event) {
+        add(System.currentTimeMillis(), event);
+    }
+
+    /**
+     * @param time
+     * @param event
+     */
+    public synchronized void add(long time, String event) {
+        int slot = (int) (count % events.length);
+        events[slot] = event;
+        times[slot] = time;
+        count++;
+    }
+
+    /**
+     * @param max
+     * @return up to max of the latest events, oldest first, each with its time
+     */
+    public synchronized List<String> recent(int max) {
+        SimpleDateFormat format = new SimpleDateFormat("HH:mm:ss");
+
+        long first = Math.max(0, count - Math.min(max, events.length));
+        List<String> recent = new ArrayList<String>();
+        for (long i = first; i < count; i++) {
+            int slot = (int) (i % events.length);
+            recent.add(format.format(new Date(times[slot])) + " " + events[slot]);
+        }
+        return recent;
+    }
+
+    /**
+     * @param n
+     *            counting every event ever added
+     * @return the event, or null if it's gone
+     */
+    public synchronized String getEvent(long n) {
+        if (n < count - events.length || n >= count)
+            return null;
+        return events[(int) (n % events.length)];
+    }
+
+    /**
+     * @param n
+     *            counting every event ever added
+     * @return when the event happened, or 0 if it's gone
+     */
+    public synchronized long getTime(long n) {
+        if (n < count - events.length || n >= count)
+            return 0;
+        return times[(int) (n % events.length)];
+    }
+
+    /**
+     * @return the number of events ever added
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.monitor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * Turns notifications into timeline events: garbage collections, webapps
+ * starting and stopping, and monitored MBeans coming and going. The latter
+ * also mean the set of series needs rebuilding.
+ * 
+ * @author pidster
+ * 
+ */
+public class TimelineListener implements NotificationListener {
+
+    /**
+     * Sent by Java 7 and later, the userData is a GarbageCollectionNotificationInfo
+     */
+    public static final String GC_NOTIFICATION = "com.sun.management.gc.notification";
+
+    /**
+     * Prefix of the types StandardContext sends as its state changes
+     */
+    public static final String STATE_NOTIFICATION = "j2ee.state.";
+
+    public static final String GC_PATTERN = "java.lang:type=GarbageCollector,*";
+
+    public static final String WEBMODULE_PATTERN = "*:j2eeType=WebModule,*";
+
+    private final Timeline timeline;
+
+    private final List<ObjectName> patterns;
+
+    private final AtomicBoolean changed;
+
+    /**
+     * @param timeline
+     * @param groups
+     *            whose MBeans coming or going matter
+     * @throws MalformedObjectNameException
+     */
+    public TimelineListener(Timeline timeline, List<MetricGroup> groups)
+            throws MalformedObjectNameException {
+        this.timeline = timeline;
+        this.patterns = new ArrayList<ObjectName>();
+        this.changed = new AtomicBoolean();
+
+        for (MetricGroup group : groups) {
+            patterns.add(ObjectName.getInstance(group.getPattern()));
+        }
+        patterns.add(ObjectName.getInstance(WEBMODULE_PATTERN));
+    }
+
+    /**
+     * @return a filter for garbage collection notifications
+     */
+    public static NotificationFilterSupport gcFilter() {
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(GC_NOTIFICATION);
+        return filter;
+    }
+
+    /**
+     * @return a filter for webapp state changes
+     */
+    public static NotificationFilterSupport stateFilter() {
+        NotificationFilterSupport filter = new NotificationFilterSupport();
+        filter.enableType(STATE_NOTIFICATION);
+        return filter;
+    }
+
+    /**
+     * @return true if a monitored MBean has come or gone since the last call
+     */
+    public boolean takeChanged() {
+        return changed.getAndSet(false);
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see
+     * javax.management.NotificationListener#handleNotification(javax.management
+     * .Notification, java.lang.Object)
+     */
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+
+        String type = notification.getType();
+
+        if (notification instanceof MBeanServerNotification) {
+            ObjectName name = ((MBeanServerNotification) notification)
+                    .getMBeanName();
+            if (!monitored(name))
+                return;
+
+            boolean registered = MBeanServerNotification.REGISTRATION_NOTIFICATION
+                    .equals(type);
+            timeline.add((registered ? "registered " : "unregistered ") + name);
+            changed.set(true);
+        }
+
+        else if (GC_NOTIFICATION.equals(type)) {
+            timeline.add(gc(notification.getUserData()));
+        }
+
+        else if (type.startsWith(STATE_NOTIFICATION)) {
+            Object source = notification.getSource();
+            String module = source instanceof ObjectName ? ((ObjectName) source)
+                    .getKeyProperty("name") : String.valueOf(source);
+            timeline.add(module + " "
+                    + type.substring(STATE_NOTIFICATION.length()));
+        }
+
+        else {
+            timeline.add(type + " " + notification.getSource());
+        }
+    }
+
+    /**
+     * @param name
+     * @return true if it's one of the MBeans being monitored
+     */
+    private boolean monitored(ObjectName name) {
+        for (ObjectName pattern : patterns) {
+            if (pattern.apply(name))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the notification's open data, rather than using
+     * GarbageCollectionNotificationInfo, which is only in Java 7 and later.
+     * 
+     * @param userData
+     * @return e.g. "end of minor GC PS Scavenge (Allocation Failure) 12ms"
+     */
+    private static String gc(Object userData) {
+        if (!(userData instanceof CompositeData))
+            return "GC";
+
+        CompositeData info = (CompositeData) userData;
+        StringBuilder s = new StringBuilder();
+        s.append(info.get("gcAction"));
+        s.append(" ");
+        s.append(info.get("gcName"));
+        s.append(" (");
+        s.append(info.get("gcCause"));
+        s.append(")");
+
+        Object gcInfo = info.get("gcInfo");
+        if (gcInfo instanceof CompositeData) {
+            s.append(" ");
+            s.append(((CompositeData) gcInfo).get("duration"));
+            s.append("ms");
+        }
+        return s.toString();
+    }
+
+}
@@ -0,0 +1,553 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.threads;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Who waits for which lock, and who holds it, gathered from repeated
+ * samples of every thread's state over a window.
+ * 
+ * A thread is counted as waiting for a lock when it's blocked entering a
+ * monitor, or parked on a lock which has an owner, such as a ReentrantLock.
+ * The time is the thread's own blocked or waited time over the window, when
+ * the server measures it, shared between the locks in proportion to the
+ * samples it was seen waiting on each; otherwise it's estimated from the
+ * samples alone. Waiting with no owner, e.g. for work from a queue, isn't
+ * contention and is left out.
+ * 
+ * @author pidster
+ * 
+ */
+public class Contention {
+
+    private final long period;
+
+    private final Map<Long, Waiter> threads;
+
+    private final Map<String, Lock> locks;
+
+    private final Map<String, Edge> edges;
+
+    private final Map<Long, List<Lock>> owned;
+
+    private int samples;
+
+    /**
+     * @param period
+     *            between samples, in milliseconds
+     */
+    public Contention(long period) {
+        this.period = period;
+        this.threads = new HashMap<Long, Waiter>();
+        this.locks = new LinkedHashMap<String, Lock>();
+        this.edges = new LinkedHashMap<String, Edge>();
+        this.owned = new HashMap<Long, List<Lock>>();
+    }
+
+    /**
+     * Adds a sample of threads, with at least the top frame of each stack.
+     * 
+     * @param infos
+     * @return the ids of the threads holding a lock which another waits for
+     */
+    public long[] add(ThreadInfo[] infos) {
+        samples++;
+        owned.clear();
+
+        for (ThreadInfo info : infos) {
+            if (info == null)
+                continue;
+
+            Waiter waiter = threads.get(info.getThreadId());
+            if (waiter == null) {
+                waiter = new Waiter(info);
+                threads.put(info.getThreadId(), waiter);
+            }
+            waiter.last = info;
+
+            boolean blocked = info.getThreadState() == Thread.State.BLOCKED;
+            boolean waiting = info.getThreadState() == Thread.State.WAITING
+                    || info.getThreadState() == Thread.State.TIMED_WAITING;
+            if (blocked)
+                waiter.blockedSamples++;
+            if (waiting)
+                waiter.waitedSamples++;
+
+            String name = info.getLockName();
+            if (name == null || !(blocked || info.getLockOwnerId() >= 0))
+                continue;
+
+            Lock lock = locks.get(name);
+            if (lock == null) {
+                lock = new Lock(name);
+                locks.put(name, lock);
+            }
+            lock.samples++;
+            lock.waiters.add(info.getThreadId());
+            if (info.getStackTrace().length > 0)
+                increment(lock.sites, format(info.getStackTrace()[0]));
+            increment(blocked ? waiter.blockedOn : waiter.waitedOn, lock);
+
+            long owner = info.getLockOwnerId();
+            if (owner < 0)
+                continue;
+
+            lock.owned++;
+            increment(lock.owners, info.getLockOwnerName());
+            String key = info.getThreadId() + " " + owner + " " + name;
+            Edge edge = edges.get(key);
+            if (edge == null) {
+                edge = new Edge(info.getThreadName(), info.getLockOwnerName(),
+                        name);
+                edges.put(key, edge);
+            }
+            edge.samples++;
+
+            List<Lock> held = owned.get(owner);
+            if (held == null) {
+                held = new ArrayList<Lock>(1);
+                owned.put(owner, held);
+            }
+            if (!held.contains(lock))
+                held.add(lock);
+        }
+
+        long[] ids = new long[owned.size()];
+        int i = 0;
+        for (Long id : owned.keySet())
+            ids[i++] = id;
+        return ids;
+    }
+
+    /**
+     * Adds the stacks of the owners found by the last sample, showing where
+     * each lock is held.
+     * 
+     * @param infos
+     */
+    public void addOwners(ThreadInfo[] infos) {
+        for (ThreadInfo info : infos) {
+            if (info == null)
+                continue;
+            List<Lock> held = owned.get(info.getThreadId());
+            if (held == null)
+                continue;
+
+            StringBuilder s = new StringBuilder();
+            for (StackTraceElement element : info.getStackTrace())
+                s.append("\tat ").append(format(element)).append('\n');
+            String stack = s.toString();
+            for (Lock lock : held)
+                increment(lock.stacks, info.getThreadName() + "\n" + stack);
+        }
+    }
+
+    /**
+     * @return the number of samples
+     */
+    public int getSamples() {
+        return samples;
+    }
+
+    /**
+     * @return the locks waited for, most time first
+     */
+    public List<Lock> getLocks() {
+        for (Lock lock : locks.values())
+            lock.time = 0;
+        for (Waiter waiter : threads.values()) {
+            share(waiter.blockedOn, waiter.blockedSamples,
+                    waiter.getBlockedTime());
+            share(waiter.waitedOn, waiter.waitedSamples,
+                    waiter.getWaitedTime());
+        }
+
+        List<Lock> list = new ArrayList<Lock>(locks.values());
+        Collections.sort(list, new Comparator<Lock>() {
+            @Override
+            public int compare(Lock one, Lock two) {
+                return Double.compare(two.time, one.time);
+            }
+        });
+        return list;
+    }
+
+    /**
+     * @return the threads seen, most blocked first
+     */
+    public List<Waiter> getThreads() {
+        List<Waiter> list = new ArrayList<Waiter>(threads.values());
+        Collections.sort(list, new Comparator<Waiter>() {
+            @Override
+            public int compare(Waiter one, Waiter two) {
+                long a = Math.max(one.getBlockedTime(), 0);
+                long b = Math.max(two.getBlockedTime(), 0);
+                if (a != b)
+                    return a < b ? 1 : -1;
+                return two.blockedSamples - one.blockedSamples;
+            }
+        });
+        return list;
+    }
+
+    /**
+     * Draws who waited for whom: each thread seen holding a lock, most waited
+     * for first, then the threads which waited for it. Owners which were
+     * themselves waiting are marked, so a chain can be followed down.
+     * 
+     * @param s
+     */
+    public void appendGraph(StringBuilder s) {
+        final Map<String, Integer> weights = new HashMap<String, Integer>();
+        Map<String, List<Edge>> waitedFor = new HashMap<String, List<Edge>>();
+        Set<String> waiting = new HashSet<String>();
+        for (Edge edge : edges.values()) {
+            List<Edge> list = waitedFor.get(edge.owner);
+            if (list == null) {
+                list = new ArrayList<Edge>();
+                waitedFor.put(edge.owner, list);
+            }
+            list.add(edge);
+            Integer weight = weights.get(edge.owner);
+            weights.put(edge.owner, (weight == null ? 0 : weight)
+                    + edge.samples);
+            waiting.add(edge.waiter);
+        }
+
+        List<String> owners = new ArrayList<String>(waitedFor.keySet());
+        Collections.sort(owners, new Comparator<String>() {
+            @Override
+            public int compare(String one, String two) {
+                return weights.get(two) - weights.get(one);
+            }
+        });
+
+        for (String owner : owners) {
+            s.append(' ').append(owner);
+            if (waiting.contains(owner))
+                s.append(" (itself waiting)");
+            s.append('\n');
+
+            List<Edge> list = waitedFor.get(owner);
+            Collections.sort(list, new Comparator<Edge>() {
+                @Override
+                public int compare(Edge one, Edge two) {
+                    return two.samples - one.samples;
+                }
+            });
+            for (Edge edge : list) {
+                s.append("   <- ").append(edge.waiter).append(" on ")
+                        .append(edge.lock).append(" (").append(edge.samples)
+                        .append(" samples)\n");
+            }
+        }
+    }
+
+    /**
+     * Writes the wait-for graph for Graphviz, an edge from each waiter to the
+     * thread it waits for.
+     * 
+     * @param out
+     * @throws IOException
+     */
+    public void writeDot(Writer out) throws IOException {
+        out.write("digraph waitfor {\n");
+        out.write("  node [shape=box];\n");
+        for (Edge edge : edges.values()) {
+            out.write("  " + quote(edge.waiter) + " -> " + quote(edge.owner)
+                    + " [label=" + quote(edge.lock + " x" + edge.samples)
+                    + "];\n");
+        }
+        out.write("}\n");
+    }
+
+    /**
+     * @param times
+     *            samples on each lock
+     * @param total
+     *            samples in the state
+     * @param time
+     *            in the state, in milliseconds, or -1 if not measured
+     */
+    private void share(Map<Lock, Integer> times, int total, long time) {
+        for (Map.Entry<Lock, Integer> entry : times.entrySet()) {
+            int n = entry.getValue();
+            entry.getKey().time += time < 0 || total == 0 ? (double) n
+                    * period : (double) time * n / total;
+        }
+    }
+
+    /**
+     * @param element
+     * @return the frame as a stack trace shows it
+     */
+    static String format(StackTraceElement element) {
+        return element.getClassName() + "." + element.getMethodName() + "("
+                + element.getFileName() + ":" + element.getLineNumber() + ")";
+    }
+
+    /**
+     * @param text
+     * @return the text as a Graphviz string
+     */
+    private static String quote(String text) {
+        return "\"" + text.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    /**
+     * @param counts
+     * @param key
+     */
+    private static <K> void increment(Map<K, Integer> counts, K key) {
+        Integer n = counts.get(key);
+        counts.put(key, n == null ? 1 : n + 1);
+    }
+
+    /**
+     * @param counts
+     * @return the key counted most, or null
+     */
+    static <K> Map.Entry<K, Integer> top(Map<K, Integer> counts) {
+        Map.Entry<K, Integer> top = null;
+        for (Map.Entry<K, Integer> entry : counts.entrySet()) {
+            if (top == null || entry.getValue() > top.getValue())
+                top = entry;
+        }
+        return top;
+    }
+
+    /**
+     * A lock some thread waited for.
+     */
+    public static class Lock {
+
+        private final String name;
+
+        private final Set<Long> waiters = new HashSet<Long>();
+
+        private final Map<String, Integer> sites = new HashMap<String, Integer>();
+
+        private final Map<String, Integer> owners = new HashMap<String, Integer>();
+
+        private final Map<String, Integer> stacks = new HashMap<String, Integer>();
+
+        private int samples;
+
+        private int owned;
+
+        private double time;
+
+        /**
+         * @param name
+         */
+        Lock(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the lock's class and identity hash, e.g. java.lang.Object@1b6d3586
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the time spent waiting for it, in milliseconds
+         */
+        public double getTime() {
+            return time;
+        }
+
+        /**
+         * @return the number of times a thread was seen waiting for it
+         */
+        public int getSamples() {
+            return samples;
+        }
+
+        /**
+         * @return the number of threads seen waiting for it
+         */
+        public int getWaiters() {
+            return waiters.size();
+        }
+
+        /**
+         * @return the frame threads were most often seen waiting in
+         */
+        public String getSite() {
+            Map.Entry<String, Integer> top = top(sites);
+            return top == null ? null : top.getKey();
+        }
+
+        /**
+         * @return the thread most often seen holding it, or null
+         */
+        public String getOwner() {
+            Map.Entry<String, Integer> top = top(owners);
+            return top == null ? null : top.getKey();
+        }
+
+        /**
+         * @return the number of samples the owner held it in
+         */
+        public int getOwnerSamples() {
+            Map.Entry<String, Integer> top = top(owners);
+            return top == null ? 0 : top.getValue();
+        }
+
+        /**
+         * @return the number of samples it had a known owner in
+         */
+        public int getOwnedSamples() {
+            return owned;
+        }
+
+        /**
+         * @return the owner's name, then the stack it was most often seen
+         *         holding the lock in, or null
+         */
+        public String getOwnerStack() {
+            Map.Entry<String, Integer> top = top(stacks);
+            return top == null ? null : top.getKey();
+        }
+
+    }
+
+    /**
+     * A thread, with its blocked and waited counts from the first and last
+     * samples.
+     */
+    public static class Waiter {
+
+        private final ThreadInfo first;
+
+        private ThreadInfo last;
+
+        private final Map<Lock, Integer> blockedOn = new HashMap<Lock, Integer>();
+
+        private final Map<Lock, Integer> waitedOn = new HashMap<Lock, Integer>();
+
+        private int blockedSamples;
+
+        private int waitedSamples;
+
+        /**
+         * @param first
+         */
+        Waiter(ThreadInfo first) {
+            this.first = first;
+            this.last = first;
+        }
+
+        /**
+         * @return id
+         */
+        public long getId() {
+            return first.getThreadId();
+        }
+
+        /**
+         * @return name
+         */
+        public String getName() {
+            return first.getThreadName();
+        }
+
+        /**
+         * @return the number of times it blocked over the window
+         */
+        public long getBlockedCount() {
+            return last.getBlockedCount() - first.getBlockedCount();
+        }
+
+        /**
+         * @return milliseconds blocked over the window, or -1 if the server
+         *         doesn't measure it
+         */
+        public long getBlockedTime() {
+            if (first.getBlockedTime() < 0)
+                return -1;
+            return last.getBlockedTime() - first.getBlockedTime();
+        }
+
+        /**
+         * @return the number of times it waited over the window
+         */
+        public long getWaitedCount() {
+            return last.getWaitedCount() - first.getWaitedCount();
+        }
+
+        /**
+         * @return milliseconds waiting over the window, or -1 if the server
+         *         doesn't measure it
+         */
+        public long getWaitedTime() {
+            if (first.getWaitedTime() < 0)
+                return -1;
+            return last.getWaitedTime() - first.getWaitedTime();
+        }
+
+        /**
+         * @return the number of samples it was blocked in
+         */
+        public int getBlockedSamples() {
+            return blockedSamples;
+        }
+
+    }
+
+    /**
+     * A thread seen waiting for a lock another held.
+     */
+    private static class Edge {
+
+        private final String waiter;
+
+        private final String owner;
+
+        private final String lock;
+
+        private int samples;
+
+        /**
+         * @param waiter
+         * @param owner
+         * @param lock
+         */
+        Edge(String waiter, String owner, String lock) {
+            this.waiter = waiter;
+            this.owner = owner;
+            this.lock = lock;
+        }
+
+    }
+
+}
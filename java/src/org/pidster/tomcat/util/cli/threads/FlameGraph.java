@@ -0,0 +1,195 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.threads;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+import org.pidster.tomcat.util.cli.threads.StackTrie.Node;
+
+/**
+ * Draws a {@link StackTrie} as an SVG flame graph: each frame a box as wide
+ * as its share of the samples, sitting on the frame which called it, with
+ * callees sorted by name so the same code lines up between runs. The file
+ * needs nothing else to view, hovering over a box shows its name and count.
+ * 
+ * @author pidster
+ * 
+ */
+public class FlameGraph {
+
+    private static final int WIDTH = 1200;
+
+    private static final int FRAME_HEIGHT = 16;
+
+    private static final int PAD = 10;
+
+    private static final int TITLE_HEIGHT = 30;
+
+    private static final double CHAR_WIDTH = 7;
+
+    /**
+     * Boxes narrower than this, in pixels, are left out, along with
+     * everything above them
+     */
+    private static final double MIN_WIDTH = 0.1;
+
+    private static final Comparator<Node> BY_NAME = new Comparator<Node>() {
+        @Override
+        public int compare(Node one, Node two) {
+            return one.getFrame().compareTo(two.getFrame());
+        }
+    };
+
+    private final StackTrie trie;
+
+    private final String title;
+
+    private final double scale;
+
+    private final int height;
+
+    /**
+     * @param trie
+     * @param title
+     */
+    public FlameGraph(StackTrie trie, String title) {
+        this.trie = trie;
+        this.title = title;
+        this.scale = trie.getSamples() == 0 ? 0
+                : (WIDTH - 2.0 * PAD) / trie.getSamples();
+        this.height = TITLE_HEIGHT + (trie.getMaxDepth() + 1) * FRAME_HEIGHT
+                + 2 * PAD;
+    }
+
+    /**
+     * @param out
+     * @throws IOException
+     */
+    public void write(Writer out) throws IOException {
+        out.write("<?xml version=\"1.0\" standalone=\"no\"?>\n");
+        out.write(String.format(Locale.ROOT,
+                "<svg version=\"1.1\" width=\"%d\" height=\"%d\""
+                + " viewBox=\"0 0 %d %d\" xmlns=\"http://www.w3.org/2000/svg\">\n",
+                WIDTH, height, WIDTH, height));
+        out.write("<style>text { font-family: Verdana, sans-serif; font-size: 12px; fill: #000; }"
+                + " rect { stroke: #fff; stroke-width: 0.5; } g:hover rect { stroke: #000; }</style>\n");
+        out.write(String.format(Locale.ROOT,
+                "<rect x=\"0\" y=\"0\" width=\"%d\" height=\"%d\""
+                + " fill=\"#f8f8f8\" style=\"stroke: none\"/>\n", WIDTH, height));
+        out.write(String.format(Locale.ROOT,
+                "<text x=\"%d\" y=\"%d\" text-anchor=\"middle\""
+                + " style=\"font-size: 16px\">%s</text>\n", WIDTH / 2,
+                TITLE_HEIGHT - 8, escape(title)));
+
+        write(trie.getRoot(), PAD, 0, out);
+        out.write("</svg>\n");
+    }
+
+    /**
+     * @param node
+     * @param x
+     *            of the left of its box
+     * @param depth
+     *            0 for the root, at the bottom
+     * @param out
+     * @throws IOException
+     */
+    private void write(Node node, double x, int depth, Writer out)
+            throws IOException {
+        double width = node.getTotal() * scale;
+        if (width < MIN_WIDTH)
+            return;
+
+        int y = height - PAD - (depth + 1) * FRAME_HEIGHT;
+        String name = node.getFrame();
+        out.write(String.format(Locale.ROOT,
+                "<g><title>%s (%d samples, %.2f%%)</title>",
+                escape(name), node.getTotal(), 100d * node.getTotal()
+                        / trie.getSamples()));
+        out.write(String.format(Locale.ROOT,
+                "<rect x=\"%.1f\" y=\"%d\" width=\"%.1f\""
+                + " height=\"%d\" fill=\"%s\"/>", x, y, width,
+                FRAME_HEIGHT - 1, colour(name, depth == 0)));
+
+        int fits = (int) ((width - 6) / CHAR_WIDTH);
+        if (fits >= 3) {
+            String label = name.length() <= fits ? name : name.substring(0,
+                    fits - 2) + "..";
+            out.write(String.format(Locale.ROOT,
+                    "<text x=\"%.1f\" y=\"%d\">%s</text>",
+                    x + 3, y + FRAME_HEIGHT - 4, escape(label)));
+        }
+        out.write("</g>\n");
+
+        Node[] children = node.getChildren();
+        Arrays.sort(children, BY_NAME);
+        double left = x;
+        for (Node child : children) {
+            write(child, left, depth + 1, out);
+            left += child.getTotal() * scale;
+        }
+    }
+
+    /**
+     * @param name
+     * @param root
+     * @return a warm colour, the same each time for the same name
+     */
+    private static String colour(String name, boolean root) {
+        if (root)
+            return "rgb(220,220,220)";
+        int hash = name.hashCode() * 0x9E3779B1;
+        int r = 205 + ((hash >>> 8) & 0xFF) % 50;
+        int g = ((hash >>> 16) & 0xFF) % 230;
+        int b = ((hash >>> 24) & 0xFF) % 55;
+        return "rgb(" + r + "," + g + "," + b + ")";
+    }
+
+    /**
+     * @param text
+     * @return the text, safe in XML
+     */
+    private static String escape(String text) {
+        StringBuilder s = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '&':
+                    s.append("&amp;");
+                    break;
+                case '<':
+                    s.append("&lt;");
+                    break;
+                case '>':
+                    s.append("&gt;");
+                    break;
+                case '"':
+                    s.append("&quot;");
+                    break;
+                default:
+                    s.append(c);
+            }
+        }
+        return s.toString();
+    }
+
+}
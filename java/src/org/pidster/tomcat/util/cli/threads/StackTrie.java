@@ -0,0 +1,250 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.threads;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Sampled stacks merged into a tree, outermost frame first, with the number
+ * of samples through each frame and the number which stopped in it. That's
+ * all a flame graph needs, and the folded text flamegraph.pl reads.
+ * 
+ * Frames are named by class and method, without the line, and each name is
+ * held once however many samples it's in, so a long run only grows with the
+ * number of distinct stacks, not with the number of samples.
+ * 
+ * @author pidster
+ * 
+ */
+public class StackTrie {
+
+    /**
+     * The outermost frame of a stack which was cut short at the depth asked
+     * for
+     */
+    public static final String TRUNCATED = "[truncated]";
+
+    private final Map<StackTraceElement, String> frames;
+
+    private final Map<String, String> names;
+
+    private final Node root;
+
+    private int nodes;
+
+    private int maxDepth;
+
+    public StackTrie() {
+        this.frames = new HashMap<StackTraceElement, String>();
+        this.names = new HashMap<String, String>();
+        this.root = new Node("all");
+    }
+
+    /**
+     * @param stack
+     *            innermost frame first, as a thread gives it
+     * @param truncated
+     *            true if the stack was cut short
+     */
+    public void add(StackTraceElement[] stack, boolean truncated) {
+        Node node = root;
+        node.total++;
+        int depth = 0;
+        if (truncated) {
+            node = node.child(TRUNCATED);
+            node.total++;
+            depth++;
+        }
+        for (int i = stack.length - 1; i >= 0; i--) {
+            node = node.child(name(stack[i]));
+            node.total++;
+            depth++;
+        }
+        node.self++;
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    /**
+     * @return the root, which every sample passes through
+     */
+    public Node getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the number of stacks added
+     */
+    public int getSamples() {
+        return root.total;
+    }
+
+    /**
+     * @return the number of distinct frame names
+     */
+    public int getFrames() {
+        return names.size();
+    }
+
+    /**
+     * @return the number of nodes, not counting the root
+     */
+    public int getNodes() {
+        return nodes;
+    }
+
+    /**
+     * @return the most frames below the root
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Writes a line for each distinct stack, outermost frame first, separated
+     * by semicolons, then a space and the number of samples.
+     * 
+     * @param out
+     * @throws IOException
+     */
+    public void writeFolded(Writer out) throws IOException {
+        String[] path = new String[maxDepth];
+        for (Node child : root.getChildren())
+            writeFolded(child, path, 0, out);
+    }
+
+    /**
+     * @param node
+     * @param path
+     *            the frames above the node
+     * @param depth
+     *            of the node
+     * @param out
+     * @throws IOException
+     */
+    private void writeFolded(Node node, String[] path, int depth, Writer out)
+            throws IOException {
+        path[depth] = node.frame;
+        if (node.self > 0) {
+            for (int i = 0; i <= depth; i++) {
+                if (i > 0)
+                    out.write(';');
+                out.write(path[i]);
+            }
+            out.write(' ');
+            out.write(String.valueOf(node.self));
+            out.write('\n');
+        }
+        for (int i = 0; i < node.size; i++)
+            writeFolded(node.children[i], path, depth + 1, out);
+    }
+
+    /**
+     * @param element
+     * @return the one copy of the frame's name
+     */
+    private String name(StackTraceElement element) {
+        String name = frames.get(element);
+        if (name == null) {
+            name = element.getClassName() + "." + element.getMethodName();
+            String held = names.get(name);
+            if (held == null)
+                names.put(name, name);
+            else
+                name = held;
+            frames.put(element, name);
+        }
+        return name;
+    }
+
+    /**
+     * A frame, reached by the frames above it.
+     */
+    public class Node {
+
+        private final String frame;
+
+        private Node[] children;
+
+        private int size;
+
+        private int total;
+
+        private int self;
+
+        /**
+         * @param frame
+         */
+        Node(String frame) {
+            this.frame = frame;
+        }
+
+        /**
+         * @param name
+         *            one held by the trie, so it can be compared by identity
+         * @return the child, added if it's new
+         */
+        private Node child(String name) {
+            for (int i = 0; i < size; i++) {
+                if (children[i].frame == name)
+                    return children[i];
+            }
+            if (children == null)
+                children = new Node[2];
+            else if (size == children.length)
+                children = Arrays.copyOf(children, size * 2);
+            Node child = new Node(name);
+            children[size++] = child;
+            nodes++;
+            return child;
+        }
+
+        /**
+         * @return the frame's name
+         */
+        public String getFrame() {
+            return frame;
+        }
+
+        /**
+         * @return the number of samples through the frame
+         */
+        public int getTotal() {
+            return total;
+        }
+
+        /**
+         * @return the number of samples which stopped in the frame
+         */
+        public int getSelf() {
+            return self;
+        }
+
+        /**
+         * @return the frames it calls, in no particular order
+         */
+        public Node[] getChildren() {
+            return size == 0 ? new Node[0] : Arrays.copyOf(children, size);
+        }
+
+    }
+
+}
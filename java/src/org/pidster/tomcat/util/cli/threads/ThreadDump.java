@@ -0,0 +1,99 @@
+/*
+ *  Licensed to the Apache Software Foundation (ASF) under one or more
+ *  contributor license agreements.  See the NOTICE file distributed with
+ *  this work for additional information regarding copyright ownership.
+ *  The ASF licenses this file to You under the Apache License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance with
+ *  the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.pidster.tomcat.util.cli.threads;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.LockInfo;
+import java.lang.management.MonitorInfo;
+import java.lang.management.ThreadInfo;
+
+/**
+ * Writes threads the way jstack does: every frame, the monitors each thread
+ * holds at the frame which locked them, and the synchronizers it owns.
+ * ThreadInfo's own toString stops after eight frames.
+ * 
+ * @author pidster
+ * 
+ */
+public class ThreadDump {
+
+    private final Writer out;
+
+    /**
+     * @param out
+     */
+    public ThreadDump(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * @param info
+     * @throws IOException
+     */
+    public void write(ThreadInfo info) throws IOException {
+        StringBuilder s = new StringBuilder();
+        s.append('"').append(info.getThreadName()).append("\" Id=")
+                .append(info.getThreadId()).append(' ')
+                .append(info.getThreadState());
+        if (info.getLockName() != null)
+            s.append(" on ").append(info.getLockName());
+        if (info.getLockOwnerName() != null)
+            s.append(" owned by \"").append(info.getLockOwnerName())
+                    .append("\" Id=").append(info.getLockOwnerId());
+        if (info.isSuspended())
+            s.append(" (suspended)");
+        if (info.isInNative())
+            s.append(" (in native)");
+        s.append('\n');
+
+        StackTraceElement[] stack = info.getStackTrace();
+        MonitorInfo[] monitors = info.getLockedMonitors();
+        for (int i = 0; i < stack.length; i++) {
+            s.append("\tat ").append(stack[i]).append('\n');
+            if (i == 0 && info.getLockInfo() != null) {
+                switch (info.getThreadState()) {
+                    case BLOCKED:
+                        s.append("\t-  blocked on ").append(info.getLockInfo())
+                                .append('\n');
+                        break;
+                    case WAITING:
+                    case TIMED_WAITING:
+                        s.append("\t-  waiting on ").append(info.getLockInfo())
+                                .append('\n');
+                        break;
+                    default:
+                }
+            }
+            for (MonitorInfo monitor : monitors) {
+                if (monitor.getLockedStackDepth() == i)
+                    s.append("\t-  locked ").append(monitor).append('\n');
+            }
+        }
+
+        LockInfo[] synchronizers = info.getLockedSynchronizers();
+        if (synchronizers.length > 0) {
+            s.append("\n\tLocked ownable synchronizers:\n");
+            for (LockInfo synchronizer : synchronizers)
+                s.append("\t- ").append(synchronizer).append('\n');
+        }
+        s.append('\n');
+        out.write(s.toString());
+    }
+
+}
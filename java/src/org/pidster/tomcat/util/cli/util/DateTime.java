@@ -72,4 +72,42 @@ public class DateTime {
         return s.toString();
     }
 
+    /**
+     * Reads a duration such as 500ms, 5s, 2m or 1h. A bare number is taken
+     * to be in seconds.
+     * 
+     * @param duration
+     * @return milliseconds
+     * @throws IllegalArgumentException
+     *             if the duration can't be read
+     */
+    public static long parseDuration(String duration) {
+
+        String value = duration.trim().toLowerCase();
+
+        long unit = UNIT_SECOND;
+        if (value.endsWith("ms")) {
+            unit = 1;
+            value = value.substring(0, value.length() - 2);
+        }
+        else if (value.endsWith("s")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        else if (value.endsWith("m")) {
+            unit = UNIT_MINUTE;
+            value = value.substring(0, value.length() - 1);
+        }
+        else if (value.endsWith("h")) {
+            unit = UNIT_HOUR;
+            value = value.substring(0, value.length() - 1);
+        }
+
+        try {
+            return Math.round(Double.parseDouble(value.trim()) * unit);
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid duration: " + duration);
+        }
+    }
+
 }
@@ -18,6 +18,7 @@
 package org.pidster.tomcat.util.cli.util;
 
 import java.io.Closeable;
+import java.io.File;
 
 /**
  * @author pidster
@@ -48,4 +49,35 @@ public class IO {
         }
     }
 
+    /**
+     * @return the directory for anything kept between runs, created if need
+     *         be
+     */
+    public static final File homeDirectory() {
+        File directory = new File(System.getProperty("user.home"),
+                ".tomcat-cli");
+
+        if (!directory.isDirectory() && directory.mkdirs()) {
+            // it holds connector addresses, which need no password
+            ownerOnly(directory);
+            directory.setExecutable(false, false);
+            directory.setExecutable(true, true);
+        }
+
+        return directory;
+    }
+
+    /**
+     * Lets only the owner read or write the file, which should be done
+     * before there's anything in it.
+     * 
+     * @param file
+     */
+    public static final void ownerOnly(File file) {
+        file.setReadable(false, false);
+        file.setReadable(true, true);
+        file.setWritable(false, false);
+        file.setWritable(true, true);
+    }
+
 }